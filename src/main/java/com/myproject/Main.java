@@ -1,21 +1,142 @@
 package com.myproject;
 
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+import com.myproject.versioning.ManifestEntry;
+import com.myproject.versioning.RestoreEngine;
+import com.myproject.versioning.VersionReader;
 import com.myproject.watcher.DirectoryWatcher;
 
 
 public class Main {
-        public static void main(String[] args) throws Exception {
-    DirectoryWatcher handler = new DirectoryWatcher(Paths.get("C:\\Users\\eastw\\Documents\\PAU Stuff"));
+    private static final String DEFAULT_DIRECTORY = "C:\\Users\\eastw\\Documents\\PAU Stuff";
+    private static final DateTimeFormatter HISTORY_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /**
+     * Usage:
+     * <pre>
+     * watch &lt;directory&gt;
+     * history &lt;directory&gt; &lt;file&gt;
+     * restore &lt;directory&gt; &lt;file or folder&gt; --to &lt;target&gt; [--at &lt;time&gt;]
+     * </pre>
+     * Times are epoch milliseconds or a local date-time such as {@code 2024-05-01T13:30}. Without arguments the
+     * default directory is watched.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            watch(Paths.get(DEFAULT_DIRECTORY));
+            return;
+        }
 
+        switch (args[0]) {
+            case "watch" -> {
+                requireArguments(args, 2);
+                watch(absolute(args[1]));
+            }
+            case "history" -> {
+                requireArguments(args, 3);
+                history(absolute(args[1]), absolute(args[2]));
+            }
+            case "restore" -> {
+                requireArguments(args, 3);
+                String target = option(args, "--to");
+                String time = option(args, "--at");
+                if (target == null) {
+                    usage();
+                }
+                restore(absolute(args[1]), absolute(args[2]), absolute(target), time == null ? System.currentTimeMillis() : parseTime(time));
+            }
+            default -> usage();
+        }
+    }
 
+    /**
+     * Watches a directory until the JVM is stopped. On SIGTERM or Ctrl-C the watcher is closed, so the events it
+     * already queued are versioned before the JVM exits.
+     */
+    private static void watch(Path directory) throws IOException {
+        DirectoryWatcher watcher = new DirectoryWatcher(directory);
+        Runtime.getRuntime().addShutdownHook(new Thread(watcher::close, "directory-watcher-shutdown"));
+    }
 
+    private static void history(Path directory, Path file) {
+        List<ManifestEntry> history;
+        try (VersionReader reader = new VersionReader(directory)) {
+            history = reader.getVersionCatalog().history(file);
         }
+        if (history.isEmpty()) {
+            System.out.println("No versions of " + file);
+            return;
+        }
+        for (ManifestEntry entry : history) {
+            System.out.println(HISTORY_FORMAT.format(Instant.ofEpochMilli(entry.getTimestamp())) + "  " + entry.getTimestamp()
+                    + "  " + entry.getEventType() + "  " + entry.getHash() + "  " + entry.getSize()
+                    + (entry.getSourcePath() == null ? "" : "  " + entry.getSourcePath() + " -> " + entry.getPath()));
+        }
+    }
 
-        } 
-        
+    private static void restore(Path directory, Path source, Path target, long timestamp) throws InterruptedException {
+        long start = System.nanoTime();
+        RestoreEngine.RestoreResult result;
+        try (VersionReader reader = new VersionReader(directory)) {
+            result = reader.getRestoreEngine().restore(source, timestamp, target);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println("Restored " + result.getRestoredFiles() + " files, " + result.getRestoredBytes() + " bytes in " + elapsedMillis + " ms");
+        for (Path failed : result.getFailedPaths()) {
+            System.out.println("Failed: " + failed);
+        }
+        if (!result.getFailedPaths().isEmpty()) {
+            System.exit(1);
+        }
+    }
 
+    private static long parseTime(String time) {
+        if (time.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(time);
+        }
+        try {
+            return LocalDateTime.parse(time).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            System.err.println("Invalid time: " + time);
+            usage();
+            return 0;
+        }
+    }
 
+    private static String option(String[] args, String name) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(name)) {
+                return args[i + 1];
+            }
+        }
+        return null;
+    }
+
+    private static Path absolute(String path) {
+        return Paths.get(path).toAbsolutePath().normalize();
+    }
+
+    private static void requireArguments(String[] args, int count) {
+        if (args.length < count) {
+            usage();
+        }
+    }
 
-   
\ No newline at end of file
+    private static void usage() {
+        System.err.println("Usage:");
+        System.err.println("  watch <directory>");
+        System.err.println("  history <directory> <file>");
+        System.err.println("  restore <directory> <file or folder> --to <target> [--at <epoch millis | yyyy-MM-ddTHH:mm[:ss]>]");
+        System.exit(2);
+    }
+}
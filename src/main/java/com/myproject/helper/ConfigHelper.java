@@ -0,0 +1,180 @@
+package com.myproject.helper;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class ConfigHelper {
+  /** Prefix of every system property the file sorter reads its settings from */
+  public static final String PREFIX = "filesorter.";
+
+  /** Memory budget in bytes for the off-heap baseline content cache */
+  public static final String BASELINE_MEMORY_BUDGET = PREFIX + "baseline.memoryBudget";
+
+  /** Name of the codec new blobs are compressed with: none, deflate, gzip or lz4 */
+  public static final String CODEC = PREFIX + "codec";
+
+  /** Stores modified versions as binary deltas against the version before them */
+  public static final String DELTA_ENABLED = PREFIX + "delta.enabled";
+
+  /** Number of versions after which a modified version is stored in full again instead of as a delta */
+  public static final String DELTA_KEYFRAME_INTERVAL = PREFIX + "delta.keyframeInterval";
+
+  /** Size in bytes of the blocks the previous version is matched against when computing a delta */
+  public static final String DELTA_BLOCK_SIZE = PREFIX + "delta.blockSize";
+
+  /** What the watched tree is watched with: jdk, polling, or hybrid which polls only where the watch service fails */
+  public static final String WATCH_BACKEND = PREFIX + "watch.backend";
+
+  /** Time in milliseconds between two polls of a directory that just changed */
+  public static final String POLL_MIN_INTERVAL_MILLIS = PREFIX + "poll.minIntervalMillis";
+
+  /** Time in milliseconds between two polls of a directory that has not changed for a long time */
+  public static final String POLL_MAX_INTERVAL_MILLIS = PREFIX + "poll.maxIntervalMillis";
+
+  /** Time in milliseconds a path must go without new events before its merged event is handled */
+  public static final String COALESCE_QUIET_PERIOD_MILLIS = PREFIX + "coalesce.quietPeriodMillis";
+
+  /** Longest time in milliseconds an event is held back while its path keeps receiving new events */
+  public static final String COALESCE_MAX_DELAY_MILLIS = PREFIX + "coalesce.maxDelayMillis";
+
+  /** Number of events that can wait for a worker before new events block */
+  public static final String PIPELINE_QUEUE_CAPACITY = PREFIX + "pipeline.queueCapacity";
+
+  /** Time in milliseconds a file's size and mtime must stay unchanged before it is versioned, 0 versions right away */
+  public static final String STABILITY_WINDOW_MILLIS = PREFIX + "stability.windowMillis";
+
+  /** Longest time in milliseconds a file that keeps changing is waited for before it is versioned anyway */
+  public static final String STABILITY_MAX_WAIT_MILLIS = PREFIX + "stability.maxWaitMillis";
+
+  /** Time in milliseconds between two checks of the files that are waited for */
+  public static final String STABILITY_TICK_MILLIS = PREFIX + "stability.tickMillis";
+
+  /** Time in milliseconds a deleted file waits to be matched with a created one as a move, 0 records every deletion right away */
+  public static final String MOVE_WINDOW_MILLIS = PREFIX + "move.windowMillis";
+
+  /** Number of lanes, each with its own worker thread, that handle events */
+  public static final String PIPELINE_WORKERS = PREFIX + "pipeline.workers";
+
+  /** What events are ordered by: "path" orders events per file, "subtree" per top level folder */
+  public static final String PIPELINE_STRIPE_BY = PREFIX + "pipeline.stripeBy";
+
+  /** Runs directory registration and event handling on virtual threads */
+  public static final String VIRTUAL_THREADS = PREFIX + "virtualThreads";
+
+  /** Number of threads that may do blocking disk I/O at the same time */
+  public static final String IO_MAX_CONCURRENCY = PREFIX + "io.maxConcurrency";
+
+  /** Size in bytes above which files are streamed into the blob store instead of being read into memory */
+  public static final String LARGE_FILE_THRESHOLD = PREFIX + "largeFileThreshold";
+
+  /** Best way to snapshot large files into the versions folder: auto, reflink, hardlink, transfer or copy */
+  public static final String SNAPSHOT_STRATEGY = PREFIX + "snapshot";
+
+  /** Whether small blobs are appended to pack files and versions are made durable in batches */
+  public static final String PACK_ENABLED = PREFIX + "pack.enabled";
+
+  /** Largest content in bytes that is appended to a pack instead of getting a file of its own */
+  public static final String PACK_MAX_BLOB_SIZE = PREFIX + "pack.maxBlobSize";
+
+  /** Size in bytes at which a new pack file is started */
+  public static final String PACK_MAX_SIZE = PREFIX + "pack.maxSize";
+
+  /** Longest time in milliseconds a recorded version waits before its batch is written and fsynced */
+  public static final String COMMIT_INTERVAL_MILLIS = PREFIX + "commit.intervalMillis";
+
+  /** Size in bytes at which a batch of blobs is written and fsynced without waiting for the interval */
+  public static final String COMMIT_MAX_BATCH_BYTES = PREFIX + "commit.maxBatchBytes";
+
+  /** Loopback port the metrics are served on in the Prometheus text format, 0 disables the server */
+  public static final String METRICS_PORT = PREFIX + "metrics.port";
+
+  /** Publishes the metrics as the MBean com.myproject:type=Metrics */
+  public static final String METRICS_JMX = PREFIX + "metrics.jmx";
+
+  /** Number of threads listing directories during the initial scan of the watched tree */
+  public static final String SCAN_PARALLELISM = PREFIX + "scan.parallelism";
+
+  /** Time in milliseconds between two progress lines while the watched tree is scanned, 0 disables them */
+  public static final String SCAN_PROGRESS_INTERVAL_MILLIS = PREFIX + "scan.progressIntervalMillis";
+
+  /** Time in milliseconds the initial scan is expected to take, a slower scan is logged as a warning */
+  public static final String SCAN_TARGET_MILLIS = PREFIX + "scan.targetMillis";
+
+  /** Runs the background garbage collector that applies the retention policy to the versions folder */
+  public static final String RETENTION_ENABLED = PREFIX + "retention.enabled";
+
+  /** Number of most recent versions of every file that are never dropped */
+  public static final String RETENTION_KEEP_LAST = PREFIX + "retention.keepLast";
+
+  /** Number of days every version is kept for */
+  public static final String RETENTION_KEEP_ALL_DAYS = PREFIX + "retention.keepAllDays";
+
+  /** Number of days after that one version per hour is kept for */
+  public static final String RETENTION_HOURLY_DAYS = PREFIX + "retention.hourlyDays";
+
+  /** Number of days after that one version per day is kept for, 0 keeps daily versions forever */
+  public static final String RETENTION_DAILY_DAYS = PREFIX + "retention.dailyDays";
+
+  /** Largest total size in bytes of the blob store, 0 for no cap */
+  public static final String RETENTION_MAX_BYTES = PREFIX + "retention.maxBytes";
+
+  /** Time in minutes between two garbage collections */
+  public static final String RETENTION_INTERVAL_MINUTES = PREFIX + "retention.intervalMinutes";
+
+  /** Number of blobs the garbage collector deletes before it pauses */
+  public static final String RETENTION_BATCH_SIZE = PREFIX + "retention.batchSize";
+
+  /**
+   * Reads a numeric setting
+   * @param key the name of the system property
+   * @param defaultValue the value used when the property is missing or malformed
+   * @return the configured value
+   * */
+  public static long getLong(String key, long defaultValue) {
+    String value = System.getProperty(key);
+    if (value == null || value.isBlank()) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      Logger.getLogger(ConfigHelper.class.getName()).log(Level.WARNING, "Invalid value for {0}, using the default", key);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Reads a numeric setting
+   * @param key the name of the system property
+   * @param defaultValue the value used when the property is missing or malformed
+   * @return the configured value
+   * */
+  public static int getInt(String key, int defaultValue) {
+    return (int) Math.min(Integer.MAX_VALUE, Math.max(Integer.MIN_VALUE, getLong(key, defaultValue)));
+  }
+
+  /**
+   * Reads a text setting
+   * @param key the name of the system property
+   * @param defaultValue the value used when the property is missing
+   * @return the configured value
+   * */
+  public static String getString(String key, String defaultValue) {
+    String value = System.getProperty(key);
+    return value == null || value.isBlank() ? defaultValue : value.trim();
+  }
+
+  /**
+   * Reads an on/off setting
+   * @param key the name of the system property
+   * @param defaultValue the value used when the property is missing
+   * @return the configured value
+   * */
+  public static boolean getBoolean(String key, boolean defaultValue) {
+    String value = System.getProperty(key);
+    if (value == null || value.isBlank()) {
+      return defaultValue;
+    }
+    return Boolean.parseBoolean(value.trim());
+  }
+}
@@ -4,8 +4,6 @@ import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.WatchEvent;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,28 +28,6 @@ public class DirHelper {
     return Files.isDirectory(path, new LinkOption[]{LinkOption.NOFOLLOW_LINKS});
   }
 
-  /**
-   * Prevents file duplication when the file is modified
-   * @param path the path that was affected
-   * @param eventKind the kind of event that occurred
-   * @param currentTime the timestamp at which the event occurred
-   * @param map maps the path to the timestamp
-   * */
-  public static void handleDirectoryDuplication(Path path, WatchEvent.Kind<?> eventKind, long currentTime, ConcurrentHashMap<Path, Long> map) {
-    if (path == null) {
-      return;
-    }
-      boolean dirExists = map.containsKey(path);
-      boolean lastEventTime = (currentTime - map.getOrDefault(path, (long) 0)) > 500;
-
-      if (!dirExists || lastEventTime) {
-        System.out.println("Event Kind: " + eventKind + ", File: " + path.toString());
-        map.put(path, currentTime);
-        return;
-      }
-
-  }
-
   /**
    * Creates a folder
    *
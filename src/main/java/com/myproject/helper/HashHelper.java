@@ -0,0 +1,65 @@
+package com.myproject.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+public class HashHelper {
+  private static final String ALGORITHM = "SHA-256";
+  private static final HexFormat HEX = HexFormat.of();
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Creates a new digest for the algorithm used to address versioned content
+   * @return a fresh SHA-256 message digest
+   * */
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // Every JVM is required to ship SHA-256, so this can only happen on a broken runtime
+      throw new IllegalStateException("Missing digest algorithm: " + ALGORITHM, e);
+    }
+  }
+
+  /**
+   * Hashes the content of a file
+   * @param content the bytes to be hashed
+   * @return the lowercase hex encoded hash of the content
+   * */
+  public static String hash(byte[] content) {
+    return toHex(newDigest().digest(content));
+  }
+
+  /**
+   * Hashes the content of a file without loading it into memory. The file is streamed through a fixed size
+   * buffer, so the result is the same as {@link #hash(byte[])} on the whole content.
+   * @param filePath the file to be hashed
+   * @return the lowercase hex encoded hash of the file content
+   * @throws IOException if the file could not be read
+   * */
+  public static String hash(Path filePath) throws IOException {
+    MessageDigest digest = newDigest();
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream input = Files.newInputStream(filePath)) {
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Encodes a digest as a lowercase hex string
+   * @param digest the raw digest bytes
+   * @return the hex encoded digest
+   * */
+  public static String toHex(byte[] digest) {
+    return HEX.formatHex(digest);
+  }
+}
@@ -0,0 +1,61 @@
+package com.myproject.helper;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * The IoLimiter class caps the number of threads doing disk I/O at the same time.
+ * With virtual threads there is no pool size to keep a cold start or an event storm from hammering the disk
+ * with thousands of concurrent reads, so every blocking filesystem task takes a permit first.
+ */
+public final class IoLimiter {
+  private static final IoLimiter SHARED = new IoLimiter(ConfigHelper.getInt(ConfigHelper.IO_MAX_CONCURRENCY, 32));
+
+  private final Semaphore permits;
+  private final int maxConcurrency;
+
+  public IoLimiter(int maxConcurrency) {
+    this.maxConcurrency = Math.max(1, maxConcurrency);
+    this.permits = new Semaphore(this.maxConcurrency, true);
+  }
+
+  /**
+   * @return the limiter shared by the watcher and the event handler, sized by {@code filesorter.io.maxConcurrency}
+   * */
+  public static IoLimiter shared() {
+    return SHARED;
+  }
+
+  /**
+   * Runs a piece of blocking I/O once a permit is free
+   * @param task the I/O to be run
+   * @throws InterruptedException if the thread is interrupted while waiting for a permit
+   * */
+  public void run(Runnable task) throws InterruptedException {
+    acquire();
+    try {
+      task.run();
+    } finally {
+      release();
+    }
+  }
+
+  /**
+   * Waits for a permit. Every successful call must be paired with a call to {@link #release()}.
+   * @throws InterruptedException if the thread is interrupted while waiting
+   * */
+  public void acquire() throws InterruptedException {
+    permits.acquire();
+  }
+
+  public void release() {
+    permits.release();
+  }
+
+  public int getMaxConcurrency() {
+    return maxConcurrency;
+  }
+
+  public int getInFlight() {
+    return maxConcurrency - permits.availablePermits();
+  }
+}
@@ -4,31 +4,34 @@ import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 
 public class StringHelper {
+  // Formatters are immutable and thread-safe, building one parses its pattern every time
+  private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+  private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH-mm-ss");
+
   /**
    * Formats the current date and time
    * @return a formatted date of pattern "yyyy-MM-dd"
    * */
   public static String formatDate() {
-    LocalDateTime date = LocalDateTime.now();
-    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-    return date.format(formatter);
+    return LocalDateTime.now().format(DATE_FORMATTER);
   }
 
+  /**
+   * Formats the current time. Events carry their time in epoch milliseconds, this is only for names shown to users.
+   * @return a formatted time of pattern "HH-mm-ss"
+   * */
   public static String formatTime(){
-    LocalDateTime time = LocalDateTime.now();
-    DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH-mm-ss");
-    return time.format(formatter);
+    return LocalDateTime.now().format(TIME_FORMATTER);
   }
 
   /**
    * Extracts the extension from a file's name
    * @param fileName the name of the file
-   * @return the file's extension
+   * @return the file's extension, or the whole name if it has no dot
    * */
   public static String extractExtension(String fileName){
-    String[] fileNameParts = fileName.split("\\.");
-    return fileNameParts[fileNameParts.length - 1];
-
+    int dot = fileName.lastIndexOf('.');
+    return dot < 0 ? fileName : fileName.substring(dot + 1);
   }
 
   /**
@@ -37,7 +40,8 @@ public class StringHelper {
    * @return the filename without the extension
    * */
   public static String removeExtension(String fileName){
-    return fileName.replace("." + extractExtension(fileName), "");
+    int dot = fileName.lastIndexOf('.');
+    return dot < 0 ? fileName : fileName.substring(0, dot);
   }
 
 }
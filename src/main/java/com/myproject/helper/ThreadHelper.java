@@ -0,0 +1,45 @@
+package com.myproject.helper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+public class ThreadHelper {
+  private static final boolean VIRTUAL_THREADS = ConfigHelper.getBoolean(ConfigHelper.VIRTUAL_THREADS, false);
+
+  /**
+   * Checks if blocking work runs on virtual threads, which is enabled by {@code filesorter.virtualThreads}
+   * @return true if virtual threads are used
+   * */
+  public static boolean isVirtualThreadsEnabled() {
+    return VIRTUAL_THREADS;
+  }
+
+  /**
+   * Creates an unstarted thread for long running blocking work
+   * @param name the name of the thread
+   * @param task the work the thread runs
+   * @return a virtual thread if virtual threads are enabled, otherwise a daemon platform thread
+   * */
+  public static Thread newThread(String name, Runnable task) {
+    if (VIRTUAL_THREADS) {
+      return Thread.ofVirtual().name(name).unstarted(task);
+    }
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    return thread;
+  }
+
+  /**
+   * Creates an executor for short blocking tasks such as registering a directory
+   * @param name the prefix of the names of its threads
+   * @return an executor with one virtual thread per task if virtual threads are enabled, otherwise a cached pool
+   * */
+  public static ExecutorService newTaskExecutor(String name) {
+    if (VIRTUAL_THREADS) {
+      return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 0).factory());
+    }
+    ThreadFactory factory = Thread.ofPlatform().name(name + "-", 0).daemon(true).factory();
+    return Executors.newCachedThreadPool(factory);
+  }
+}
@@ -0,0 +1,48 @@
+package com.myproject.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Counter counts something that happens on many threads at once, such as received events. It is a
+ * {@link LongAdder}, so threads counting at the same time do not contend and counting never allocates.
+ */
+public final class Counter implements Metric {
+  private final String name;
+  private final String help;
+  private final LongAdder count = new LongAdder();
+
+  Counter(String name, String help) {
+    this.name = name;
+    this.help = help;
+  }
+
+  public void increment() {
+    count.increment();
+  }
+
+  /**
+   * @param amount the amount to count, e.g. a number of bytes
+   * */
+  public void add(long amount) {
+    count.add(amount);
+  }
+
+  public long get() {
+    return count.sum();
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String getHelp() {
+    return help;
+  }
+
+  @Override
+  public Type getType() {
+    return Type.COUNTER;
+  }
+}
@@ -0,0 +1,43 @@
+package com.myproject.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A Gauge reads a value that is already kept elsewhere, such as the depth of a queue or a counter a component
+ * keeps for itself. It is only read when the metrics are exported, so it costs nothing in between.
+ */
+public final class Gauge implements Metric {
+  private final String name;
+  private final String help;
+  private final Type type;
+  private final LongSupplier value;
+
+  /**
+   * @param type {@link Type#GAUGE}, or {@link Type#COUNTER} if the value only goes up
+   * */
+  Gauge(String name, String help, Type type, LongSupplier value) {
+    this.name = name;
+    this.help = help;
+    this.type = type;
+    this.value = value;
+  }
+
+  public long get() {
+    return value.getAsLong();
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String getHelp() {
+    return help;
+  }
+
+  @Override
+  public Type getType() {
+    return type;
+  }
+}
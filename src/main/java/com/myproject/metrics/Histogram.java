@@ -0,0 +1,143 @@
+package com.myproject.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Histogram records the distribution of values such as latencies in nanoseconds, the way HdrHistogram does:
+ * every power of two is split into 32 buckets of equal width, so any value from 0 to {@link Long#MAX_VALUE} is
+ * counted with a relative error of at most 1/32 in a fixed array of about 1900 counters.
+ *
+ * <p>Recording is a few atomic increments on that array, without locks or allocation, so it can run for every event.
+ * Quantiles are computed from a {@link Snapshot} when the metrics are exported.
+ */
+public final class Histogram implements Metric {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Values below SUB_BUCKETS are counted exactly, every power of two above gets SUB_BUCKETS buckets
+  private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final String name;
+  private final String help;
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  Histogram(String name, String help) {
+    this.name = name;
+    this.help = help;
+  }
+
+  /**
+   * Records a value, negative values are recorded as 0
+   * @param value e.g. a latency in nanoseconds
+   * */
+  public void record(long value) {
+    long recorded = Math.max(0, value);
+    counts.incrementAndGet(indexOf(recorded));
+    sum.add(recorded);
+    long currentMax = max.get();
+    while (recorded > currentMax && !max.compareAndSet(currentMax, recorded)) {
+      currentMax = max.get();
+    }
+  }
+
+  /**
+   * Copies the counts, so quantiles are computed over one consistent set of values
+   * @return the snapshot
+   * */
+  public Snapshot snapshot() {
+    long[] copy = new long[BUCKETS];
+    long count = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+      count += copy[i];
+    }
+    return new Snapshot(copy, count, sum.sum(), max.get());
+  }
+
+  @Override
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String getHelp() {
+    return help;
+  }
+
+  @Override
+  public Type getType() {
+    return Type.HISTOGRAM;
+  }
+
+  static int indexOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  /**
+   * @return the highest value counted in a bucket
+   * */
+  static long highestValueOf(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  /**
+   * The values of a histogram at one moment
+   */
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getSum() {
+      return sum;
+    }
+
+    public long getMax() {
+      return max;
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the value that the given share of the recorded values is at or below, 0 if nothing was recorded
+     * */
+    public long getValue(double quantile) {
+      if (count == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(quantile * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(max, highestValueOf(i));
+        }
+      }
+      return max;
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package com.myproject.metrics;
+
+/**
+ * A Metric is one named value of the {@link MetricsRegistry}: a {@link Counter}, a {@link Gauge} or a
+ * {@link Histogram}. Names are dotted and lower case, e.g. {@code pipeline.queue.depth}.
+ */
+public interface Metric {
+
+  /**
+   * The kind of a metric, which decides how it is exported
+   */
+  enum Type {
+    /** A count that only goes up */
+    COUNTER,
+    /** A value that goes up and down */
+    GAUGE,
+    /** A distribution of values, exported as its count, sum and quantiles */
+    HISTOGRAM
+  }
+
+  String getName();
+
+  /**
+   * @return one line describing what the metric measures
+   * */
+  String getHelp();
+
+  Type getType();
+}
@@ -0,0 +1,212 @@
+package com.myproject.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The MetricsExporter class publishes a {@link MetricsRegistry}:
+ * <ul>
+ *   <li>over JMX as the MBean {@code com.myproject:type=Metrics}, with one attribute per counter and gauge and
+ *   the count, p50, p99 and maximum of every histogram, for jconsole and the like</li>
+ *   <li>over HTTP in the Prometheus text format at {@code http://127.0.0.1:<port>/metrics}, if a port is set.
+ *   The server only listens on the loopback address.</li>
+ * </ul>
+ */
+public final class MetricsExporter {
+  private static final String OBJECT_NAME = "com.myproject:type=Metrics";
+  private static final ReentrantLock LOCK = new ReentrantLock();
+  private static HttpServer httpServer;
+
+  private MetricsExporter() {
+  }
+
+  /**
+   * Starts exporting the registry. Calling it again, e.g. for a second watched directory, does nothing.
+   * @param registry the metrics to export
+   * @param httpPort the loopback port to serve the text format on, 0 for none
+   * @param jmx whether to register the MBean
+   * */
+  public static void start(MetricsRegistry registry, int httpPort, boolean jmx) {
+    LOCK.lock();
+    try {
+      if (jmx) {
+        registerMBean(registry);
+      }
+      if (httpPort > 0 && httpServer == null) {
+        httpServer = startHttpServer(registry, httpPort);
+      }
+    } finally {
+      LOCK.unlock();
+    }
+  }
+
+  /**
+   * Stops the HTTP server and removes the MBean
+   * */
+  public static void stop() {
+    LOCK.lock();
+    try {
+      if (httpServer != null) {
+        httpServer.stop(0);
+        httpServer = null;
+      }
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (server.isRegistered(name)) {
+        server.unregisterMBean(name);
+      }
+    } catch (JMException e) {
+      Logger.getLogger(MetricsExporter.class.getName()).log(Level.WARNING, "Could not unregister the metrics MBean", e);
+    } finally {
+      LOCK.unlock();
+    }
+  }
+
+  private static void registerMBean(MetricsRegistry registry) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(OBJECT_NAME);
+      if (!server.isRegistered(name)) {
+        server.registerMBean(new MetricsMBean(registry), name);
+      }
+    } catch (JMException e) {
+      Logger.getLogger(MetricsExporter.class.getName()).log(Level.WARNING, "Could not register the metrics MBean", e);
+    }
+  }
+
+  private static HttpServer startHttpServer(MetricsRegistry registry, int port) {
+    try {
+      HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+      server.createContext("/metrics", exchange -> serve(registry, exchange));
+      // The JDK server runs handlers on its dispatcher thread without an executor, which is enough for a scraper
+      server.start();
+      Logger.getLogger(MetricsExporter.class.getName()).log(Level.INFO, "Serving metrics at http://{0}:{1,number,#}/metrics",
+          new Object[]{InetAddress.getLoopbackAddress().getHostAddress(), server.getAddress().getPort()});
+      return server;
+    } catch (IOException e) {
+      Logger.getLogger(MetricsExporter.class.getName()).log(Level.WARNING, "Could not serve metrics on port " + port, e);
+      return null;
+    }
+  }
+
+  private static void serve(MetricsRegistry registry, HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      StringBuilder text = new StringBuilder(8 * 1024);
+      registry.writeText(text);
+      byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream output = exchange.getResponseBody()) {
+        output.write(body);
+      }
+    }
+  }
+
+  /**
+   * Exposes the registry as read-only attributes. The attributes are listed anew on every call, so metrics
+   * registered after the MBean show up as well.
+   */
+  private static final class MetricsMBean implements DynamicMBean {
+    private static final String[] HISTOGRAM_SUFFIXES = {".count", ".p50", ".p99", ".max"};
+
+    private final MetricsRegistry registry;
+
+    private MetricsMBean(MetricsRegistry registry) {
+      this.registry = registry;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+      Metric metric = registry.getMetric(attribute);
+      if (metric != null && metric.getType() != Metric.Type.HISTOGRAM) {
+        return MetricsRegistry.valueOf(metric);
+      }
+      int dot = attribute.lastIndexOf('.');
+      Metric histogram = dot < 0 ? null : registry.getMetric(attribute.substring(0, dot));
+      if (histogram instanceof Histogram) {
+        Histogram.Snapshot snapshot = ((Histogram) histogram).snapshot();
+        Long value = switch (attribute.substring(dot)) {
+          case ".count" -> snapshot.getCount();
+          case ".p50" -> snapshot.getValue(0.5);
+          case ".p99" -> snapshot.getValue(0.99);
+          case ".max" -> snapshot.getMax();
+          default -> null;
+        };
+        if (value != null) {
+          return value;
+        }
+      }
+      throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+      throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+      AttributeList list = new AttributeList();
+      for (String attribute : attributes) {
+        try {
+          list.add(new Attribute(attribute, getAttribute(attribute)));
+        } catch (AttributeNotFoundException e) {
+          // Left out, as the contract of getAttributes asks
+        }
+      }
+      return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+      return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+      throw new UnsupportedOperationException("The metrics MBean has no operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+      List<MBeanAttributeInfo> attributes = new ArrayList<>();
+      for (Metric metric : registry.getMetrics()) {
+        if (metric.getType() == Metric.Type.HISTOGRAM) {
+          for (String suffix : HISTOGRAM_SUFFIXES) {
+            attributes.add(new MBeanAttributeInfo(metric.getName() + suffix, "long", metric.getHelp(), true, false, false));
+          }
+        } else {
+          attributes.add(new MBeanAttributeInfo(metric.getName(), "long", metric.getHelp(), true, false, false));
+        }
+      }
+      return new MBeanInfo(MetricsMBean.class.getName(), "Metrics of the file watcher",
+          attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+  }
+}
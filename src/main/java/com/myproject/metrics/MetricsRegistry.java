@@ -0,0 +1,135 @@
+package com.myproject.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * The MetricsRegistry class holds every metric of the watcher by name. Components take their counters and
+ * histograms from it once, when they are created, and only touch those objects on the hot path, so nothing is
+ * looked up or allocated per event. Values a component already keeps for itself are registered as {@link Gauge}s
+ * that are read when the metrics are exported.
+ *
+ * <p>{@link #writeText(StringBuilder)} renders the metrics in the Prometheus text format, the
+ * {@link MetricsExporter} serves them over HTTP and JMX.
+ */
+public final class MetricsRegistry {
+  private static final MetricsRegistry SHARED = new MetricsRegistry();
+  private static final String PREFIX = "filesorter_";
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  // Sorted, so the export is stable from one scrape to the next
+  private final ConcurrentSkipListMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+  /**
+   * @return the registry shared by the whole watcher
+   * */
+  public static MetricsRegistry shared() {
+    return SHARED;
+  }
+
+  /**
+   * Gets a counter, creating it the first time it is asked for
+   * @param name the dotted name of the counter
+   * @param help one line describing what is counted
+   * @return the counter
+   * @throws IllegalArgumentException if the name is taken by a metric of another kind
+   * */
+  public Counter counter(String name, String help) {
+    return get(name, new Counter(name, help), Counter.class);
+  }
+
+  /**
+   * Gets a histogram, creating it the first time it is asked for
+   * @param name the dotted name of the histogram, ending in its unit, e.g. {@code handler.nanos}
+   * @param help one line describing what is recorded
+   * @return the histogram
+   * @throws IllegalArgumentException if the name is taken by a metric of another kind
+   * */
+  public Histogram histogram(String name, String help) {
+    return get(name, new Histogram(name, help), Histogram.class);
+  }
+
+  /**
+   * Registers a value that goes up and down. A gauge registered again under the same name replaces the old one,
+   * so a component that is created again reports its own value.
+   * @param name the dotted name of the gauge
+   * @param help one line describing the value
+   * @param value reads the value
+   * */
+  public void gauge(String name, String help, LongSupplier value) {
+    metrics.put(name, new Gauge(name, help, Metric.Type.GAUGE, value));
+  }
+
+  /**
+   * Registers a count a component already keeps for itself. Like a gauge it replaces a count registered before.
+   * @param name the dotted name of the count
+   * @param help one line describing what is counted
+   * @param value reads the count
+   * */
+  public void counter(String name, String help, LongSupplier value) {
+    metrics.put(name, new Gauge(name, help, Metric.Type.COUNTER, value));
+  }
+
+  public Collection<Metric> getMetrics() {
+    return Collections.unmodifiableCollection(metrics.values());
+  }
+
+  public Metric getMetric(String name) {
+    return metrics.get(name);
+  }
+
+  /**
+   * Renders every metric in the Prometheus text format. Histograms are rendered as summaries with their
+   * quantiles, count, sum and maximum.
+   * @param output the builder the metrics are appended to
+   * */
+  public void writeText(StringBuilder output) {
+    for (Metric metric : metrics.values()) {
+      String name = exportName(metric);
+      output.append("# HELP ").append(name).append(' ').append(metric.getHelp()).append('\n');
+      switch (metric.getType()) {
+        case COUNTER, GAUGE -> {
+          output.append("# TYPE ").append(name).append(' ').append(metric.getType().name().toLowerCase(Locale.ROOT)).append('\n');
+          output.append(name).append(' ').append(valueOf(metric)).append('\n');
+        }
+        case HISTOGRAM -> {
+          Histogram.Snapshot snapshot = ((Histogram) metric).snapshot();
+          output.append("# TYPE ").append(name).append(" summary\n");
+          for (double quantile : QUANTILES) {
+            output.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                .append(snapshot.getValue(quantile)).append('\n');
+          }
+          output.append(name).append("_sum ").append(snapshot.getSum()).append('\n');
+          output.append(name).append("_count ").append(snapshot.getCount()).append('\n');
+          output.append(name).append("_max ").append(snapshot.getMax()).append('\n');
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the current value of a counter or gauge
+   * */
+  static long valueOf(Metric metric) {
+    return metric instanceof Counter counter ? counter.get() : ((Gauge) metric).get();
+  }
+
+  private static String exportName(Metric metric) {
+    String name = PREFIX + metric.getName().replace('.', '_');
+    return metric.getType() == Metric.Type.COUNTER ? name + "_total" : name;
+  }
+
+  private <T extends Metric> T get(String name, T created, Class<T> type) {
+    Metric metric = metrics.putIfAbsent(name, created);
+    if (metric == null) {
+      return created;
+    }
+    if (!type.isInstance(metric)) {
+      throw new IllegalArgumentException("Metric " + name + " is already registered as a " + metric.getType());
+    }
+    return type.cast(metric);
+  }
+}
@@ -0,0 +1,388 @@
+package com.myproject.versioning;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The BaselineIndex class remembers the last known state of every watched file across restarts.
+ * For each file it keeps the size, modification time, file key (the inode on most systems) and content hash,
+ * so on startup the tree can be compared against the index by stat alone and only files that changed while
+ * the watcher was down have to be read.
+ *
+ * <p>The index is an append-only log under {@code versions/}. Every change appends a small text line, and once
+ * the log holds more than twice as many lines as there are live files it is compacted by rewriting only the
+ * live records and swapping the new log in atomically.
+ *
+ * <p>When blobs are committed in batches by the {@link GroupCommitter}, changes are applied in memory at once but
+ * only written to the log with the batch that holds their blobs, after the packs were made durable. A crash can
+ * then never leave the index pointing at a blob that was lost with an uncommitted batch.
+ */
+public final class BaselineIndex {
+  private static final String PUT = "put";
+  private static final String REMOVE = "remove";
+  private static final String NO_FILE_KEY = "-";
+  private static final String SEPARATOR = "\t";
+  // Small logs are never compacted, rewriting them saves nothing
+  private static final int MIN_COMPACTION_RECORDS = 1024;
+
+  private final Path indexPath;
+  private final ConcurrentHashMap<Path, Record> records = new ConcurrentHashMap<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final boolean loaded;
+  // Set for readers such as restore, which must not rewrite the index under a running watcher
+  private final boolean readOnly;
+  private final boolean groupCommitted;
+  // Lines of changes not written yet, guarded by the lock
+  private List<String> pendingLines = new ArrayList<>();
+  private BufferedWriter writer;
+  private long logRecords;
+
+  public BaselineIndex(Path versionsPath) {
+    this(versionsPath, false, false);
+  }
+
+  /**
+   * @param versionsPath the versions folder
+   * @param readOnly true to only read the index, it is then never compacted and cannot be changed
+   * */
+  public BaselineIndex(Path versionsPath, boolean readOnly) {
+    this(versionsPath, readOnly, false);
+  }
+
+  /**
+   * @param versionsPath the versions folder
+   * @param readOnly true to only read the index, it is then never compacted and cannot be changed
+   * @param groupCommitted true if changes are buffered until a {@link GroupCommitter} writes them
+   * */
+  public BaselineIndex(Path versionsPath, boolean readOnly, boolean groupCommitted) {
+    this.indexPath = versionsPath.resolve("baseline.idx");
+    this.readOnly = readOnly;
+    this.groupCommitted = groupCommitted;
+    this.loaded = load();
+    if (!readOnly) {
+      compactIfNeeded();
+    }
+  }
+
+  /**
+   * Checks if the index was read back from an earlier run, in which case the tree can be compared against it
+   * @return true if an index with at least one file was found on startup
+   * */
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Gets the last known state of a file
+   * @param path the absolute path of the file
+   * @return the record or null if the file is not in the index
+   * */
+  public Record get(Path path) {
+    return records.get(path);
+  }
+
+  /**
+   * Records the current state of a file
+   * @param path the absolute path of the file
+   * @param fingerprint the fingerprint of the content the file has now
+   * @param fileKey the file key of the file, or null if the file system has none
+   * */
+  public void put(Path path, Fingerprint fingerprint, Object fileKey) {
+    Record record = new Record(fingerprint, fileKey == null ? NO_FILE_KEY : fileKey.toString());
+    // Under the lock, so a compaction never sees a record whose line is not pending yet
+    lock.lock();
+    try {
+      if (record.equals(records.put(path, record))) {
+        return;
+      }
+      append(PUT + SEPARATOR + fingerprint.getSize() + SEPARATOR + fingerprint.getLastModified() + SEPARATOR
+          + record.fileKey + SEPARATOR + fingerprint.getHash() + SEPARATOR + path);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops a file from the index
+   * @param path the absolute path of the file
+   * */
+  public void remove(Path path) {
+    lock.lock();
+    try {
+      if (records.remove(path) != null) {
+        append(REMOVE + SEPARATOR + "-" + SEPARATOR + "-" + SEPARATOR + "-" + SEPARATOR + "-" + SEPARATOR + path);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes the lines of the changes made since the last batch, for the group committer
+   * @return the lines in the order the changes were made
+   * */
+  List<String> takePending() {
+    lock.lock();
+    try {
+      List<String> lines = pendingLines;
+      pendingLines = new ArrayList<>();
+      return lines;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes a batch of lines taken by {@link #takePending()}, once the blobs they point at are durable
+   * @param lines the lines to be written
+   * */
+  void commit(List<String> lines) {
+    if (lines.isEmpty()) {
+      return;
+    }
+    lock.lock();
+    try {
+      for (String line : lines) {
+        write(line);
+      }
+      writer.flush();
+      compactIfNeeded();
+    } catch (IOException e) {
+      Logger.getLogger(BaselineIndex.class.getName()).log(Level.SEVERE, "Could not write baseline index: " + indexPath, e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Puts a batch of lines taken by {@link #takePending()} back in front of the lines of later changes
+   * @param lines the lines whose blobs could not be committed
+   * */
+  void requeue(List<String> lines) {
+    lock.lock();
+    try {
+      List<String> requeued = new ArrayList<>(lines.size() + pendingLines.size());
+      requeued.addAll(lines);
+      requeued.addAll(pendingLines);
+      pendingLines = requeued;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Set<Path> paths() {
+    return records.keySet();
+  }
+
+  public int size() {
+    return records.size();
+  }
+
+  public Path getIndexPath() {
+    return indexPath;
+  }
+
+  /**
+   * Flushes and closes the log. Later changes reopen it.
+   * */
+  public void close() {
+    lock.lock();
+    try {
+      if (writer != null) {
+        writer.close();
+        writer = null;
+      }
+    } catch (IOException e) {
+      Logger.getLogger(BaselineIndex.class.getName()).log(Level.SEVERE, "Could not close baseline index: " + indexPath, e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private boolean load() {
+    try (BufferedReader reader = Files.newBufferedReader(indexPath, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.isBlank()) {
+          continue;
+        }
+        logRecords++;
+        try {
+          replay(line);
+        } catch (IllegalArgumentException e) {
+          // Most likely the last line of a log that was cut short by a crash
+          Logger.getLogger(BaselineIndex.class.getName()).log(Level.WARNING, "Skipping malformed baseline index line: {0}", line);
+        }
+      }
+    } catch (NoSuchFileException e) {
+      return false;
+    } catch (IOException e) {
+      Logger.getLogger(BaselineIndex.class.getName()).log(Level.SEVERE, "Could not read baseline index: " + indexPath, e);
+      records.clear();
+      return false;
+    }
+    return !records.isEmpty();
+  }
+
+  private void replay(String line) {
+    // The path goes last so that any separator inside it stays part of the path
+    String[] parts = line.split(SEPARATOR, 6);
+    if (parts.length != 6) {
+      throw new IllegalArgumentException("Malformed baseline index line: " + line);
+    }
+    Path path = Paths.get(parts[5]);
+    switch (parts[0]) {
+      case PUT -> {
+        try {
+          Fingerprint fingerprint = new Fingerprint(Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[4]);
+          records.put(path, new Record(fingerprint, parts[3]));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("Malformed baseline index line: " + line, e);
+        }
+      }
+      case REMOVE -> records.remove(path);
+      default -> throw new IllegalArgumentException("Unknown baseline index operation: " + parts[0]);
+    }
+  }
+
+  private void append(String line) {
+    if (readOnly) {
+      throw new IllegalStateException("Baseline index is open read-only: " + indexPath);
+    }
+    lock.lock();
+    try {
+      if (groupCommitted) {
+        pendingLines.add(line);
+        return;
+      }
+      write(line);
+      writer.flush();
+      compactIfNeeded();
+    } catch (IOException e) {
+      Logger.getLogger(BaselineIndex.class.getName()).log(Level.SEVERE, "Could not write baseline index: " + indexPath, e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Appends a line to the log without flushing it. Must be called while holding the lock.
+   * */
+  private void write(String line) throws IOException {
+    if (writer == null) {
+      writer = Files.newBufferedWriter(indexPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+    writer.write(line);
+    writer.newLine();
+    logRecords++;
+  }
+
+  /**
+   * Rewrites the log with only the live records once it has grown to more than twice their number. Not while
+   * changes are pending, the live records would include them before their blobs are committed.
+   * */
+  private void compactIfNeeded() {
+    lock.lock();
+    try {
+      if (logRecords < MIN_COMPACTION_RECORDS || logRecords <= 2L * records.size() || !pendingLines.isEmpty()) {
+        return;
+      }
+      if (writer != null) {
+        writer.close();
+        writer = null;
+      }
+
+      Path tempPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+      long written = 0;
+      try (BufferedWriter compacted = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+        for (Map.Entry<Path, Record> entry : records.entrySet()) {
+          Fingerprint fingerprint = entry.getValue().fingerprint;
+          compacted.write(PUT + SEPARATOR + fingerprint.getSize() + SEPARATOR + fingerprint.getLastModified() + SEPARATOR
+              + entry.getValue().fileKey + SEPARATOR + fingerprint.getHash() + SEPARATOR + entry.getKey());
+          compacted.newLine();
+          written++;
+        }
+      }
+      Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      logRecords = written;
+    } catch (IOException e) {
+      // The old log is still complete, so the index keeps working uncompacted
+      Logger.getLogger(BaselineIndex.class.getName()).log(Level.SEVERE, "Could not compact baseline index: " + indexPath, e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * The last known state of a single file
+   */
+  public static final class Record {
+    private final Fingerprint fingerprint;
+    private final String fileKey;
+
+    private Record(Fingerprint fingerprint, String fileKey) {
+      this.fingerprint = fingerprint;
+      this.fileKey = fileKey;
+    }
+
+    /**
+     * Checks if a file still looks the way it did when it was recorded, without reading it
+     * @param attributes the current attributes of the file
+     * @return true if size, modification time and file key are all unchanged
+     * */
+    public boolean matches(BasicFileAttributes attributes) {
+      Object fileKey = attributes.fileKey();
+      return fingerprint.matches(attributes.size(), attributes.lastModifiedTime().toMillis())
+          && (fileKey == null || NO_FILE_KEY.equals(this.fileKey) || this.fileKey.equals(fileKey.toString()));
+    }
+
+    public Fingerprint getFingerprint() {
+      return fingerprint;
+    }
+
+    public String getFileKey() {
+      return fileKey;
+    }
+
+    /**
+     * @return false if the file system had no file key for the file
+     * */
+    public boolean hasFileKey() {
+      return !NO_FILE_KEY.equals(fileKey);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Record record)) {
+        return false;
+      }
+      return fileKey.equals(record.fileKey)
+          && fingerprint.getSize() == record.fingerprint.getSize()
+          && fingerprint.getLastModified() == record.fingerprint.getLastModified()
+          && fingerprint.getHash().equals(record.fingerprint.getHash());
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(fileKey, fingerprint.getHash(), fingerprint.getSize(), fingerprint.getLastModified());
+    }
+  }
+}
@@ -0,0 +1,324 @@
+package com.myproject.versioning;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.myproject.metrics.Counter;
+import com.myproject.metrics.MetricsRegistry;
+
+/**
+ * The BaselineStore class keeps the last known content of every watched file within a fixed memory budget.
+ * Recently touched content is held off-heap in direct buffers. When the budget is exceeded the least recently
+ * used content is written to the {@link BlobStore} and only its hash is kept, so the baseline of a large tree
+ * costs a few bytes per file on the heap instead of the whole file.
+ *
+ * <p>Every entry also carries the {@link Fingerprint} of the content, so a file can be checked for changes
+ * by stat and hash without touching the cached content at all.
+ */
+public final class BaselineStore {
+
+  private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<>();
+  // Entries whose content is resident, in least recently used order. Guarded by the lock.
+  private final LinkedHashMap<Path, Entry> residentEntries = new LinkedHashMap<>(16, 0.75f, true);
+  // A lock rather than a monitor, so virtual threads evicting to disk do not pin their carrier
+  private final ReentrantLock lock = new ReentrantLock();
+  private final BlobStore blobStore;
+  private final long memoryBudget;
+  private long residentBytes;
+  private final Counter hits = MetricsRegistry.shared().counter("baseline.hits",
+      "Baseline reads served from the off-heap cache");
+  private final Counter misses = MetricsRegistry.shared().counter("baseline.misses",
+      "Baseline reads of content that had been evicted to the blob store");
+
+  public BaselineStore(BlobStore blobStore, long memoryBudget) {
+    this.blobStore = blobStore;
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * Replaces the baseline content of a file
+   * @param path the absolute path of the file
+   * @param content the current content of the file
+   * @param fingerprint the fingerprint of the content, hashed by the caller when it read the content
+   * @param stored true if the content is already in the blob store, so it is never written there again
+   * */
+  public void put(Path path, byte[] content, Fingerprint fingerprint, boolean stored) {
+    Entry entry = new Entry(fingerprint);
+    entry.stored = stored;
+    lock.lock();
+    try {
+      Entry previous = entries.put(path, entry);
+      release(path, previous);
+
+      // Content that can never fit the budget goes straight to disk
+      if (content.length > memoryBudget && persist(path, entry, content)) {
+        return;
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+      buffer.put(content).flip();
+      entry.content = buffer;
+      residentEntries.put(path, entry);
+      residentBytes += content.length;
+      evict();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Sets the baseline of a file whose content is already in the blob store, without reading the file.
+   * The content is read back from the blob store the first time it is needed.
+   * @param path the absolute path of the file
+   * @param fingerprint the fingerprint of the stored content
+   * */
+  public void putStored(Path path, Fingerprint fingerprint) {
+    Entry entry = new Entry(fingerprint);
+    entry.stored = true;
+    lock.lock();
+    try {
+      release(path, entries.put(path, entry));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the baseline content of a file, reading it back from the blob store if it was evicted
+   * @param path the absolute path of the file
+   * @return the content of the file or null if the file has no baseline
+   * */
+  public byte[] get(Path path) {
+    Entry entry = entries.get(path);
+    if (entry == null) {
+      return null;
+    }
+
+    lock.lock();
+    try {
+      if (entry.content != null) {
+        // Touch the entry so it becomes the most recently used one
+        residentEntries.get(path);
+        byte[] content = new byte[entry.content.remaining()];
+        entry.content.duplicate().get(content);
+        hits.increment();
+        return content;
+      }
+    } finally {
+      lock.unlock();
+    }
+    misses.increment();
+
+    try {
+      return blobStore.read(entry.fingerprint.getHash());
+    } catch (IOException e) {
+      Logger.getLogger(BaselineStore.class.getName()).log(Level.SEVERE, "Could not read evicted baseline for: " + path, e);
+      return null;
+    }
+  }
+
+  /**
+   * Makes sure the baseline content of a file is stored in the blob store. Content that is stored already, which
+   * is every baseline set from a stored version, is not touched.
+   * @param path the absolute path of the file
+   * @return the hash of the baseline content or null if the file has no baseline
+   * @throws IOException if the content could not be written to the blob store
+   * */
+  public String persist(Path path) throws IOException {
+    Entry entry = entries.get(path);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.stored) {
+      return entry.fingerprint.getHash();
+    }
+
+    ByteBuffer content;
+    lock.lock();
+    try {
+      content = entry.content == null ? null : entry.content.duplicate();
+    } finally {
+      lock.unlock();
+    }
+    if (content != null) {
+      hits.increment();
+      byte[] bytes = new byte[content.remaining()];
+      content.get(bytes);
+      blobStore.put(bytes, entry.fingerprint.getHash());
+      entry.stored = true;
+    }
+    return entry.fingerprint.getHash();
+  }
+
+  /**
+   * Gets the fingerprint of the baseline content of a file without touching the content itself
+   * @param path the absolute path of the file
+   * @return the fingerprint or null if the file has no baseline
+   * */
+  public Fingerprint fingerprintOf(Path path) {
+    Entry entry = entries.get(path);
+    return entry == null ? null : entry.fingerprint;
+  }
+
+  /**
+   * Gets the hash of the baseline content of a file without touching the content itself
+   * @param path the absolute path of the file
+   * @return the hash or null if the file has no baseline
+   * */
+  public String hashOf(Path path) {
+    Fingerprint fingerprint = fingerprintOf(path);
+    return fingerprint == null ? null : fingerprint.getHash();
+  }
+
+  /**
+   * Gets the size of the baseline content of a file
+   * @param path the absolute path of the file
+   * @return the size in bytes or -1 if the file has no baseline
+   * */
+  public long sizeOf(Path path) {
+    Fingerprint fingerprint = fingerprintOf(path);
+    return fingerprint == null ? -1 : fingerprint.getSize();
+  }
+
+  /**
+   * Records a new modification time for a file whose content turned out to be unchanged,
+   * so the next stat of the file matches the fingerprint again
+   * @param path the absolute path of the file
+   * @param lastModified the current modification time of the file in epoch milliseconds
+   * */
+  public void refresh(Path path, long lastModified) {
+    Entry entry = entries.get(path);
+    if (entry != null) {
+      entry.fingerprint = entry.fingerprint.withLastModified(lastModified);
+    }
+  }
+
+  public boolean contains(Path path) {
+    return entries.containsKey(path);
+  }
+
+  /**
+   * Drops the baseline of a file
+   * @param path the absolute path of the file
+   * */
+  public void remove(Path path) {
+    lock.lock();
+    try {
+      release(path, entries.remove(path));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Moves the baseline of a file to a new path, e.g. because the file was renamed. Resident content stays
+   * resident, so nothing is read back or written to the blob store.
+   * @param source the absolute path the file had
+   * @param target the absolute path the file has now. Its own baseline, if any, is replaced.
+   * @return true if the source had a baseline
+   * */
+  public boolean rename(Path source, Path target) {
+    lock.lock();
+    try {
+      Entry entry = entries.remove(source);
+      if (entry == null) {
+        return false;
+      }
+      release(target, entries.put(target, entry));
+      if (entry.content != null) {
+        residentEntries.remove(source);
+        residentEntries.put(target, entry);
+      }
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Set<Path> paths() {
+    return entries.keySet();
+  }
+
+  public long getResidentBytes() {
+    lock.lock();
+    try {
+      return residentBytes;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Evicts the least recently used content until the resident content fits the memory budget.
+   * Must be called while holding the lock.
+   * */
+  private void evict() {
+    Iterator<Map.Entry<Path, Entry>> iterator = residentEntries.entrySet().iterator();
+    while (residentBytes > memoryBudget && iterator.hasNext()) {
+      Map.Entry<Path, Entry> eldest = iterator.next();
+      Entry entry = eldest.getValue();
+      byte[] content = entry.stored ? null : new byte[entry.content.remaining()];
+      if (content != null) {
+        entry.content.duplicate().get(content);
+      }
+      if (!persist(eldest.getKey(), entry, content)) {
+        // Keep the content in memory rather than lose the only copy of it
+        return;
+      }
+      residentBytes -= entry.fingerprint.getSize();
+      entry.content = null;
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Writes evicted content to the blob store unless it is stored already. Must be called while holding the lock.
+   * @return false if the content could not be written
+   * */
+  private boolean persist(Path path, Entry entry, byte[] content) {
+    if (entry.stored) {
+      return true;
+    }
+    try {
+      blobStore.put(content, entry.fingerprint.getHash());
+      entry.stored = true;
+      return true;
+    } catch (IOException e) {
+      Logger.getLogger(BaselineStore.class.getName()).log(Level.SEVERE, "Could not evict baseline for: " + path, e);
+      return false;
+    }
+  }
+
+  private void release(Path path, Entry entry) {
+    if (entry != null && entry.content != null) {
+      residentEntries.remove(path);
+      residentBytes -= entry.fingerprint.getSize();
+      entry.content = null;
+    }
+  }
+
+  private static final class Entry {
+    private volatile Fingerprint fingerprint;
+    // Off-heap copy of the content, null once the content has been evicted to the blob store
+    private ByteBuffer content;
+    // Set once the content is known to be in the blob store
+    private volatile boolean stored;
+
+    private Entry(Fingerprint fingerprint) {
+      this.fingerprint = fingerprint;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package com.myproject.versioning;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A BlobCodec compresses the content of blobs while they are written and decompresses it while they are read.
+ * Codecs work on streams, so no blob is ever held in memory as a whole just to compress it.
+ * Every blob records the id of its codec, so blobs written with different codecs can live side by side.
+ *
+ * @see BlobCodecs
+ */
+public interface BlobCodec {
+
+  /**
+   * @return the id stored in the header of every blob written with this codec
+   * */
+  byte getId();
+
+  /**
+   * @return the name the codec is selected by in the {@code filesorter.codec} system property
+   * */
+  String getName();
+
+  /**
+   * Wraps a stream so everything written to it is compressed
+   * @param output the stream the compressed bytes are written to
+   * @return the stream to write the uncompressed content to. Closing it closes the wrapped stream.
+   * @throws IOException if the stream could not be prepared
+   * */
+  OutputStream compress(OutputStream output) throws IOException;
+
+  /**
+   * Wraps a stream so everything read from it is decompressed
+   * @param input the stream the compressed bytes are read from
+   * @return the stream to read the uncompressed content from. Closing it closes the wrapped stream.
+   * @throws IOException if the stream could not be prepared
+   * */
+  InputStream decompress(InputStream input) throws IOException;
+}
@@ -0,0 +1,176 @@
+package com.myproject.versioning;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The BlobCodecs class is the registry of the codecs blobs can be compressed with.
+ * It ships with {@link #NONE}, the JDK's {@link #DEFLATE} and {@link #GZIP}, and the pure-Java {@link Lz4Codec}.
+ * Further codecs can be plugged in with {@link #register(BlobCodec)} before the versioner is started.
+ */
+public final class BlobCodecs {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Stores content as it is */
+  public static final BlobCodec NONE = new BlobCodec() {
+    @Override
+    public byte getId() {
+      return 0;
+    }
+
+    @Override
+    public String getName() {
+      return "none";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream output) {
+      return output;
+    }
+
+    @Override
+    public InputStream decompress(InputStream input) {
+      return input;
+    }
+  };
+
+  /** Raw deflate at the fastest level, the cheapest of the JDK codecs */
+  public static final BlobCodec DEFLATE = new BlobCodec() {
+    @Override
+    public byte getId() {
+      return 1;
+    }
+
+    @Override
+    public String getName() {
+      return "deflate";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream output) {
+      Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+      return new DeflaterOutputStream(output, deflater, BUFFER_SIZE) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            // The stream only ends deflaters it created itself
+            deflater.end();
+          }
+        }
+      };
+    }
+
+    @Override
+    public InputStream decompress(InputStream input) {
+      Inflater inflater = new Inflater(true);
+      return new InflaterInputStream(input, inflater, BUFFER_SIZE) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inflater.end();
+          }
+        }
+      };
+    }
+  };
+
+  /** Gzip at the default level, readable by any gzip tool */
+  public static final BlobCodec GZIP = new BlobCodec() {
+    @Override
+    public byte getId() {
+      return 2;
+    }
+
+    @Override
+    public String getName() {
+      return "gzip";
+    }
+
+    @Override
+    public OutputStream compress(OutputStream output) throws IOException {
+      return new GZIPOutputStream(output, BUFFER_SIZE);
+    }
+
+    @Override
+    public InputStream decompress(InputStream input) throws IOException {
+      return new GZIPInputStream(input, BUFFER_SIZE);
+    }
+  };
+
+  /** LZ4 block compression, much faster than deflate at a somewhat lower ratio */
+  public static final BlobCodec LZ4 = new Lz4Codec();
+
+  private static final Map<Byte, BlobCodec> CODECS_BY_ID = new ConcurrentHashMap<>();
+  private static final Map<String, BlobCodec> CODECS_BY_NAME = new ConcurrentHashMap<>();
+
+  static {
+    register(NONE);
+    register(DEFLATE);
+    register(GZIP);
+    register(LZ4);
+  }
+
+  private BlobCodecs() {
+  }
+
+  /**
+   * Makes a codec available for writing and reading blobs
+   * @param codec the codec to be registered
+   * @throws IllegalArgumentException if another codec already uses the same id or name
+   * */
+  public static void register(BlobCodec codec) {
+    BlobCodec existing = CODECS_BY_ID.putIfAbsent(codec.getId(), codec);
+    if (existing != null && existing != codec) {
+      throw new IllegalArgumentException("Codec id " + codec.getId() + " is already used by " + existing.getName());
+    }
+    CODECS_BY_NAME.put(codec.getName().toLowerCase(Locale.ROOT), codec);
+  }
+
+  /**
+   * Finds the codec a blob was written with
+   * @param id the codec id from the blob header
+   * @return the codec
+   * @throws IOException if no codec with this id is registered
+   * */
+  public static BlobCodec forId(byte id) throws IOException {
+    BlobCodec codec = CODECS_BY_ID.get(id);
+    if (codec == null) {
+      throw new IOException("Unknown blob codec id: " + id);
+    }
+    return codec;
+  }
+
+  /**
+   * Finds a codec by its name
+   * @param name the name of the codec, case insensitive
+   * @return the codec
+   * @throws IllegalArgumentException if no codec with this name is registered
+   * */
+  public static BlobCodec forName(String name) {
+    BlobCodec codec = CODECS_BY_NAME.get(name.trim().toLowerCase(Locale.ROOT));
+    if (codec == null) {
+      throw new IllegalArgumentException("Unknown blob codec: " + name + ", expected one of " + CODECS_BY_NAME.keySet());
+    }
+    return codec;
+  }
+
+  public static Collection<BlobCodec> all() {
+    return Collections.unmodifiableCollection(CODECS_BY_ID.values());
+  }
+}
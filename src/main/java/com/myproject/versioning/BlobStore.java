@@ -0,0 +1,707 @@
+package com.myproject.versioning;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.myproject.helper.HashHelper;
+
+/**
+ * The BlobStore class keeps the content of versioned files addressed by its hash.
+ * Every distinct content is written once under {@code versions/blobs/<xx>/<hash>} no matter
+ * how many files, events or days refer to it.
+ *
+ * <p>When a {@link DeltaCodec} is given, modified versions can be stored as a delta against the version before
+ * them in {@code <hash>.delta}. Every {@code keyframeInterval} versions the content is stored in full again, so
+ * reading a version never has to walk back through more than that many deltas.
+ *
+ * <p>Every blob starts with a five byte header, a magic number followed by the id of the {@link BlobCodec} the
+ * rest of the blob is compressed with. Blobs are compressed while they are written and decompressed while they are
+ * read, so the codec can change between runs without rewriting anything.
+ *
+ * <p>Large files can instead be stored as a snapshot in {@code <hash>.raw}, a plain copy of the file without a
+ * header made with the best {@link SnapshotStrategy} the versions folder supports. This is done when the file system
+ * can clone the file without copying it. Otherwise the file is streamed into a blob, so it is read only once to be
+ * hashed and stored, even when blobs are not compressed.
+ *
+ * <p>With a {@link PackStore}, small blobs and deltas are appended to a pack instead of getting a file each.
+ * They are written exactly as they would be to their own file, so reading them differs only in where the bytes
+ * come from. Blobs stored as files by earlier runs stay where they are.
+ */
+public final class BlobStore {
+  private static final int BLOB_MAGIC = 0x46534231;
+  private static final int DELTA_MAGIC = 0x46534431;
+  private static final String DELTA_SUFFIX = ".delta";
+  private static final String RAW_SUFFIX = ".raw";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int HEADER_SIZE = 5;
+
+  private final Path blobsPath;
+  private final BlobCodec blobCodec;
+  private final DeltaCodec deltaCodec;
+  private final int keyframeInterval;
+  private final List<SnapshotStrategy> snapshotStrategies;
+  // Null if every blob gets a file of its own
+  private final PackStore packStore;
+  // Writers share the lock, the garbage collector takes it exclusively while it deletes a batch of blobs
+  private final ReentrantReadWriteLock collectionLock = new ReentrantReadWriteLock();
+
+  public BlobStore(Path versionsPath) {
+    this(versionsPath, BlobCodecs.NONE, null, 0);
+  }
+
+  public BlobStore(Path versionsPath, BlobCodec blobCodec, DeltaCodec deltaCodec, int keyframeInterval) {
+    this(versionsPath, blobCodec, deltaCodec, keyframeInterval, SnapshotStrategies.FALLBACK);
+  }
+
+  public BlobStore(Path versionsPath, BlobCodec blobCodec, DeltaCodec deltaCodec, int keyframeInterval,
+                   List<SnapshotStrategy> snapshotStrategies) {
+    this(versionsPath, blobCodec, deltaCodec, keyframeInterval, snapshotStrategies, null);
+  }
+
+  public BlobStore(Path versionsPath, BlobCodec blobCodec, DeltaCodec deltaCodec, int keyframeInterval,
+                   List<SnapshotStrategy> snapshotStrategies, PackStore packStore) {
+    this.blobsPath = versionsPath.resolve("blobs");
+    this.blobCodec = blobCodec;
+    this.deltaCodec = deltaCodec;
+    this.keyframeInterval = keyframeInterval;
+    this.snapshotStrategies = List.copyOf(snapshotStrategies);
+    this.packStore = packStore;
+  }
+
+  /**
+   * Stores content in the blob store if it is not already present
+   * @param content the bytes to be stored
+   * @return the hash the content is stored under
+   * @throws IOException if the blob could not be written
+   * */
+  public String put(byte[] content) throws IOException {
+    return put(content, HashHelper.hash(content));
+  }
+
+  /**
+   * Stores content whose hash the caller already computed, so it is not hashed again
+   * @param content the bytes to be stored
+   * @param hash the hash of the content, as by {@link HashHelper#hash(byte[])}
+   * @return the hash the content is stored under
+   * @throws IOException if the blob could not be written
+   * */
+  public String put(byte[] content, String hash) throws IOException {
+    collectionLock.readLock().lock();
+    try {
+      if (!touch(hash, content.length)) {
+        store(hash, PackStore.FULL, content.length, output -> output.write(content));
+      }
+    } finally {
+      collectionLock.readLock().unlock();
+    }
+    return hash;
+  }
+
+  /**
+   * Stores the content of a file by streaming it through a fixed-size buffer, so memory use does not depend on the
+   * size of the file. The content is compressed into a temporary blob while it is hashed and moved into place
+   * under its hash once complete. Large files are always stored in full, never as a delta.
+   * @param file the file whose content is stored
+   * @return the hash the content is stored under
+   * @throws IOException if the file could not be read or the blob could not be written
+   * */
+  public String putFile(Path file) throws IOException {
+    return putFile(file, null);
+  }
+
+  /**
+   * Stores the content of a file unless it turns out to be content the caller already has, e.g. the baseline of
+   * a file that was touched but not changed. The file is read once, for hashing and storing alike.
+   * @param file the file whose content is stored
+   * @param knownHash the hash of content that is not stored again, or null to always store
+   * @return the hash of the content, equal to {@code knownHash} if nothing was stored
+   * @throws IOException if the file could not be read or the blob could not be written
+   * */
+  public String putFile(Path file, String knownHash) throws IOException {
+    SnapshotStrategy snapshotStrategy = SnapshotStrategies.bestForMutable(snapshotStrategies);
+    if (snapshotStrategy != null && snapshotStrategy.isCopyFree()) {
+      return putSnapshot(file, knownHash);
+    }
+
+    Files.createDirectories(blobsPath);
+    // Temporary blobs sit next to the fan-out folders, where the garbage collector never looks
+    Path tempPath = Files.createTempFile(blobsPath, "stream", ".tmp");
+    try {
+      MessageDigest digest = HashHelper.newDigest();
+      try (InputStream input = new DigestInputStream(Files.newInputStream(file), digest);
+           DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath), BUFFER_SIZE))) {
+        output.writeInt(BLOB_MAGIC);
+        output.writeByte(blobCodec.getId());
+        try (OutputStream compressed = blobCodec.compress(output)) {
+          input.transferTo(compressed);
+        }
+      }
+      String hash = HashHelper.toHex(digest.digest());
+      if (!hash.equals(knownHash)) {
+        moveIntoPlace(tempPath, hash, resolve(hash));
+      }
+      return hash;
+    } finally {
+      Files.deleteIfExists(tempPath);
+    }
+  }
+
+  /**
+   * Stores the content of a file as a snapshot without a header. The snapshot is hashed rather than the file,
+   * so the hash always matches what was stored even if the file is written to meanwhile.
+   * @param file the file whose content is stored
+   * @param knownHash the hash of content that is not stored again, or null to always store
+   * @return the hash of the content
+   * @throws IOException if the file could not be snapshotted
+   * */
+  private String putSnapshot(Path file, String knownHash) throws IOException {
+    Files.createDirectories(blobsPath);
+    Path tempPath = Files.createTempFile(blobsPath, "snapshot", ".tmp");
+    try {
+      // The watched file can be written in place at any time, so it is never linked into the store
+      SnapshotStrategies.snapshot(snapshotStrategies, file, tempPath, false);
+      String hash = HashHelper.hash(tempPath);
+      if (!hash.equals(knownHash)) {
+        moveIntoPlace(tempPath, hash, resolveRaw(hash));
+      }
+      return hash;
+    } finally {
+      Files.deleteIfExists(tempPath);
+    }
+  }
+
+  /**
+   * Moves a complete temporary blob to its place, unless the content is already stored
+   * */
+  private void moveIntoPlace(Path tempPath, String hash, Path blobPath) throws IOException {
+    collectionLock.readLock().lock();
+    try {
+      if (!touch(hash)) {
+        Files.createDirectories(blobPath.getParent());
+        Files.move(tempPath, blobPath, StandardCopyOption.ATOMIC_MOVE);
+        // The blob keeps the time the temporary file was written, a collection may have started since then
+        touch(hash);
+      }
+    } catch (FileAlreadyExistsException e) {
+      // Another thread stored the same content first, the temporary copy is dropped by the caller
+    } finally {
+      collectionLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Stores a new version of a file. When deltas are enabled the content is stored as a delta against the
+   * previous version, unless the chain of deltas behind that version is already {@code keyframeInterval} long
+   * or the delta would not be smaller than the content.
+   * @param content the bytes of the new version
+   * @param baseHash the hash of the previous version, which must already be stored, or null
+   * @param base the bytes of the previous version, or null if they are not at hand
+   * @return the hash the content is stored under
+   * @throws IOException if the blob could not be written
+   * */
+  public String putVersion(byte[] content, String baseHash, byte[] base) throws IOException {
+    return putVersion(content, HashHelper.hash(content), baseHash, base);
+  }
+
+  /**
+   * Stores a new version of a file whose hash the caller already computed, see {@link #putVersion(byte[], String, byte[])}
+   * @param content the bytes of the new version
+   * @param hash the hash of the content, as by {@link HashHelper#hash(byte[])}
+   * @param baseHash the hash of the previous version, which must already be stored, or null
+   * @param base the bytes of the previous version, or null if they are not at hand
+   * @return the hash the content is stored under
+   * @throws IOException if the blob could not be written
+   * */
+  public String putVersion(byte[] content, String hash, String baseHash, byte[] base) throws IOException {
+    if (deltaCodec == null || baseHash == null || base == null) {
+      return put(content, hash);
+    }
+
+    collectionLock.readLock().lock();
+    try {
+      if (touch(hash, content.length)) {
+        return hash;
+      }
+
+      int depth = chainDepth(baseHash) + 1;
+      byte[] delta = depth >= keyframeInterval ? null : deltaCodec.encode(base, content);
+      if (delta == null || delta.length >= content.length) {
+        store(hash, PackStore.FULL, content.length, output -> output.write(content));
+        return hash;
+      }
+
+      store(hash, PackStore.DELTA, delta.length, output -> {
+        DataOutputStream deltaOutput = new DataOutputStream(output);
+        deltaOutput.writeInt(DELTA_MAGIC);
+        deltaOutput.writeUTF(baseHash);
+        deltaOutput.writeInt(depth);
+        deltaOutput.write(delta);
+        deltaOutput.flush();
+      });
+      return hash;
+    } finally {
+      collectionLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Gets the blob a delta was computed against
+   * @param hash the hash of the content
+   * @return the hash of the base of the delta, or null if the content is stored in full
+   * @throws IOException if the delta could not be read
+   * */
+  public String deltaBase(String hash) throws IOException {
+    if (!isDelta(hash)) {
+      return null;
+    }
+    try (DataInputStream input = openDelta(hash)) {
+      return input.readUTF();
+    }
+  }
+
+  /**
+   * Gets the number of bytes a blob takes on disk
+   * @param hash the hash of the content
+   * @return the size of the blob or delta, 0 if it is not stored
+   * */
+  public long sizeOf(String hash) {
+    long packedSize = packStore == null ? 0 : packStore.sizeOf(hash);
+    if (packedSize > 0) {
+      return packedSize;
+    }
+    try {
+      for (Path blobPath : new Path[]{resolve(hash), resolveRaw(hash)}) {
+        if (Files.exists(blobPath)) {
+          return Files.size(blobPath);
+        }
+      }
+      return Files.size(resolveDelta(hash));
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Deletes blobs that are no longer referenced. Storing content waits while a batch is deleted, and a blob
+   * that was stored or stored again since the collection started is left alone, so content handed out by a
+   * concurrent {@link #put(byte[])} is never deleted.
+   * @param hashes the hashes of the blobs to be deleted
+   * @param storedBefore only blobs last stored before this time, in epoch milliseconds, are deleted
+   * @return the number of bytes freed
+   * */
+  public long delete(Collection<String> hashes, long storedBefore) {
+    long freed = 0;
+    collectionLock.writeLock().lock();
+    try {
+      for (String hash : hashes) {
+        freed += deleteIfStoredBefore(resolve(hash), storedBefore);
+        freed += deleteIfStoredBefore(resolveDelta(hash), storedBefore);
+        freed += deleteIfStoredBefore(resolveRaw(hash), storedBefore);
+        if (packStore != null) {
+          freed += packStore.delete(hash, storedBefore);
+        }
+      }
+    } catch (IOException e) {
+      Logger.getLogger(BlobStore.class.getName()).log(Level.WARNING, "Could not commit deletions to the packs", e);
+    } finally {
+      collectionLock.writeLock().unlock();
+    }
+    return freed;
+  }
+
+  /**
+   * Reads the content stored under a hash, applying deltas back to the closest full version if needed
+   * @param hash the hash of the content
+   * @return the stored bytes
+   * @throws IOException if the blob does not exist or could not be read
+   * */
+  public byte[] read(String hash) throws IOException {
+    Path rawPath = resolveRaw(hash);
+    if (Files.exists(rawPath)) {
+      return Files.readAllBytes(rawPath);
+    }
+    if (!isDelta(hash)) {
+      try (InputStream input = openFull(hash)) {
+        return input.readAllBytes();
+      }
+    }
+
+    try (DataInputStream input = openDelta(hash)) {
+      String baseHash = input.readUTF();
+      input.readInt();
+      byte[] base = read(baseHash);
+      ByteArrayOutputStream output = new ByteArrayOutputStream(base.length);
+      DeltaCodec.decode(base, input, output);
+      return output.toByteArray();
+    }
+  }
+
+  /**
+   * Opens the content stored under a hash for reading. Content stored in full is decompressed while it is read,
+   * content stored as a delta is rebuilt in memory first.
+   * @param hash the hash of the content
+   * @return a stream of the stored bytes
+   * @throws IOException if the blob does not exist or could not be read
+   * */
+  public InputStream open(String hash) throws IOException {
+    Path rawPath = resolveRaw(hash);
+    if (Files.exists(rawPath)) {
+      return new BufferedInputStream(Files.newInputStream(rawPath), BUFFER_SIZE);
+    }
+    if (!isDelta(hash)) {
+      return openFull(hash);
+    }
+    return new ByteArrayInputStream(read(hash));
+  }
+
+  /**
+   * Copies the content stored under a hash to a channel. Content stored in full without compression is transferred
+   * straight from the blob file past its header, which the operating system can do without copying it through the
+   * heap. Compressed content is decompressed and deltas are rebuilt while they are copied.
+   * @param hash the hash of the content
+   * @param target the channel the content is written to at its current position. It is left open.
+   * @return the number of bytes written
+   * @throws IOException if the blob does not exist or could not be read or written
+   * */
+  public long copyTo(String hash, FileChannel target) throws IOException {
+    Path rawPath = resolveRaw(hash);
+    if (Files.exists(rawPath)) {
+      try (FileChannel source = FileChannel.open(rawPath, StandardOpenOption.READ)) {
+        return transfer(source, 0, source.size(), target);
+      }
+    }
+    Path blobPath = resolve(hash);
+    if (Files.exists(blobPath)) {
+      try (FileChannel source = FileChannel.open(blobPath, StandardOpenOption.READ)) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining() && source.read(header) >= 0) {
+          // Keep reading until the header is complete or the blob ends
+        }
+        header.flip();
+        if (header.remaining() == HEADER_SIZE && header.getInt() == BLOB_MAGIC && header.get() == BlobCodecs.NONE.getId()) {
+          return transfer(source, HEADER_SIZE, source.size() - HEADER_SIZE, target);
+        }
+      }
+    }
+
+    try (InputStream input = open(hash)) {
+      // The channel stream is not closed, closing it would close the channel
+      return input.transferTo(Channels.newOutputStream(target));
+    }
+  }
+
+  /**
+   * Copies the content stored under a hash to a new file. A snapshot is cloned if the file system supports it,
+   * any other blob is copied with {@link #copyTo(String, FileChannel)}.
+   * @param hash the hash of the content
+   * @param target the file the content is written to. An existing file is replaced.
+   * @return the number of bytes written
+   * @throws IOException if the blob does not exist or could not be read or written
+   * */
+  public long copyTo(String hash, Path target) throws IOException {
+    Path rawPath = resolveRaw(hash);
+    if (Files.exists(rawPath)) {
+      // The copy may be written to later, so it must not be a link to the blob
+      SnapshotStrategies.snapshot(snapshotStrategies, rawPath, target, false);
+      return Files.size(target);
+    }
+    try (FileChannel output = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      return copyTo(hash, output);
+    }
+  }
+
+  /**
+   * Checks if content with the given hash is stored, either in full or as a delta
+   * @param hash the hash of the content
+   * @return true if the blob exists
+   * */
+  public boolean contains(String hash) {
+    return (packStore != null && packStore.contains(hash))
+        || Files.exists(resolve(hash)) || Files.exists(resolveRaw(hash)) || Files.exists(resolveDelta(hash));
+  }
+
+  /**
+   * Resolves the location of a blob. Blobs are fanned out by the first two hex characters of
+   * their hash to keep directories small.
+   * @param hash the hash of the content
+   * @return the path of the blob
+   * */
+  public Path resolve(String hash) {
+    return blobsPath.resolve(hash.substring(0, 2)).resolve(hash);
+  }
+
+  /**
+   * Resolves the location of a blob stored as a delta
+   * @param hash the hash of the content
+   * @return the path of the delta
+   * */
+  public Path resolveDelta(String hash) {
+    Path blobPath = resolve(hash);
+    return blobPath.resolveSibling(blobPath.getFileName() + DELTA_SUFFIX);
+  }
+
+  /**
+   * Resolves the location of a blob stored as a snapshot
+   * @param hash the hash of the content
+   * @return the path of the snapshot
+   * */
+  public Path resolveRaw(String hash) {
+    Path blobPath = resolve(hash);
+    return blobPath.resolveSibling(blobPath.getFileName() + RAW_SUFFIX);
+  }
+
+  /**
+   * Marks a blob as stored again, so a garbage collection that is already running leaves it alone
+   * @param hash the hash of the content
+   * @return true if the blob exists
+   * */
+  private boolean touch(String hash) {
+    return touch(hash, Long.MAX_VALUE);
+  }
+
+  /**
+   * Marks a blob as stored again. Content small enough for a pack is only looked up in the packs, which saves
+   * three failing stat calls per new blob. A loose copy stored before packs were enabled is then stored once
+   * more in a pack, and the loose copy ages out through the garbage collector.
+   * @param hash the hash of the content
+   * @param size the size of the content
+   * @return true if the blob exists
+   * */
+  private boolean touch(String hash, long size) {
+    if (packStore != null) {
+      if (packStore.touch(hash)) {
+        return true;
+      }
+      if (packStore.accepts(size)) {
+        return false;
+      }
+    }
+    FileTime now = FileTime.fromMillis(System.currentTimeMillis());
+    for (Path blobPath : new Path[]{resolve(hash), resolveRaw(hash), resolveDelta(hash)}) {
+      try {
+        Files.setLastModifiedTime(blobPath, now);
+        return true;
+      } catch (IOException e) {
+        // Not stored in this form
+      }
+    }
+    return false;
+  }
+
+  private long deleteIfStoredBefore(Path blobPath, long storedBefore) {
+    try {
+      if (Files.getLastModifiedTime(blobPath).toMillis() >= storedBefore) {
+        return 0;
+      }
+      long size = Files.size(blobPath);
+      Files.delete(blobPath);
+      return size;
+    } catch (NoSuchFileException e) {
+      return 0;
+    } catch (IOException e) {
+      Logger.getLogger(BlobStore.class.getName()).log(Level.WARNING, "Could not delete blob: " + blobPath, e);
+      return 0;
+    }
+  }
+
+  private static long transfer(FileChannel source, long position, long size, FileChannel target) throws IOException {
+    long copied = 0;
+    while (copied < size) {
+      copied += source.transferTo(position + copied, size - copied, target);
+    }
+    return size;
+  }
+
+  /**
+   * Counts the deltas that have to be applied to read a blob
+   * @param hash the hash of the content
+   * @return 0 for content stored in full, otherwise the length of its delta chain
+   * */
+  private int chainDepth(String hash) throws IOException {
+    if (!isDelta(hash)) {
+      return 0;
+    }
+    try (DataInputStream input = openDelta(hash)) {
+      input.readUTF();
+      return input.readInt();
+    }
+  }
+
+  /**
+   * Checks if a blob is stored as a delta, in a pack or in a file of its own
+   * */
+  private boolean isDelta(String hash) throws IOException {
+    byte packedKind = packStore == null ? 0 : packStore.kindOf(hash);
+    if (packedKind != 0) {
+      return packedKind == PackStore.DELTA;
+    }
+    return !Files.exists(resolve(hash)) && Files.exists(resolveDelta(hash));
+  }
+
+  /**
+   * Opens a blob stored in full, from its pack or from its file
+   * */
+  private InputStream openFull(String hash) throws IOException {
+    PackStore.Blob packed = packStore == null ? null : packStore.get(hash);
+    if (packed != null && packed.kind() == PackStore.FULL) {
+      return open(new ByteArrayInputStream(packed.payload()), hash);
+    }
+    return open(resolve(hash));
+  }
+
+  private DataInputStream openDelta(String hash) throws IOException {
+    PackStore.Blob packed = packStore == null ? null : packStore.get(hash);
+    DataInputStream input = new DataInputStream(packed != null && packed.kind() == PackStore.DELTA
+        ? open(new ByteArrayInputStream(packed.payload()), hash)
+        : open(resolveDelta(hash)));
+    if (input.readInt() != DELTA_MAGIC) {
+      input.close();
+      throw new IOException("Not a delta blob: " + hash);
+    }
+    return input;
+  }
+
+  /**
+   * Opens a blob file, reads its header and wraps it with the codec it was written with
+   * */
+  private InputStream open(Path blobPath) throws IOException {
+    return open(new BufferedInputStream(Files.newInputStream(blobPath), BUFFER_SIZE), blobPath);
+  }
+
+  /**
+   * Reads the header of a blob from a stream and wraps the stream with the codec it was written with
+   * @param name what the blob is called in errors
+   * */
+  private InputStream open(InputStream stored, Object name) throws IOException {
+    DataInputStream input = new DataInputStream(stored);
+    try {
+      if (input.readInt() != BLOB_MAGIC) {
+        throw new IOException("Not a blob: " + name);
+      }
+      return BlobCodecs.forId(input.readByte()).decompress(input);
+    } catch (IOException e) {
+      input.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Stores a blob in a pack if it is small enough, otherwise in a file of its own
+   * @param kind {@link PackStore#FULL} or {@link PackStore#DELTA}
+   * @param size the size of the content before compression
+   * */
+  private void store(String hash, byte kind, long size, BlobWriter writer) throws IOException {
+    if (packStore == null || !packStore.accepts(size)) {
+      write(kind == PackStore.DELTA ? resolveDelta(hash) : resolve(hash), writer);
+      return;
+    }
+    ByteArrayOutputStream blob = new ByteArrayOutputStream((int) Math.min(size + HEADER_SIZE, BUFFER_SIZE));
+    try (DataOutputStream output = new DataOutputStream(blob)) {
+      writeBlob(output, writer);
+    }
+    packStore.append(hash, kind, blob.toByteArray());
+  }
+
+  /**
+   * Writes a blob through the configured codec. The content goes to a temporary file first and is moved
+   * into place once complete, so readers never see a half-written blob.
+   * */
+  private void write(Path blobPath, BlobWriter writer) throws IOException {
+    Files.createDirectories(blobPath.getParent());
+    Path tempPath = Files.createTempFile(blobPath.getParent(), blobPath.getFileName().toString(), ".tmp");
+    try {
+      try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath), BUFFER_SIZE))) {
+        writeBlob(output, writer);
+      }
+      Files.move(tempPath, blobPath, StandardCopyOption.ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException e) {
+      // Another thread stored the same content first, the temporary copy is dropped below
+    } finally {
+      Files.deleteIfExists(tempPath);
+    }
+  }
+
+  /**
+   * Writes the header of a blob followed by its content compressed with the configured codec
+   * */
+  private void writeBlob(DataOutputStream output, BlobWriter writer) throws IOException {
+    output.writeInt(BLOB_MAGIC);
+    output.writeByte(blobCodec.getId());
+    try (OutputStream compressed = blobCodec.compress(output)) {
+      writer.writeTo(compressed);
+    }
+  }
+
+  /**
+   * Gets the hashes of every blob held by a pack, for the garbage collector
+   * @return the hashes, empty if blobs are not packed
+   * */
+  public List<String> getPackedHashes() {
+    return packStore == null ? List.of() : packStore.hashes();
+  }
+
+  /**
+   * Rewrites the packs that are mostly dead after a collection
+   * @return the number of bytes reclaimed
+   * */
+  public long compactPacks() {
+    if (packStore == null) {
+      return 0;
+    }
+    try {
+      return packStore.compact();
+    } catch (IOException e) {
+      Logger.getLogger(BlobStore.class.getName()).log(Level.WARNING, "Could not compact packs", e);
+      return 0;
+    }
+  }
+
+  public BlobCodec getBlobCodec() {
+    return blobCodec;
+  }
+
+  public List<SnapshotStrategy> getSnapshotStrategies() {
+    return snapshotStrategies;
+  }
+
+  public boolean isDeltaEnabled() {
+    return deltaCodec != null;
+  }
+
+  public Path getBlobsPath() {
+    return blobsPath;
+  }
+
+  /**
+   * Writes the content of a blob to the stream of the codec
+   * */
+  @FunctionalInterface
+  private interface BlobWriter {
+    void writeTo(OutputStream output) throws IOException;
+  }
+}
@@ -0,0 +1,183 @@
+package com.myproject.versioning;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The DeltaCodec class encodes a version of a file as a binary delta against a previous version.
+ * The previous version is cut into fixed size blocks that are indexed by an rsync style rolling checksum.
+ * The new version is scanned one byte at a time, every window that matches a block of the previous version
+ * becomes a copy instruction and everything in between is inserted literally.
+ *
+ * <p>A delta is a sequence of instructions:
+ * <ul>
+ *   <li>{@code COPY offset length} copies a range of the base</li>
+ *   <li>{@code INSERT length bytes} inserts literal bytes</li>
+ * </ul>
+ */
+public final class DeltaCodec {
+  private static final int COPY = 0;
+  private static final int INSERT = 1;
+
+  private final int blockSize;
+
+  public DeltaCodec(int blockSize) {
+    if (blockSize <= 0) {
+      throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+    }
+    this.blockSize = blockSize;
+  }
+
+  /**
+   * Encodes the target content as a delta against the base content
+   * @param base the previous version of the content
+   * @param target the new version of the content
+   * @return the encoded delta
+   * */
+  public byte[] encode(byte[] base, byte[] target) {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(buffer)) {
+      encode(base, target, output);
+    } catch (IOException e) {
+      // Writing to memory cannot fail
+      throw new IllegalStateException(e);
+    }
+    return buffer.toByteArray();
+  }
+
+  /**
+   * Rebuilds the target content from the base content and a delta
+   * @param base the previous version of the content
+   * @param delta the stream positioned at the first instruction of the delta
+   * @param output where the rebuilt content is written
+   * @throws IOException if the delta is corrupt or the output could not be written
+   * */
+  public static void decode(byte[] base, InputStream delta, OutputStream output) throws IOException {
+    DataInputStream input = new DataInputStream(delta);
+    int instruction;
+    while ((instruction = input.read()) != -1) {
+      if (instruction == COPY) {
+        int offset = input.readInt();
+        int length = input.readInt();
+        if (offset < 0 || length < 0 || offset + length > base.length) {
+          throw new IOException("Delta copies outside of its base: " + offset + "+" + length);
+        }
+        output.write(base, offset, length);
+      } else if (instruction == INSERT) {
+        int length = input.readInt();
+        byte[] literal = new byte[length];
+        try {
+          input.readFully(literal);
+        } catch (EOFException e) {
+          throw new IOException("Delta ends in the middle of an insert", e);
+        }
+        output.write(literal);
+      } else {
+        throw new IOException("Unknown delta instruction: " + instruction);
+      }
+    }
+  }
+
+  private void encode(byte[] base, byte[] target, DataOutputStream output) throws IOException {
+    Map<Integer, int[]> blocks = indexBlocks(base);
+    int literalStart = 0;
+    int position = 0;
+    int checksum = target.length - position >= blockSize ? checksum(target, 0) : 0;
+
+    while (target.length - position >= blockSize) {
+      int match = findBlock(blocks.get(checksum), base, target, position);
+      if (match < 0) {
+        if (target.length - position > blockSize) {
+          checksum = roll(checksum, target[position], target[position + blockSize]);
+        }
+        position++;
+        continue;
+      }
+
+      writeInsert(target, literalStart, position, output);
+      // Extend the match past the block for as long as base and target keep agreeing
+      int length = blockSize;
+      while (match + length < base.length && position + length < target.length
+          && base[match + length] == target[position + length]) {
+        length++;
+      }
+      output.writeByte(COPY);
+      output.writeInt(match);
+      output.writeInt(length);
+
+      position += length;
+      literalStart = position;
+      if (target.length - position >= blockSize) {
+        checksum = checksum(target, position);
+      }
+    }
+    writeInsert(target, literalStart, target.length, output);
+  }
+
+  private Map<Integer, int[]> indexBlocks(byte[] base) {
+    Map<Integer, int[]> blocks = new HashMap<>();
+    for (int offset = 0; offset + blockSize <= base.length; offset += blockSize) {
+      blocks.merge(checksum(base, offset), new int[]{offset}, (existing, added) -> {
+        int[] merged = Arrays.copyOf(existing, existing.length + 1);
+        merged[existing.length] = added[0];
+        return merged;
+      });
+    }
+    return blocks;
+  }
+
+  private int findBlock(int[] candidates, byte[] base, byte[] target, int position) {
+    if (candidates == null) {
+      return -1;
+    }
+    // The weak checksum collides easily, so a candidate only counts if its bytes really match
+    for (int offset : candidates) {
+      if (Arrays.equals(base, offset, offset + blockSize, target, position, position + blockSize)) {
+        return offset;
+      }
+    }
+    return -1;
+  }
+
+  private static void writeInsert(byte[] target, int from, int to, DataOutputStream output) throws IOException {
+    if (to > from) {
+      output.writeByte(INSERT);
+      output.writeInt(to - from);
+      output.write(target, from, to - from);
+    }
+  }
+
+  /**
+   * Computes the rsync weak checksum of a window: the low half is the sum of the bytes,
+   * the high half is the sum weighted by the distance to the end of the window.
+   * */
+  private int checksum(byte[] data, int offset) {
+    int a = 0;
+    int b = 0;
+    for (int i = 0; i < blockSize; i++) {
+      int value = data[offset + i] & 0xff;
+      a += value;
+      b += (blockSize - i) * value;
+    }
+    return ((b & 0xffff) << 16) | (a & 0xffff);
+  }
+
+  /**
+   * Slides the window one byte forward without revisiting the bytes in between
+   * */
+  private int roll(int checksum, byte removed, byte added) {
+    int out = removed & 0xff;
+    int in = added & 0xff;
+    int a = ((checksum & 0xffff) - out + in) & 0xffff;
+    int b = ((checksum >>> 16) - blockSize * out + a) & 0xffff;
+    return (b << 16) | a;
+  }
+}
@@ -1,23 +1,26 @@
 package com.myproject.versioning;
 import java.nio.file.Path;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
+import com.myproject.helper.ConfigHelper;
 import com.myproject.helper.DirHelper;
-import com.myproject.helper.FileHelper;
+import com.myproject.metrics.MetricsRegistry;
 
 /**
- * The FileVersioner class is responsible for managing file versions within a specified directory.
- * It initializes by mapping the initial content of files in the directory and creates a folder
- * structure for versioning based on the current date. The class also provides functionality to
- * retrieve the mapping of files to their content.
+ * The FileVersioner class owns the versioning of a watched directory. It creates the versions folder inside the
+ * directory and wires up the components that record, look up and prune versions. The baseline, the last known
+ * content of every file, is a {@link BaselineStore}, so its memory use is bounded by the
+ * {@code filesorter.baseline.memoryBudget} system property (64 MiB by default).
  *
  * <p>Key functionalities include:
  * <ul>
- *   <li>Creating version folders based on the current date</li>
- *   <li>Mapping files to their content at the time of initialization</li>
- *   <li>Providing access to the file-to-content mapping</li>
+ *   <li>Creating the versions folder of the directory</li>
+ *   <li>Providing access to the baseline content of the watched files</li>
+ *   <li>Owning the content-addressed blob store and the manifest that versions are recorded in</li>
+ *   <li>Owning the baseline index that carries the last known state of every file across restarts</li>
+ *   <li>Owning the version catalog that past versions are looked up in</li>
+ *   <li>Owning the garbage collector that applies the retention policy to the versions folder</li>
+ *   <li>Owning the group committer that makes recorded versions durable in batches</li>
  * </ul>
  *
  * <p>Usage example:
@@ -25,47 +28,136 @@ import com.myproject.helper.FileHelper;
  * {@code
  * Path directoryPath = Paths.get("path/to/directory");
  * FileVersioner fileVersioner = new FileVersioner(directoryPath);
- * String versionFolder = fileVersioner.versionFolders();
- * HashMap<Path, byte[]> fileContentMap = FileVersioner.getMapFileToContent();
+ * BaselineStore fileContentMap = fileVersioner.getMapFileToContent();
+ * List<ManifestEntry> history = fileVersioner.getVersionCatalog().history(directoryPath.resolve("notes.txt"));
+ * fileVersioner.close();
  * }
  * </pre>
  */
 public final class FileVersioner {
 
-  private final CopyOnWriteArrayList<Path> files = new CopyOnWriteArrayList<>();
-  private final ConcurrentHashMap<Path, byte[]> mapFileToContent = new ConcurrentHashMap<>();
+  private static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+  private static final int DEFAULT_KEYFRAME_INTERVAL = 16;
+  private static final int DEFAULT_DELTA_BLOCK_SIZE = 2048;
+  private static final String DEFAULT_CODEC = "lz4";
+  private static final String DEFAULT_SNAPSHOT_STRATEGY = "auto";
+  private static final int DEFAULT_GC_BATCH_SIZE = 500;
+  private static final long DEFAULT_PACK_MAX_BLOB_SIZE = 64L * 1024;
+  private static final long DEFAULT_PACK_MAX_SIZE = 64L * 1024 * 1024;
+  private static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 10;
+  private static final long DEFAULT_COMMIT_MAX_BATCH_BYTES = 4L * 1024 * 1024;
+
+  private final BaselineStore mapFileToContent;
+  private final BlobStore blobStore;
+  private final VersionManifest versionManifest;
+  private final BaselineIndex baselineIndex;
+  private final VersionCatalog versionCatalog;
+  private final RestoreEngine restoreEngine;
+  private final GarbageCollector garbageCollector;
+  // Null if every blob gets a file of its own and every version is written as it is recorded
+  private final GroupCommitter groupCommitter;
 
   public FileVersioner(Path directoryPath) {
-    mapFileToContent(files);
+    Path versionsPath = directoryPath.getParent().resolve(directoryPath.getFileName()).resolve("versions");
     // Initializes a new directory watcher for the version
-    DirHelper.createFolder(directoryPath.getParent().resolve(directoryPath.getFileName()).resolve("versions").toString());
+    DirHelper.createFolder(versionsPath.toString());
+    PackStore packStore = ConfigHelper.getBoolean(ConfigHelper.PACK_ENABLED, true)
+        ? new PackStore(versionsPath,
+            ConfigHelper.getLong(ConfigHelper.PACK_MAX_BLOB_SIZE, DEFAULT_PACK_MAX_BLOB_SIZE),
+            ConfigHelper.getLong(ConfigHelper.PACK_MAX_SIZE, DEFAULT_PACK_MAX_SIZE),
+            ConfigHelper.getLong(ConfigHelper.COMMIT_MAX_BATCH_BYTES, DEFAULT_COMMIT_MAX_BATCH_BYTES))
+        : null;
+    this.blobStore = createBlobStore(versionsPath, packStore);
+    this.versionManifest = new VersionManifest(versionsPath, packStore != null);
+    this.baselineIndex = new BaselineIndex(versionsPath, false, packStore != null);
+    this.groupCommitter = packStore == null ? null : new GroupCommitter(packStore, versionManifest, baselineIndex,
+        ConfigHelper.getLong(ConfigHelper.COMMIT_INTERVAL_MILLIS, DEFAULT_COMMIT_INTERVAL_MILLIS));
+    this.versionCatalog = new VersionCatalog(versionManifest);
+    this.restoreEngine = new RestoreEngine(blobStore, versionCatalog, baselineIndex);
+    this.garbageCollector = new GarbageCollector(blobStore, versionManifest, versionCatalog, baselineIndex,
+        RetentionPolicy.fromConfig(), ConfigHelper.getInt(ConfigHelper.RETENTION_BATCH_SIZE, DEFAULT_GC_BATCH_SIZE));
+    this.mapFileToContent = new BaselineStore(blobStore, ConfigHelper.getLong(ConfigHelper.BASELINE_MEMORY_BUDGET, DEFAULT_MEMORY_BUDGET));
+    registerMetrics(packStore);
+  }
+
+  /**
+   * Registers the counts the versioning components keep for themselves with the shared metrics registry
+   * @param packStore the packs small blobs are appended to, or null
+   * */
+  private void registerMetrics(PackStore packStore) {
+    MetricsRegistry registry = MetricsRegistry.shared();
+    registry.gauge("baseline.resident.bytes", "Bytes of baseline content held off-heap", mapFileToContent::getResidentBytes);
+    registry.counter("gc.dropped.versions", "Versions dropped by the retention policy", garbageCollector::getDroppedVersions);
+    registry.counter("gc.freed.bytes", "Bytes freed by the retention policy", garbageCollector::getFreedBytes);
+    if (groupCommitter != null) {
+      registry.counter("commit.batches", "Batches of versions made durable", groupCommitter::getBatches);
+      registry.counter("commit.entries", "Versions made durable", groupCommitter::getCommittedEntries);
+    }
+    if (packStore != null) {
+      registry.gauge("pack.files", "Pack files in the blob store", packStore::getPackCount);
+    }
   }
 
 
   /**
-   * Get the files and the content of the initial files in the directory path
+   * Creates the blob store. Blobs are compressed with the codec named by {@code filesorter.codec} and
+   * modified versions are stored as deltas if {@code filesorter.delta.enabled} is set. The snapshot strategies
+   * for large files are probed in the versions folder, starting with the one named by {@code filesorter.snapshot}.
+   * @param versionsPath the versions folder
+   * @param packStore the packs small blobs are appended to, or null
+   * @return the blob store
    * */
-  public void mapFileToContent(CopyOnWriteArrayList<Path> files) {
-    for (Path filePath : files) {
-      Path absoluteFile = filePath.toAbsolutePath();
-      byte[] fileBytes = FileHelper.readFileContent(filePath);
-      //Checks if the file has content that can be read
-      if (fileBytes == null) {
-        throw new IllegalStateException("Failed to read content from file: " + filePath);
-      }
-        mapFileToContent.put(absoluteFile, fileBytes);
+  private static BlobStore createBlobStore(Path versionsPath, PackStore packStore) {
+    BlobCodec blobCodec = BlobCodecs.forName(ConfigHelper.getString(ConfigHelper.CODEC, DEFAULT_CODEC));
+    List<SnapshotStrategy> snapshotStrategies = SnapshotStrategies.detect(versionsPath.resolve("blobs"),
+        ConfigHelper.getString(ConfigHelper.SNAPSHOT_STRATEGY, DEFAULT_SNAPSHOT_STRATEGY));
+    if (!ConfigHelper.getBoolean(ConfigHelper.DELTA_ENABLED, false)) {
+      return new BlobStore(versionsPath, blobCodec, null, 0, snapshotStrategies, packStore);
     }
+    DeltaCodec deltaCodec = new DeltaCodec(ConfigHelper.getInt(ConfigHelper.DELTA_BLOCK_SIZE, DEFAULT_DELTA_BLOCK_SIZE));
+    return new BlobStore(versionsPath, blobCodec, deltaCodec, ConfigHelper.getInt(ConfigHelper.DELTA_KEYFRAME_INTERVAL, DEFAULT_KEYFRAME_INTERVAL),
+        snapshotStrategies, packStore);
   }
 
   /**
    * Retrieves the mapping of file paths to their corresponding content.
-   * @return a ConcurrentHashMap containing the mapping of file paths to file content.
+   * @return a BaselineStore containing the mapping of file paths to file content.
    */
-  public ConcurrentHashMap<Path, byte[]> getMapFileToContent() {
+  public BaselineStore getMapFileToContent() {
     return mapFileToContent;
   }
 
-  public List<Path> getFiles(){
-    return files;
+  public BlobStore getBlobStore() {
+    return blobStore;
+  }
+
+  public VersionManifest getVersionManifest() {
+    return versionManifest;
+  }
+
+  public BaselineIndex getBaselineIndex() {
+    return baselineIndex;
+  }
+
+  public VersionCatalog getVersionCatalog() {
+    return versionCatalog;
+  }
+
+  public RestoreEngine getRestoreEngine() {
+    return restoreEngine;
+  }
+
+  public GarbageCollector getGarbageCollector() {
+    return garbageCollector;
+  }
+
+  /**
+   * Makes every version recorded so far durable, closes the packs and writes the catalog
+   * */
+  public void close() {
+    if (groupCommitter != null) {
+      groupCommitter.close();
+    }
+    versionCatalog.close();
   }
 }
@@ -0,0 +1,59 @@
+package com.myproject.versioning;
+
+/**
+ * The Fingerprint class identifies a version of a file's content without holding the content itself.
+ * Size and modification time are cheap to stat and decide whether the file needs to be read at all,
+ * the hash decides whether the content really changed.
+ */
+public final class Fingerprint {
+
+  private final long size;
+  private final long lastModified;
+  private final String hash;
+
+  public Fingerprint(long size, long lastModified, String hash) {
+    this.size = size;
+    this.lastModified = lastModified;
+    this.hash = hash;
+  }
+
+  /**
+   * Checks if the stat of a file still matches this fingerprint
+   * @param size the current size of the file
+   * @param lastModified the current modification time of the file in epoch milliseconds
+   * @return true if neither the size nor the modification time changed
+   * */
+  public boolean matches(long size, long lastModified) {
+    return this.size == size && this.lastModified == lastModified;
+  }
+
+  /**
+   * Creates a copy of this fingerprint for a file whose content is unchanged but whose stat changed
+   * @param lastModified the new modification time of the file in epoch milliseconds
+   * @return the refreshed fingerprint
+   * */
+  public Fingerprint withLastModified(long lastModified) {
+    return new Fingerprint(size, lastModified, hash);
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  public String getHash() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return "Fingerprint -> {" +
+        "size=" + size +
+        ", lastModified=" + lastModified +
+        ", hash=" + hash +
+        '}';
+  }
+}
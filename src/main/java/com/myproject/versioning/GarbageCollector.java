@@ -0,0 +1,311 @@
+package com.myproject.versioning;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The GarbageCollector class applies a {@link RetentionPolicy} to the versions folder in the background.
+ * A collection runs in three steps:
+ * <ol>
+ *   <li>the versions to drop are decided from the {@link VersionCatalog}</li>
+ *   <li>they are removed from the {@link VersionManifest} and the catalog, whose segment is rewritten without them</li>
+ *   <li>every blob that is no longer referenced by a version, by the {@link BaselineIndex} or as the base of a
+ *   referenced delta is deleted, in batches with a pause between them, and packs that are left mostly dead are
+ *   compacted</li>
+ * </ol>
+ * Event handling never waits for a collection, apart from the moment a batch of blobs is deleted or the rewritten
+ * manifest is swapped in. A collection that stops halfway leaves only unreferenced blobs behind, which the next
+ * collection picks up.
+ *
+ * <p>The collector's thread also rewrites the segment of the catalog whenever its tail has grown, so event handling
+ * never does.
+ */
+public final class GarbageCollector {
+  private static final long BATCH_PAUSE_MILLIS = 50;
+  private static final String DELTA_SUFFIX = ".delta";
+  private static final String RAW_SUFFIX = ".raw";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final BlobStore blobStore;
+  private final VersionManifest versionManifest;
+  private final VersionCatalog versionCatalog;
+  private final BaselineIndex baselineIndex;
+  private final RetentionPolicy retentionPolicy;
+  private final int batchSize;
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+    Thread thread = new Thread(runnable, "garbage-collector");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    return thread;
+  });
+  private final AtomicLong droppedVersions = new AtomicLong();
+  private final AtomicLong freedBytes = new AtomicLong();
+
+  public GarbageCollector(BlobStore blobStore, VersionManifest versionManifest, VersionCatalog versionCatalog,
+                          BaselineIndex baselineIndex, RetentionPolicy retentionPolicy, int batchSize) {
+    this.blobStore = blobStore;
+    this.versionManifest = versionManifest;
+    this.versionCatalog = versionCatalog;
+    this.baselineIndex = baselineIndex;
+    this.retentionPolicy = retentionPolicy;
+    this.batchSize = Math.max(1, batchSize);
+    versionCatalog.compactOn(scheduler);
+  }
+
+  /**
+   * Runs a collection at a fixed interval, the first one after one interval
+   * @param intervalMillis the time between the end of one collection and the start of the next
+   * */
+  public void start(long intervalMillis) {
+    scheduler.scheduleWithFixedDelay(() -> {
+      try {
+        collect();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (IOException | RuntimeException e) {
+        Logger.getLogger(GarbageCollector.class.getName()).log(Level.SEVERE, "Garbage collection failed", e);
+      }
+    }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops the collector, interrupting a running collection between two batches
+   * */
+  public void close() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * Runs one collection on the calling thread
+   * @return the number of bytes freed
+   * @throws IOException if the manifest could not be rewritten
+   * @throws InterruptedException if the thread is interrupted between two batches
+   * */
+  public long collect() throws IOException, InterruptedException {
+    // Blobs stored from here on are left alone, so versions recorded during the collection are safe
+    long start = System.currentTimeMillis();
+
+    List<ManifestEntry> dropped = new ArrayList<>();
+    Set<String> live = decide(start, dropped);
+    if (!dropped.isEmpty()) {
+      versionManifest.remove(dropped);
+      versionCatalog.removeAll(dropped);
+      versionCatalog.compactIfNeeded();
+    }
+    addDeltaBases(live);
+    long freed = sweep(live, start);
+    blobStore.compactPacks();
+
+    droppedVersions.addAndGet(dropped.size());
+    freedBytes.addAndGet(freed);
+    Logger.getLogger(GarbageCollector.class.getName()).log(Level.INFO, "Garbage collection dropped {0} versions and freed {1} bytes in {2} ms",
+        new Object[]{dropped.size(), freed, System.currentTimeMillis() - start});
+    return freed;
+  }
+
+  public long getDroppedVersions() {
+    return droppedVersions.get();
+  }
+
+  public long getFreedBytes() {
+    return freedBytes.get();
+  }
+
+  /**
+   * Applies the retention policy to every history in the catalog
+   * @param now the current time in epoch milliseconds
+   * @param dropped receives the versions that are dropped
+   * @return the hashes of the blobs still referenced by a version or by the baseline
+   * */
+  private Set<String> decide(long now, List<ManifestEntry> dropped) {
+    Map<String, Integer> references = new HashMap<>();
+    Set<String> pinned = new HashSet<>();
+    for (Path path : baselineIndex.paths()) {
+      BaselineIndex.Record record = baselineIndex.get(path);
+      if (record != null) {
+        pinned.add(record.getFingerprint().getHash());
+      }
+    }
+
+    // Kept versions that the size cap may still drop, each but the last of its file
+    List<ManifestEntry> cappable = new ArrayList<>();
+    Map<ManifestEntry, String> preHistoryHashes = new HashMap<>();
+    // The histories are read one at a time, the catalog is never held in memory as a whole
+    versionCatalog.forEachHistory((historyPath, history) -> {
+      String path = historyPath.toString();
+      if (history.isEmpty()) {
+        return;
+      }
+      boolean[] keep = retentionPolicy.retain(history, now);
+      for (int i = 0; i < history.size(); i++) {
+        ManifestEntry entry = history.get(i);
+        if (!entry.getPath().toString().equals(path)) {
+          // A move away from this path, which is decided in the history of the path it moved to
+          continue;
+        }
+        if (!keep[i]) {
+          dropped.add(entry);
+          continue;
+        }
+        reference(references, entry.getHash());
+        if (i < history.size() - 1) {
+          cappable.add(entry);
+        }
+      }
+      // While the first version is kept, so is the content the file had before it, for restores before that version
+      ManifestEntry first = history.getFirst();
+      if (keep[0] && ManifestEntry.MODIFIED.equals(first.getEventType())) {
+        reference(references, first.getPreviousHash());
+        preHistoryHashes.put(first, first.getPreviousHash());
+      }
+    });
+
+    if (retentionPolicy.getMaxBytes() > 0) {
+      applySizeCap(references, pinned, cappable, preHistoryHashes, dropped);
+    }
+
+    Set<String> live = new HashSet<>(pinned);
+    live.addAll(references.keySet());
+    return live;
+  }
+
+  /**
+   * Drops the oldest versions until the referenced blobs fit the size cap
+   * */
+  private void applySizeCap(Map<String, Integer> references, Set<String> pinned, List<ManifestEntry> cappable,
+                            Map<ManifestEntry, String> preHistoryHashes, List<ManifestEntry> dropped) {
+    Set<String> counted = new HashSet<>(pinned);
+    counted.addAll(references.keySet());
+    long liveBytes = 0;
+    for (String hash : counted) {
+      liveBytes += blobStore.sizeOf(hash);
+    }
+
+    cappable.sort(Comparator.comparingLong(ManifestEntry::getTimestamp));
+    for (ManifestEntry entry : cappable) {
+      if (liveBytes <= retentionPolicy.getMaxBytes()) {
+        return;
+      }
+      dropped.add(entry);
+      liveBytes -= release(references, pinned, entry.getHash());
+      String preHistoryHash = preHistoryHashes.get(entry);
+      if (preHistoryHash != null) {
+        liveBytes -= release(references, pinned, preHistoryHash);
+      }
+    }
+    if (liveBytes > retentionPolicy.getMaxBytes()) {
+      Logger.getLogger(GarbageCollector.class.getName()).log(Level.WARNING,
+          "Versions folder stays above its size cap, the current versions alone take {0} bytes", liveBytes);
+    }
+  }
+
+  private static void reference(Map<String, Integer> references, String hash) {
+    if (hash != null && !ManifestEntry.NO_HASH.equals(hash)) {
+      references.merge(hash, 1, Integer::sum);
+    }
+  }
+
+  /**
+   * Drops one reference to a blob
+   * @return the size of the blob if this was its last reference, otherwise 0
+   * */
+  private long release(Map<String, Integer> references, Set<String> pinned, String hash) {
+    Integer count = references.get(hash);
+    if (count == null) {
+      return 0;
+    }
+    if (count > 1) {
+      references.put(hash, count - 1);
+      return 0;
+    }
+    references.remove(hash);
+    return pinned.contains(hash) ? 0 : blobStore.sizeOf(hash);
+  }
+
+  /**
+   * Adds the base of every referenced delta, and the base of that base, to the live blobs
+   * */
+  private void addDeltaBases(Set<String> live) {
+    Deque<String> pending = new ArrayDeque<>(live);
+    while (!pending.isEmpty()) {
+      String hash = pending.pop();
+      try {
+        String base = blobStore.deltaBase(hash);
+        if (base != null && live.add(base)) {
+          pending.push(base);
+        }
+      } catch (IOException e) {
+        Logger.getLogger(GarbageCollector.class.getName()).log(Level.WARNING, "Could not read delta: " + hash, e);
+      }
+    }
+  }
+
+  /**
+   * Deletes every blob that is not live, one fan-out folder at a time and in batches
+   * @return the number of bytes freed
+   * */
+  private long sweep(Set<String> live, long storedBefore) throws InterruptedException {
+    long freed = 0;
+    List<String> batch = new ArrayList<>(batchSize);
+    try (DirectoryStream<Path> fanOuts = Files.newDirectoryStream(blobStore.getBlobsPath(), Files::isDirectory)) {
+      for (Path fanOut : fanOuts) {
+        try (DirectoryStream<Path> blobs = Files.newDirectoryStream(fanOut)) {
+          for (Path blob : blobs) {
+            String name = blob.getFileName().toString();
+            if (name.endsWith(TEMP_SUFFIX)) {
+              continue;
+            }
+            freed += sweep(stripSuffix(stripSuffix(name, DELTA_SUFFIX), RAW_SUFFIX), live, batch, storedBefore);
+          }
+        }
+      }
+    } catch (NoSuchFileException e) {
+      // Every blob is packed
+    } catch (IOException e) {
+      Logger.getLogger(GarbageCollector.class.getName()).log(Level.SEVERE, "Could not list blobs in: " + blobStore.getBlobsPath(), e);
+    }
+    for (String hash : blobStore.getPackedHashes()) {
+      freed += sweep(hash, live, batch, storedBefore);
+    }
+    return freed + blobStore.delete(batch, storedBefore);
+  }
+
+  /**
+   * Adds a blob to the batch if it is not live, and deletes the batch once it is full
+   * @return the number of bytes freed
+   * */
+  private long sweep(String hash, Set<String> live, List<String> batch, long storedBefore) throws InterruptedException {
+    if (!live.contains(hash)) {
+      batch.add(hash);
+    }
+    if (batch.size() < batchSize) {
+      return 0;
+    }
+    long freed = blobStore.delete(batch, storedBefore);
+    batch.clear();
+    Thread.sleep(BATCH_PAUSE_MILLIS);
+    return freed;
+  }
+
+  private static String stripSuffix(String name, String suffix) {
+    return name.endsWith(suffix) ? name.substring(0, name.length() - suffix.length()) : name;
+  }
+}
@@ -0,0 +1,124 @@
+package com.myproject.versioning;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.myproject.helper.ThreadHelper;
+import com.myproject.metrics.Histogram;
+import com.myproject.metrics.MetricsRegistry;
+
+/**
+ * The GroupCommitter class makes recorded versions durable in batches instead of one at a time. Every interval
+ * it takes the manifest entries recorded so far, commits the pack batch that holds their blobs and only then
+ * writes the entries, so the manifest never points at a blob that a crash could have lost. A crash loses at most
+ * the versions of the last interval, and never leaves half of a version behind. Changes to the
+ * {@link BaselineIndex} are written with the same batch, after its blobs, for the same reason.
+ *
+ * <p>Each batch costs one write and one fsync for the packs and one of each for the manifest, however many
+ * versions it holds.
+ */
+public final class GroupCommitter {
+  private final PackStore packStore;
+  private final VersionManifest versionManifest;
+  private final BaselineIndex baselineIndex;
+  private final long intervalNanos;
+  // One batch at a time, so batches reach the manifest in order
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Thread thread;
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong committedEntries = new AtomicLong();
+  private final Histogram commitTimes = MetricsRegistry.shared().histogram("commit.nanos",
+      "Time a batch took to be written and fsynced");
+  private final Histogram batchSizes = MetricsRegistry.shared().histogram("commit.batch.entries",
+      "Number of manifest entries committed in one batch");
+  private volatile boolean running = true;
+
+  /**
+   * @param packStore the packs blobs are buffered in
+   * @param versionManifest a group committed manifest
+   * @param baselineIndex a group committed baseline index
+   * @param intervalMillis the longest time a recorded version waits to be made durable
+   * */
+  public GroupCommitter(PackStore packStore, VersionManifest versionManifest, BaselineIndex baselineIndex, long intervalMillis) {
+    this.packStore = packStore;
+    this.versionManifest = versionManifest;
+    this.baselineIndex = baselineIndex;
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+    this.thread = ThreadHelper.newThread("group-committer", this::run);
+    thread.start();
+  }
+
+  /**
+   * Makes everything recorded so far durable on the calling thread
+   * @throws IOException if the packs or the manifest could not be written. Nothing is lost, the batch is
+   * retried with the next one.
+   * */
+  public void commit() throws IOException {
+    lock.lock();
+    try {
+      // Taken first, so every blob these entries point at is in the pack batch committed below
+      List<String> lines = versionManifest.takePending();
+      List<String> baselineLines = baselineIndex.takePending();
+      long start = System.nanoTime();
+      try {
+        packStore.commit();
+      } catch (IOException e) {
+        versionManifest.requeue(lines);
+        baselineIndex.requeue(baselineLines);
+        throw e;
+      }
+      baselineIndex.commit(baselineLines);
+      versionManifest.commit(lines);
+      if (!lines.isEmpty()) {
+        batches.incrementAndGet();
+        committedEntries.addAndGet(lines.size());
+        commitTimes.record(System.nanoTime() - start);
+        batchSizes.record(lines.size());
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stops the committer, makes everything recorded so far durable and closes the packs
+   * */
+  public void close() {
+    running = false;
+    LockSupport.unpark(thread);
+    try {
+      commit();
+    } catch (IOException e) {
+      Logger.getLogger(GroupCommitter.class.getName()).log(Level.SEVERE, "Could not commit the last batch", e);
+    }
+    packStore.close();
+  }
+
+  /**
+   * @return the number of batches that held at least one manifest entry
+   * */
+  public long getBatches() {
+    return batches.get();
+  }
+
+  public long getCommittedEntries() {
+    return committedEntries.get();
+  }
+
+  private void run() {
+    while (running) {
+      LockSupport.parkNanos(this, intervalNanos);
+      try {
+        commit();
+      } catch (IOException e) {
+        Logger.getLogger(GroupCommitter.class.getName()).log(Level.SEVERE, "Could not commit a batch of versions", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,390 @@
+package com.myproject.versioning;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The Lz4Codec class is a pure-Java implementation of the LZ4 block format.
+ * Content is cut into 64 KiB blocks, each block is compressed on its own and written as
+ * {@code [int compressedLength][int rawLength][bytes]}. Blocks that do not shrink are stored as they are,
+ * which is marked by the high bit of the compressed length. A zero length ends the stream.
+ */
+public final class Lz4Codec implements BlobCodec {
+  private static final int BLOCK_SIZE = 64 * 1024;
+  // Buffers start this small and grow with the content, most blobs are far smaller than a block
+  private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+  private static final int STORED_FLAG = 0x80000000;
+
+  private static final int MIN_MATCH = 4;
+  // The last match has to start this many bytes before the end of the block, the last literals cover the rest
+  private static final int MATCH_FIND_LIMIT = 12;
+  private static final int LAST_LITERALS = 5;
+  private static final int MAX_OFFSET = 65535;
+  private static final int HASH_LOG = 12;
+
+  @Override
+  public byte getId() {
+    return 3;
+  }
+
+  @Override
+  public String getName() {
+    return "lz4";
+  }
+
+  @Override
+  public OutputStream compress(OutputStream output) {
+    return new Lz4OutputStream(output);
+  }
+
+  @Override
+  public InputStream decompress(InputStream input) {
+    return new Lz4InputStream(input);
+  }
+
+  /**
+   * Compresses a block of bytes
+   * @param source the bytes to be compressed
+   * @param length the number of bytes of the source to be compressed
+   * @param destination receives the compressed bytes, must hold at least {@link #maxCompressedLength(int)} bytes
+   * @param hashTable scratch space of a power of two entries, at most {@code 1 << HASH_LOG}, reused between blocks.
+   * A table about as large as the block finds the same matches as a full one for a fraction of the clearing.
+   * @return the number of compressed bytes
+   * */
+  static int compressBlock(byte[] source, int length, byte[] destination, int[] hashTable) {
+    Arrays.fill(hashTable, -1);
+    int hashShift = 32 - Integer.numberOfTrailingZeros(hashTable.length);
+    int anchor = 0;
+    int position = 0;
+    int output = 0;
+    int matchLimit = length - LAST_LITERALS;
+
+    while (position < length - MATCH_FIND_LIMIT) {
+      int sequence = readInt(source, position);
+      int slot = hash(sequence, hashShift);
+      int reference = hashTable[slot];
+      hashTable[slot] = position;
+
+      if (reference < 0 || position - reference > MAX_OFFSET || readInt(source, reference) != sequence) {
+        position++;
+        continue;
+      }
+
+      int matchLength = MIN_MATCH;
+      while (position + matchLength < matchLimit && source[reference + matchLength] == source[position + matchLength]) {
+        matchLength++;
+      }
+
+      output = writeSequence(source, anchor, position - anchor, position - reference, matchLength, destination, output);
+      position += matchLength;
+      anchor = position;
+    }
+
+    // The block always ends with a sequence of literals only
+    int literalLength = length - anchor;
+    output = writeLength(literalLength, destination, output);
+    System.arraycopy(source, anchor, destination, output, literalLength);
+    return output + literalLength;
+  }
+
+  /**
+   * Decompresses a block of bytes
+   * @param source the compressed bytes
+   * @param length the number of compressed bytes
+   * @param destination receives the decompressed bytes
+   * @param rawLength the number of bytes the block decompresses to
+   * @throws IOException if the block is corrupt
+   * */
+  static void decompressBlock(byte[] source, int length, byte[] destination, int rawLength) throws IOException {
+    int position = 0;
+    int output = 0;
+    try {
+      while (true) {
+        int token = source[position++] & 0xff;
+
+        int literalLength = token >>> 4;
+        if (literalLength == 15) {
+          int extra;
+          do {
+            extra = source[position++] & 0xff;
+            literalLength += extra;
+          } while (extra == 255);
+        }
+        System.arraycopy(source, position, destination, output, literalLength);
+        position += literalLength;
+        output += literalLength;
+
+        if (position == length) {
+          break;
+        }
+
+        int offset = (source[position++] & 0xff) | ((source[position++] & 0xff) << 8);
+        int matchLength = (token & 0x0f) + MIN_MATCH;
+        if ((token & 0x0f) == 15) {
+          int extra;
+          do {
+            extra = source[position++] & 0xff;
+            matchLength += extra;
+          } while (extra == 255);
+        }
+
+        int reference = output - offset;
+        if (offset == 0 || reference < 0 || output + matchLength > rawLength) {
+          throw new IOException("Corrupt LZ4 block");
+        }
+        // Matches may overlap the bytes they produce, so they are copied one byte at a time
+        for (int i = 0; i < matchLength; i++) {
+          destination[output++] = destination[reference + i];
+        }
+      }
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IOException("Corrupt LZ4 block", e);
+    }
+    if (output != rawLength) {
+      throw new IOException("LZ4 block decompressed to " + output + " bytes instead of " + rawLength);
+    }
+  }
+
+  static int maxCompressedLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  private static int writeSequence(byte[] source, int literalStart, int literalLength, int offset, int matchLength,
+                                   byte[] destination, int output) {
+    int tokenPosition = output;
+    output = writeLength(literalLength, destination, output);
+    System.arraycopy(source, literalStart, destination, output, literalLength);
+    output += literalLength;
+
+    destination[output++] = (byte) offset;
+    destination[output++] = (byte) (offset >>> 8);
+
+    int matchCode = matchLength - MIN_MATCH;
+    if (matchCode >= 15) {
+      destination[tokenPosition] |= 0x0f;
+      output = writeExtraLength(matchCode - 15, destination, output);
+    } else {
+      destination[tokenPosition] |= (byte) matchCode;
+    }
+    return output;
+  }
+
+  /**
+   * Writes the token with the literal length in its high nibble, followed by the extra length bytes if needed
+   * */
+  private static int writeLength(int literalLength, byte[] destination, int output) {
+    if (literalLength >= 15) {
+      destination[output++] = (byte) 0xf0;
+      return writeExtraLength(literalLength - 15, destination, output);
+    }
+    destination[output++] = (byte) (literalLength << 4);
+    return output;
+  }
+
+  private static int writeExtraLength(int remaining, byte[] destination, int output) {
+    while (remaining >= 255) {
+      destination[output++] = (byte) 255;
+      remaining -= 255;
+    }
+    destination[output++] = (byte) remaining;
+    return output;
+  }
+
+  private static int readInt(byte[] source, int position) {
+    return (source[position] & 0xff)
+        | ((source[position + 1] & 0xff) << 8)
+        | ((source[position + 2] & 0xff) << 16)
+        | ((source[position + 3] & 0xff) << 24);
+  }
+
+  private static int hash(int sequence, int hashShift) {
+    return (sequence * -1640531535) >>> hashShift;
+  }
+
+  /**
+   * @return the number of hash table entries for a block, a power of two between 256 and {@code 1 << HASH_LOG}
+   * */
+  private static int hashTableSize(int blockLength) {
+    return Math.min(1 << HASH_LOG, Integer.highestOneBit(Math.max(blockLength, 256) - 1) << 1);
+  }
+
+  private static final class Lz4OutputStream extends FilterOutputStream {
+    private final DataOutputStream output;
+    private byte[] block = new byte[INITIAL_BUFFER_SIZE];
+    private byte[] compressed = new byte[0];
+    // Grows with the blocks that are compressed
+    private int[] hashTable;
+    private int blockLength;
+    private boolean closed;
+
+    private Lz4OutputStream(OutputStream output) {
+      super(output);
+      this.output = new DataOutputStream(output);
+    }
+
+    @Override
+    public void write(int value) throws IOException {
+      if (blockLength == BLOCK_SIZE) {
+        flushBlock();
+      }
+      ensureCapacity(blockLength + 1);
+      block[blockLength++] = (byte) value;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (blockLength == BLOCK_SIZE) {
+          flushBlock();
+        }
+        int chunk = Math.min(length, BLOCK_SIZE - blockLength);
+        ensureCapacity(blockLength + chunk);
+        System.arraycopy(bytes, offset, block, blockLength, chunk);
+        blockLength += chunk;
+        offset += chunk;
+        length -= chunk;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      flushBlock();
+      output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      try {
+        flushBlock();
+        output.writeInt(0);
+      } finally {
+        output.close();
+      }
+    }
+
+    private void ensureCapacity(int capacity) {
+      if (capacity > block.length) {
+        block = Arrays.copyOf(block, Math.min(BLOCK_SIZE, Math.max(capacity, block.length * 2)));
+      }
+    }
+
+    private void flushBlock() throws IOException {
+      if (blockLength == 0) {
+        return;
+      }
+      if (compressed.length < maxCompressedLength(blockLength)) {
+        compressed = new byte[maxCompressedLength(blockLength)];
+      }
+      if (hashTable == null || hashTable.length < hashTableSize(blockLength)) {
+        hashTable = new int[hashTableSize(blockLength)];
+      }
+      int compressedLength = compressBlock(block, blockLength, compressed, hashTable);
+      if (compressedLength >= blockLength) {
+        output.writeInt(blockLength | STORED_FLAG);
+        output.writeInt(blockLength);
+        output.write(block, 0, blockLength);
+      } else {
+        output.writeInt(compressedLength);
+        output.writeInt(blockLength);
+        output.write(compressed, 0, compressedLength);
+      }
+      blockLength = 0;
+    }
+  }
+
+  private static final class Lz4InputStream extends InputStream {
+    private final DataInputStream input;
+    private byte[] block = new byte[INITIAL_BUFFER_SIZE];
+    private byte[] compressed = new byte[INITIAL_BUFFER_SIZE];
+    private int blockLength;
+    private int blockPosition;
+    private boolean finished;
+
+    private Lz4InputStream(InputStream input) {
+      this.input = new DataInputStream(input);
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!fill()) {
+        return -1;
+      }
+      return block[blockPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (!fill()) {
+        return -1;
+      }
+      int chunk = Math.min(length, blockLength - blockPosition);
+      System.arraycopy(block, blockPosition, bytes, offset, chunk);
+      blockPosition += chunk;
+      return chunk;
+    }
+
+    @Override
+    public int available() {
+      return blockLength - blockPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+      input.close();
+    }
+
+    private boolean fill() throws IOException {
+      while (blockPosition == blockLength) {
+        if (finished) {
+          return false;
+        }
+        int header;
+        try {
+          header = input.readInt();
+        } catch (EOFException e) {
+          throw new IOException("LZ4 stream ended without its end marker", e);
+        }
+        if (header == 0) {
+          finished = true;
+          return false;
+        }
+
+        int rawLength = input.readInt();
+        if (rawLength <= 0 || rawLength > BLOCK_SIZE) {
+          throw new IOException("Invalid LZ4 block length: " + rawLength);
+        }
+        if (rawLength > block.length) {
+          block = new byte[Math.max(rawLength, Math.min(BLOCK_SIZE, block.length * 2))];
+        }
+        if ((header & STORED_FLAG) != 0) {
+          input.readFully(block, 0, rawLength);
+        } else {
+          if (header > maxCompressedLength(BLOCK_SIZE)) {
+            throw new IOException("Invalid LZ4 compressed length: " + header);
+          }
+          if (header > compressed.length) {
+            compressed = new byte[Math.max(header, Math.min(maxCompressedLength(BLOCK_SIZE), compressed.length * 2))];
+          }
+          input.readFully(compressed, 0, header);
+          decompressBlock(compressed, header, block, rawLength);
+        }
+        blockLength = rawLength;
+        blockPosition = 0;
+      }
+      return true;
+    }
+  }
+}
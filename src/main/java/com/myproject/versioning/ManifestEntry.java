@@ -0,0 +1,153 @@
+package com.myproject.versioning;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A single line of the version manifest. Each entry records one create, modify, delete or move event
+ * and points at the blob holding the content of the file for that event.
+ *
+ * <p>A move belongs to two paths: it ends the history of its source path like a deletion and carries on the
+ * history of the file under its new path, without a new blob.
+ */
+public class ManifestEntry {
+  public static final String CREATED = "created";
+  public static final String MODIFIED = "modified";
+  public static final String DELETED = "deleted";
+  public static final String MOVED = "moved";
+  public static final String NO_HASH = "-";
+
+  private static final String SEPARATOR = "\t";
+
+  private final long timestamp;
+  private final String eventType;
+  private final String hash;
+  private final String previousHash;
+  private final long size;
+  private final Path path;
+  private final Path sourcePath;
+
+  public ManifestEntry(long timestamp, String eventType, String hash, String previousHash, long size, Path path) {
+    this(timestamp, eventType, hash, previousHash, size, path, null);
+  }
+
+  /**
+   * @param sourcePath the path a moved file had before, null for every other event
+   * */
+  public ManifestEntry(long timestamp, String eventType, String hash, String previousHash, long size, Path path, Path sourcePath) {
+    this.timestamp = timestamp;
+    this.eventType = eventType;
+    this.hash = hash;
+    this.previousHash = previousHash == null ? NO_HASH : previousHash;
+    this.size = size;
+    this.path = path;
+    this.sourcePath = sourcePath;
+  }
+
+  /**
+   * Creates the entry for a file that was moved with its content unchanged
+   * @param timestamp the time of the move in epoch milliseconds
+   * @param hash the hash of the content, which is already stored
+   * @param size the size of the file
+   * @param sourcePath the path the file was moved from
+   * @param path the path the file was moved to
+   * @return the entry
+   * */
+  public static ManifestEntry moved(long timestamp, String hash, long size, Path sourcePath, Path path) {
+    return new ManifestEntry(timestamp, MOVED, hash, hash, size, path, sourcePath);
+  }
+
+  /**
+   * Parses an entry from a manifest line
+   * @param line a line previously produced by {@link #toLine()}
+   * @return the parsed entry
+   * @throws IllegalArgumentException if the line is not a valid entry
+   * */
+  public static ManifestEntry parse(String line) {
+    // The path goes last so that any separator inside it stays part of the path
+    String[] parts = line.split(SEPARATOR, 6);
+    if (parts.length != 6) {
+      throw new IllegalArgumentException("Malformed manifest entry: " + line);
+    }
+    if (!MOVED.equals(parts[1])) {
+      return new ManifestEntry(Long.parseLong(parts[0]), parts[1], parts[2], parts[3], Long.parseLong(parts[4]), Paths.get(parts[5]));
+    }
+
+    // A move holds both paths, the source prefixed with its length since either may contain the separator
+    String paths = parts[5];
+    int lengthEnd = paths.indexOf(SEPARATOR);
+    int sourceEnd = lengthEnd < 0 ? -1 : lengthEnd + 1 + Integer.parseInt(paths.substring(0, lengthEnd));
+    if (sourceEnd <= lengthEnd || sourceEnd >= paths.length() || !paths.startsWith(SEPARATOR, sourceEnd)) {
+      throw new IllegalArgumentException("Malformed manifest entry: " + line);
+    }
+    return new ManifestEntry(Long.parseLong(parts[0]), parts[1], parts[2], parts[3], Long.parseLong(parts[4]),
+        Paths.get(paths.substring(sourceEnd + 1)), Paths.get(paths.substring(lengthEnd + 1, sourceEnd)));
+  }
+
+  /**
+   * Formats the entry as a single manifest line
+   * @return the manifest line without a line terminator
+   * */
+  public String toLine() {
+    String line = timestamp + SEPARATOR + eventType + SEPARATOR + hash + SEPARATOR + previousHash + SEPARATOR + size + SEPARATOR;
+    if (sourcePath == null) {
+      return line + path;
+    }
+    String source = sourcePath.toString();
+    return line + source.length() + SEPARATOR + source + SEPARATOR + path;
+  }
+
+  /**
+   * Checks if a file existed at a path right after this event
+   * @param path one of the paths of this entry
+   * @return false if the event deleted the file or moved it away from the path
+   * */
+  public boolean isPresentAt(Path path) {
+    if (DELETED.equals(eventType)) {
+      return false;
+    }
+    return !MOVED.equals(eventType) || !path.equals(sourcePath);
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public String getEventType() {
+    return eventType;
+  }
+
+  public String getHash() {
+    return hash;
+  }
+
+  public String getPreviousHash() {
+    return previousHash;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * @return the path a moved file had before, or null if this entry is not a move
+   * */
+  public Path getSourcePath() {
+    return sourcePath;
+  }
+
+  @Override
+  public String toString() {
+    return "ManifestEntry -> {" +
+        "timestamp=" + timestamp +
+        ", eventType=" + eventType +
+        ", hash=" + hash +
+        ", path=" + path +
+        (sourcePath == null ? "" : ", sourcePath=" + sourcePath) +
+        '}';
+  }
+}
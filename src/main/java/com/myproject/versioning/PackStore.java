@@ -0,0 +1,778 @@
+package com.myproject.versioning;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The PackStore class keeps small blobs in a few large pack files under {@code versions/packs} instead of a file
+ * each, so storing a blob costs no file creation, rename or directory lookup at all.
+ *
+ * <p>The packs are an append-only journal. Every record carries its hash, its kind and a checksum. Appended
+ * records are buffered in memory, where they can already be read, until the batch is committed: written with
+ * a single write and made durable with a single fsync. A batch is committed once it reaches
+ * {@code maxBatchBytes}, or by the {@link GroupCommitter} once its oldest record is a few milliseconds old.
+ *
+ * <p>On startup the packs are scanned to rebuild the index from hash to record. A crash can only leave the last
+ * batch of a pack half-written. Its records fail their checksum and the pack is cut back to the last good one.
+ * Every run appends to a pack of its own and holds a lock on it, so a second instance reading the same versions
+ * folder never cuts off a batch that is still being written.
+ *
+ * <p>Blobs dropped by the garbage collector get a tombstone record. Packs that end up mostly dead, and small packs
+ * left behind by short runs, are compacted by copying their live records into the current pack. A tombstone that
+ * is compacted away can bring an unreferenced blob back after a restart, which the next collection drops again.
+ */
+public final class PackStore {
+  static final byte FULL = 1;
+  static final byte DELTA = 2;
+  private static final byte TOMBSTONE = 3;
+  private static final int RECORD_MAGIC = 0x46535031;
+  private static final String PACK_SUFFIX = ".pack";
+  // Magic, kind, hash length, payload length and checksum around the hash and the payload
+  private static final int RECORD_OVERHEAD = 4 + 1 + 2 + 4 + 4;
+
+  private final Path packsPath;
+  private final long maxBlobSize;
+  private final long maxPackSize;
+  private final long maxBatchBytes;
+  // Set for readers such as history and restore, which never append to or cut a pack
+  private final boolean readOnly;
+  private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+  // Records appended but not committed yet, readable until they are
+  private final ConcurrentHashMap<String, Pending> pending = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, Pack> packs = new ConcurrentHashMap<>();
+  // Guards the batch. Commits take the commit lock first, so one batch is written at a time and in order.
+  private final ReentrantLock batchLock = new ReentrantLock();
+  private final ReentrantLock commitLock = new ReentrantLock();
+  private ByteArrayOutputStream batch = new ByteArrayOutputStream();
+  private List<Pending> batchRecords = new ArrayList<>();
+  private long batchStartedAt;
+  // Guarded by the commit lock, null until the first commit of this run
+  private Pack activePack;
+  // Keeps other instances from cutting off a batch of the current pack while it is written
+  private FileLock activeLock;
+  // The packs folder as of the last scan. A lookup that misses only scans again once it changed.
+  private volatile FileTime scannedFolderTime;
+  private volatile int scannedPackCount;
+
+  /**
+   * Opens the packs of a versions folder and recovers them
+   * @param versionsPath the versions folder
+   * @param maxBlobSize the largest blob kept in a pack, larger ones get a file of their own
+   * @param maxPackSize the size at which a new pack is started
+   * @param maxBatchBytes the size at which a batch is committed without waiting for the committer
+   * */
+  public PackStore(Path versionsPath, long maxBlobSize, long maxPackSize, long maxBatchBytes) {
+    this(versionsPath, maxBlobSize, maxPackSize, maxBatchBytes, false);
+  }
+
+  private PackStore(Path versionsPath, long maxBlobSize, long maxPackSize, long maxBatchBytes, boolean readOnly) {
+    this.packsPath = versionsPath.resolve("packs");
+    this.maxBlobSize = maxBlobSize;
+    this.maxPackSize = maxPackSize;
+    this.maxBatchBytes = maxBatchBytes;
+    this.readOnly = readOnly;
+    scanPacks();
+  }
+
+  /**
+   * Opens the packs of a versions folder for reading only. A half-written batch at the end of a pack is skipped
+   * rather than cut off, since a watcher may still be writing it, and nothing can be appended.
+   * @param versionsPath the versions folder
+   * @return the pack store
+   * */
+  public static PackStore openReader(Path versionsPath) {
+    return new PackStore(versionsPath, 0, 0, 0, true);
+  }
+
+  /**
+   * Checks if content of a size goes into a pack
+   * @param size the size of the content before compression
+   * @return true if the content is small enough
+   * */
+  public boolean accepts(long size) {
+    return size <= maxBlobSize;
+  }
+
+  /**
+   * Appends a blob to the current batch, unless it is already stored
+   * @param hash the hash of the content
+   * @param kind {@link #FULL} or {@link #DELTA}
+   * @param payload the blob as it would be written to a file of its own, header included
+   * @throws IOException if the batch filled up and could not be committed
+   * */
+  void append(String hash, byte kind, byte[] payload) throws IOException {
+    if (enqueue(hash, kind, payload, false)) {
+      commitIfFull();
+    }
+  }
+
+  /**
+   * Gets a stored blob
+   * @param hash the hash of the content
+   * @return the blob, or null if no pack holds it
+   * @throws IOException if the pack could not be read
+   * */
+  Blob get(String hash) throws IOException {
+    for (int attempt = 0; ; attempt++) {
+      Pending record = pending.get(hash);
+      if (record != null) {
+        return new Blob(record.kind, record.payload);
+      }
+      Location location = locate(hash);
+      if (location == null) {
+        return null;
+      }
+      try {
+        return new Blob(location.kind, read(location));
+      } catch (IOException e) {
+        // The pack may have been compacted away since the lookup, in which case the record moved
+        if (attempt > 0 || index.get(hash) == location) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Checks if a blob is stored in a pack and marks it as stored again for the garbage collector
+   * @param hash the hash of the content
+   * @return true if a pack holds the blob
+   * */
+  boolean touch(String hash) {
+    if (pending.containsKey(hash)) {
+      return true;
+    }
+    Location location = index.get(hash);
+    if (location == null) {
+      return false;
+    }
+    location.storedAt = System.currentTimeMillis();
+    return true;
+  }
+
+  /**
+   * Gets the kind of a blob without reading it
+   * @param hash the hash of the content
+   * @return {@link #FULL} or {@link #DELTA}, 0 if no pack holds the blob
+   * */
+  byte kindOf(String hash) {
+    Pending record = pending.get(hash);
+    if (record != null) {
+      return record.kind;
+    }
+    Location location = locate(hash);
+    return location == null ? 0 : location.kind;
+  }
+
+  boolean contains(String hash) {
+    return pending.containsKey(hash) || locate(hash) != null;
+  }
+
+  /**
+   * Gets the number of bytes a blob takes in its pack
+   * @param hash the hash of the content
+   * @return the size of the record, 0 if no pack holds the blob
+   * */
+  long sizeOf(String hash) {
+    Pending record = pending.get(hash);
+    if (record != null) {
+      return record.recordLength;
+    }
+    Location location = index.get(hash);
+    return location == null ? 0 : location.recordLength;
+  }
+
+  /**
+   * @return the hashes of every blob held by a pack
+   * */
+  List<String> hashes() {
+    List<String> hashes = new ArrayList<>(index.keySet());
+    hashes.addAll(pending.keySet());
+    return hashes;
+  }
+
+  /**
+   * Drops a blob that was last stored before a point in time. The space is reclaimed once its pack is compacted.
+   * @param hash the hash of the content
+   * @param storedBefore only a blob last stored before this time, in epoch milliseconds, is dropped
+   * @return the number of bytes the blob took
+   * @throws IOException if the batch filled up and could not be committed
+   * */
+  long delete(String hash, long storedBefore) throws IOException {
+    Location location = index.get(hash);
+    if (location == null || location.storedAt >= storedBefore || !index.remove(hash, location)) {
+      return 0;
+    }
+    packs.get(location.packId).release(location);
+    enqueue(hash, TOMBSTONE, new byte[0], true);
+    commitIfFull();
+    return location.recordLength;
+  }
+
+  /**
+   * Copies the live records of every pack that is mostly dead into the current pack and deletes the old pack.
+   * The current pack itself is never compacted.
+   * @return the number of bytes reclaimed
+   * @throws IOException if a pack could not be read or the copies could not be committed
+   * */
+  long compact() throws IOException {
+    long reclaimed = 0;
+    // Held throughout, so no scan or commit sees a pack half compacted
+    commitLock.lock();
+    try {
+      for (Pack pack : new ArrayList<>(packs.values())) {
+        long liveBytes = pack.liveBytes.get();
+        if (pack == activePack || pack.locked || (liveBytes * 2 > pack.totalBytes && pack.totalBytes * 4 >= maxPackSize)) {
+          continue;
+        }
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+          Location location = entry.getValue();
+          if (location.packId == pack.id) {
+            enqueue(entry.getKey(), location.kind, read(location), true);
+          }
+        }
+        // The copies must be durable before the only other copy goes
+        commit();
+        packs.remove(pack.id);
+        pack.close();
+        Files.deleteIfExists(pack.path);
+        reclaimed += pack.totalBytes - liveBytes;
+        Logger.getLogger(PackStore.class.getName()).log(Level.FINE, "Compacted pack {0}", pack.path);
+      }
+    } finally {
+      commitLock.unlock();
+    }
+    return reclaimed;
+  }
+
+  /**
+   * Writes the current batch to the current pack with one write and makes it durable with one fsync
+   * @throws IOException if the batch could not be written, in which case its records stay readable and are
+   * written with the next commit
+   * */
+  public void commit() throws IOException {
+    commitLock.lock();
+    try {
+      byte[] bytes;
+      List<Pending> records;
+      batchLock.lock();
+      try {
+        if (batchRecords.isEmpty()) {
+          return;
+        }
+        bytes = batch.toByteArray();
+        records = batchRecords;
+        batch = new ByteArrayOutputStream();
+        batchRecords = new ArrayList<>();
+      } finally {
+        batchLock.unlock();
+      }
+
+      try {
+        Pack pack = packFor(bytes.length);
+        long start = pack.size;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+          pack.channel.write(buffer, start + buffer.position());
+        }
+        pack.channel.force(false);
+        pack.size += bytes.length;
+        pack.scannedTo = pack.size;
+
+        long now = System.currentTimeMillis();
+        for (Pending record : records) {
+          if (record.kind == TOMBSTONE) {
+            pack.totalBytes += record.recordLength;
+            continue;
+          }
+          Location location = new Location(pack.id, start + record.payloadOffset, record.payload.length,
+              record.recordLength, record.kind, now);
+          pack.add(location);
+          Location replaced = index.put(record.hash, location);
+          if (replaced != null && replaced != location) {
+            // A compacted copy replaces the record it was copied from
+            packs.get(replaced.packId).release(replaced);
+          }
+          // Removed after the index has the record, so a reader always finds it in one of the two
+          pending.remove(record.hash, record);
+        }
+      } catch (IOException e) {
+        // Put back in front of whatever was appended meanwhile, so nothing is lost and the order is kept
+        batchLock.lock();
+        try {
+          ByteArrayOutputStream retry = new ByteArrayOutputStream(bytes.length + batch.size());
+          retry.write(bytes);
+          batch.writeTo(retry);
+          records.addAll(batchRecords);
+          batch = retry;
+          batchRecords = records;
+        } finally {
+          batchLock.unlock();
+        }
+        throw e;
+      }
+    } finally {
+      commitLock.unlock();
+    }
+  }
+
+  /**
+   * @return the number of bytes appended since the last commit
+   * */
+  long getPendingBytes() {
+    batchLock.lock();
+    try {
+      return batch.size();
+    } finally {
+      batchLock.unlock();
+    }
+  }
+
+  /**
+   * @return the time the oldest record of the current batch was appended in epoch milliseconds, 0 if it is empty
+   * */
+  long getBatchStartedAt() {
+    batchLock.lock();
+    try {
+      return batchRecords.isEmpty() ? 0 : batchStartedAt;
+    } finally {
+      batchLock.unlock();
+    }
+  }
+
+  public int getPackCount() {
+    return packs.size();
+  }
+
+  /**
+   * Commits the current batch and closes every pack
+   * */
+  public void close() {
+    try {
+      if (!readOnly) {
+        commit();
+      }
+    } catch (IOException e) {
+      Logger.getLogger(PackStore.class.getName()).log(Level.SEVERE, "Could not commit the last batch to: " + packsPath, e);
+    }
+    commitLock.lock();
+    try {
+      for (Pack pack : packs.values()) {
+        pack.close();
+      }
+      activePack = null;
+      activeLock = null;
+    } finally {
+      commitLock.unlock();
+    }
+  }
+
+  /**
+   * Adds a record to the current batch
+   * @param copy true for records that are written even if the hash is stored, i.e. compacted copies and tombstones
+   * @return true if the record was added
+   * */
+  private boolean enqueue(String hash, byte kind, byte[] payload, boolean copy) throws IOException {
+    if (readOnly) {
+      throw new IllegalStateException("Packs are open read-only: " + packsPath);
+    }
+    byte[] hashBytes = hash.getBytes(StandardCharsets.US_ASCII);
+    batchLock.lock();
+    try {
+      if (!copy && (pending.containsKey(hash) || index.containsKey(hash))) {
+        return false;
+      }
+      if (batchRecords.isEmpty()) {
+        batchStartedAt = System.currentTimeMillis();
+      }
+      int recordStart = batch.size();
+      CRC32 checksum = new CRC32();
+      checksum.update(kind);
+      checksum.update(hashBytes);
+      checksum.update(payload);
+      DataOutputStream output = new DataOutputStream(batch);
+      output.writeInt(RECORD_MAGIC);
+      output.writeByte(kind);
+      output.writeShort(hashBytes.length);
+      output.write(hashBytes);
+      output.writeInt(payload.length);
+      int payloadOffset = batch.size();
+      output.write(payload);
+      output.writeInt((int) checksum.getValue());
+
+      Pending record = new Pending(hash, kind, payload, payloadOffset, batch.size() - recordStart);
+      batchRecords.add(record);
+      if (kind != TOMBSTONE) {
+        pending.put(hash, record);
+      }
+      return true;
+    } finally {
+      batchLock.unlock();
+    }
+  }
+
+  private void commitIfFull() throws IOException {
+    if (getPendingBytes() >= maxBatchBytes) {
+      commit();
+    }
+  }
+
+  /**
+   * Gets the pack the next batch goes to, starting a new one if this run has none yet or the current one is full.
+   * Must be called while holding the commit lock.
+   * */
+  private Pack packFor(int batchLength) throws IOException {
+    if (activePack != null && (activePack.size == 0 || activePack.size + batchLength <= maxPackSize)) {
+      return activePack;
+    }
+    Files.createDirectories(packsPath);
+    int id = packs.keySet().stream().mapToInt(Integer::intValue).max().orElse(0);
+    while (true) {
+      id++;
+      Path path = packsPath.resolve(String.format("%08d", id) + PACK_SUFFIX);
+      FileChannel channel;
+      try {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      } catch (FileAlreadyExistsException e) {
+        // Started by another instance since the last scan
+        continue;
+      }
+      Pack pack = new Pack(id, path, channel);
+      // Released with the channel when the pack is closed, or when the process ends
+      activeLock = channel.tryLock();
+      packs.put(id, pack);
+      activePack = pack;
+      return pack;
+    }
+  }
+
+  private Location locate(String hash) {
+    Location location = index.get(hash);
+    if (location == null && packsChanged() && scanPacks()) {
+      // Another instance may have appended records since the last scan
+      location = index.get(hash);
+    }
+    return location;
+  }
+
+  /**
+   * Checks if another instance may have written records since the last scan, so a lookup that misses the index
+   * does not have to list and scan the packs. Packs are only created or deleted with a new modification time of
+   * their folder, and only packs another instance held at the last scan can grow, which their size tells.
+   * @return true if the packs have to be scanned again
+   * */
+  private boolean packsChanged() {
+    if (packs.size() != scannedPackCount) {
+      return true;
+    }
+    for (Pack pack : packs.values()) {
+      try {
+        if (pack.locked && pack != activePack && pack.channel.size() > pack.scannedTo) {
+          return true;
+        }
+      } catch (IOException e) {
+        return true;
+      }
+    }
+    try {
+      return !Files.getLastModifiedTime(packsPath).equals(scannedFolderTime);
+    } catch (NoSuchFileException e) {
+      return scannedFolderTime != null;
+    } catch (IOException e) {
+      return true;
+    }
+  }
+
+  private byte[] read(Location location) throws IOException {
+    Pack pack = packs.get(location.packId);
+    if (pack == null) {
+      throw new NoSuchFileException("Pack " + location.packId + " was compacted");
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(location.length);
+    while (buffer.hasRemaining()) {
+      if (pack.channel.read(buffer, location.offset + buffer.position()) < 0) {
+        throw new EOFException("Pack " + pack.path + " ends inside a record");
+      }
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Scans every pack from where the last scan stopped, adding new records to the index
+   * @return true if any record was found
+   * */
+  private boolean scanPacks() {
+    commitLock.lock();
+    try {
+      if (!Files.isDirectory(packsPath)) {
+        return false;
+      }
+      // Taken before the listing, so a pack created during the scan changes it
+      FileTime folderTime = Files.getLastModifiedTime(packsPath);
+      TreeMap<Integer, Path> paths = new TreeMap<>();
+      try (DirectoryStream<Path> stream = Files.newDirectoryStream(packsPath, "*" + PACK_SUFFIX)) {
+        for (Path path : stream) {
+          String name = path.getFileName().toString();
+          try {
+            paths.put(Integer.parseInt(name.substring(0, name.length() - PACK_SUFFIX.length())), path);
+          } catch (NumberFormatException e) {
+            Logger.getLogger(PackStore.class.getName()).log(Level.WARNING, "Ignoring unknown file in packs: {0}", path);
+          }
+        }
+      }
+      boolean found = false;
+      for (Map.Entry<Integer, Path> entry : paths.entrySet()) {
+        Pack pack = packs.get(entry.getKey());
+        if (pack == null) {
+          try {
+            pack = new Pack(entry.getKey(), entry.getValue(), FileChannel.open(entry.getValue(), StandardOpenOption.READ));
+          } catch (NoSuchFileException e) {
+            // Compacted away by another instance
+            continue;
+          }
+          packs.put(pack.id, pack);
+        }
+        if (pack != activePack) {
+          found |= scan(pack);
+        }
+      }
+      // File systems that keep whole seconds cannot tell a pack created in the second of the scan apart
+      boolean coarse = folderTime.toInstant().getNano() == 0 && System.currentTimeMillis() - folderTime.toMillis() < 2_000;
+      scannedFolderTime = coarse ? null : folderTime;
+      scannedPackCount = packs.size();
+      return found;
+    } catch (IOException e) {
+      Logger.getLogger(PackStore.class.getName()).log(Level.SEVERE, "Could not scan packs in: " + packsPath, e);
+      return false;
+    } finally {
+      commitLock.unlock();
+    }
+  }
+
+  /**
+   * Reads the records of a pack from where the last scan stopped. A record that fails its checksum ends the scan,
+   * and the pack is cut back to before it unless another writer still holds the pack.
+   * Must be called while holding the commit lock.
+   * */
+  private boolean scan(Pack pack) throws IOException {
+    FileChannel channel = pack.channel;
+    long size = channel.size();
+    long position = pack.scannedTo;
+    long storedAt = Files.getLastModifiedTime(pack.path).toMillis();
+    boolean found = false;
+    ByteBuffer header = ByteBuffer.allocate(4 + 1 + 2);
+    while (position < size) {
+      header.clear();
+      if (!readFully(channel, header, position) || header.getInt(0) != RECORD_MAGIC) {
+        break;
+      }
+      byte kind = header.get(4);
+      int hashLength = Short.toUnsignedInt(header.getShort(5));
+      ByteBuffer body = ByteBuffer.allocate(hashLength + 4);
+      if (!readFully(channel, body, position + header.capacity())) {
+        break;
+      }
+      int payloadLength = body.getInt(hashLength);
+      long payloadOffset = position + header.capacity() + body.capacity();
+      if (payloadLength < 0 || payloadOffset + payloadLength + 4 > size) {
+        break;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(payloadLength + 4);
+      if (!readFully(channel, payload, payloadOffset)) {
+        break;
+      }
+      CRC32 checksum = new CRC32();
+      checksum.update(kind);
+      checksum.update(body.array(), 0, hashLength);
+      checksum.update(payload.array(), 0, payloadLength);
+      if ((int) checksum.getValue() != payload.getInt(payloadLength)) {
+        break;
+      }
+
+      String hash = new String(body.array(), 0, hashLength, StandardCharsets.US_ASCII);
+      int recordLength = RECORD_OVERHEAD + hashLength + payloadLength;
+      if (kind == TOMBSTONE) {
+        pack.totalBytes += recordLength;
+        Location dropped = index.remove(hash);
+        if (dropped != null) {
+          packs.get(dropped.packId).release(dropped);
+        }
+      } else {
+        Location location = new Location(pack.id, payloadOffset, payloadLength, recordLength, kind, storedAt);
+        pack.add(location);
+        Location replaced = index.put(hash, location);
+        if (replaced != null) {
+          packs.get(replaced.packId).release(replaced);
+        }
+      }
+      position += recordLength;
+      found = true;
+    }
+    pack.scannedTo = position;
+    pack.size = position;
+    pack.locked = isHeldElsewhere(pack);
+    if (position < size && !pack.locked) {
+      pack.locked = readOnly || !truncate(pack, position, size);
+    }
+    return found;
+  }
+
+  /**
+   * Checks if another writer holds a pack, which it does for as long as it may append to it
+   * */
+  private static boolean isHeldElsewhere(Pack pack) {
+    try {
+      FileLock lock = pack.channel.tryLock(0, Long.MAX_VALUE, true);
+      if (lock == null) {
+        return true;
+      }
+      lock.release();
+      return false;
+    } catch (OverlappingFileLockException e) {
+      // Written by another instance in this process
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Cuts off a half-written batch left behind by a crash, unless the pack is still being written
+   * @return false if another writer holds the pack
+   * */
+  private boolean truncate(Pack pack, long position, long size) {
+    try (FileChannel channel = FileChannel.open(pack.path, StandardOpenOption.WRITE)) {
+      FileLock lock = channel.tryLock();
+      if (lock == null) {
+        return false;
+      }
+      try {
+        channel.truncate(position);
+        channel.force(false);
+      } finally {
+        lock.release();
+      }
+      Logger.getLogger(PackStore.class.getName()).log(Level.WARNING, "Cut {0} bytes of a half-written batch from {1}",
+          new Object[]{size - position, pack.path});
+      return true;
+    } catch (OverlappingFileLockException e) {
+      // Written by another instance in this process
+      return false;
+    } catch (IOException e) {
+      Logger.getLogger(PackStore.class.getName()).log(Level.WARNING, "Could not truncate pack: " + pack.path, e);
+      return true;
+    }
+  }
+
+  private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A blob read back from a pack
+   * */
+  record Blob(byte kind, byte[] payload) {
+  }
+
+  private static final class Location {
+    private final int packId;
+    private final long offset;
+    private final int length;
+    private final int recordLength;
+    private final byte kind;
+    // The time the blob was last stored, which the garbage collector compares against
+    private volatile long storedAt;
+
+    private Location(int packId, long offset, int length, int recordLength, byte kind, long storedAt) {
+      this.packId = packId;
+      this.offset = offset;
+      this.length = length;
+      this.recordLength = recordLength;
+      this.kind = kind;
+      this.storedAt = storedAt;
+    }
+  }
+
+  private static final class Pending {
+    private final String hash;
+    private final byte kind;
+    private final byte[] payload;
+    // Offset of the payload and length of the whole record within the batch
+    private final int payloadOffset;
+    private final int recordLength;
+
+    private Pending(String hash, byte kind, byte[] payload, int payloadOffset, int recordLength) {
+      this.hash = hash;
+      this.kind = kind;
+      this.payload = payload;
+      this.payloadOffset = payloadOffset;
+      this.recordLength = recordLength;
+    }
+  }
+
+  private static final class Pack {
+    private final int id;
+    private final Path path;
+    private final FileChannel channel;
+    // Released by the garbage collector without the commit lock
+    private final AtomicLong liveBytes = new AtomicLong();
+    // Written under the commit lock, the last two are also read by lookups that miss the index
+    private long size;
+    private long totalBytes;
+    private volatile long scannedTo;
+    // Still written by another instance, so it is left alone
+    private volatile boolean locked;
+
+    private Pack(int id, Path path, FileChannel channel) {
+      this.id = id;
+      this.path = path;
+      this.channel = channel;
+    }
+
+    private void add(Location location) {
+      totalBytes += location.recordLength;
+      liveBytes.addAndGet(location.recordLength);
+    }
+
+    private void release(Location location) {
+      liveBytes.addAndGet(-location.recordLength);
+    }
+
+    private void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Logger.getLogger(PackStore.class.getName()).log(Level.WARNING, "Could not close pack: " + path, e);
+      }
+    }
+  }
+}
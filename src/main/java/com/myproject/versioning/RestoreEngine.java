@@ -0,0 +1,188 @@
+package com.myproject.versioning;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.myproject.helper.IoLimiter;
+import com.myproject.helper.ThreadHelper;
+
+/**
+ * The RestoreEngine class rebuilds a file or a whole folder of the watched directory as it was at a point in time.
+ * The content every file had at that time is worked out from the {@link VersionCatalog}, with the
+ * {@link BaselineIndex} covering files that never changed, and is then copied out of the {@link BlobStore}.
+ *
+ * <p>Files are restored in parallel, limited by the shared {@link IoLimiter}. Blobs stored in full without
+ * compression are copied with {@link FileChannel#transferTo}, so large restores run at disk speed instead of
+ * going through a read and write of every file on the heap, and large files stored as snapshots are cloned where
+ * the file system supports it. Every file is written to a temporary file next to
+ * its target first and moved into place once complete.
+ */
+public final class RestoreEngine {
+
+  private final BlobStore blobStore;
+  private final VersionCatalog versionCatalog;
+  private final BaselineIndex baselineIndex;
+  private final IoLimiter ioLimiter = IoLimiter.shared();
+
+  public RestoreEngine(BlobStore blobStore, VersionCatalog versionCatalog, BaselineIndex baselineIndex) {
+    this.blobStore = blobStore;
+    this.versionCatalog = versionCatalog;
+    this.baselineIndex = baselineIndex;
+  }
+
+  /**
+   * Works out the content every file at or below a path had at a point in time
+   * @param source the absolute path of a watched file or folder
+   * @param timestamp the point in time in epoch milliseconds
+   * @return the hash of the content of every file that existed at that time, by path
+   * */
+  public Map<Path, String> plan(Path source, long timestamp) {
+    Map<Path, String> plan = new LinkedHashMap<>();
+    Map<Path, List<ManifestEntry>> histories = new LinkedHashMap<>();
+    List<ManifestEntry> sourceHistory = versionCatalog.history(source);
+    if (!sourceHistory.isEmpty()) {
+      histories.put(source, sourceHistory);
+    }
+    histories.putAll(versionCatalog.historyBelow(source));
+
+    for (Map.Entry<Path, List<ManifestEntry>> history : histories.entrySet()) {
+      String hash = contentAt(history.getKey(), history.getValue(), timestamp);
+      if (hash != null) {
+        plan.put(history.getKey(), hash);
+      }
+    }
+
+    // Files that never changed have no versions, their content is the baseline they were indexed with
+    for (Path path : baselineIndex.paths()) {
+      BaselineIndex.Record record = baselineIndex.get(path);
+      if (record != null && !histories.containsKey(path) && (path.equals(source) || path.startsWith(source))) {
+        plan.put(path, record.getFingerprint().getHash());
+      }
+    }
+    return plan;
+  }
+
+  /**
+   * Restores every file at or below a path as it was at a point in time
+   * @param source the absolute path of a watched file or folder
+   * @param timestamp the point in time in epoch milliseconds
+   * @param target where the source is restored to. For a single file this can be an existing folder to restore into.
+   * @return what was restored
+   * @throws InterruptedException if the thread is interrupted while waiting for the restore to finish
+   * */
+  public RestoreResult restore(Path source, long timestamp, Path target) throws InterruptedException {
+    Map<Path, String> plan = plan(source, timestamp);
+    RestoreResult result = new RestoreResult();
+    boolean singleFile = plan.size() == 1 && plan.containsKey(source);
+
+    List<Future<?>> futures = new ArrayList<>(plan.size());
+    try (ExecutorService executor = ThreadHelper.newTaskExecutor("restore")) {
+      for (Map.Entry<Path, String> file : plan.entrySet()) {
+        Path destination = singleFile
+            ? (Files.isDirectory(target) ? target.resolve(source.getFileName()) : target)
+            : target.resolve(source.relativize(file.getKey()));
+        futures.add(executor.submit(() -> restoreFile(file.getKey(), file.getValue(), destination, result)));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      // restoreFile records its own failures, anything else is a bug
+      throw new IllegalStateException("Restore task failed", e.getCause());
+    }
+    return result;
+  }
+
+  /**
+   * Works out the content a file had at a point in time from its history
+   * @param path the absolute path of the file
+   * @param history the versions of the file in time order
+   * @param timestamp the point in time in epoch milliseconds
+   * @return the hash of the content, or null if the file did not exist at that time
+   * */
+  static String contentAt(Path path, List<ManifestEntry> history, long timestamp) {
+    ManifestEntry current = null;
+    for (ManifestEntry entry : history) {
+      if (entry.getTimestamp() > timestamp) {
+        break;
+      }
+      current = entry;
+    }
+    if (current != null) {
+      return current.isPresentAt(path) ? current.getHash() : null;
+    }
+
+    // Before its first version the file held the content that version replaced, unless it was created by it
+    // or moved to the path by it
+    ManifestEntry first = history.getFirst();
+    return switch (first.getEventType()) {
+      case ManifestEntry.MODIFIED -> ManifestEntry.NO_HASH.equals(first.getPreviousHash()) ? null : first.getPreviousHash();
+      case ManifestEntry.DELETED -> first.getHash();
+      case ManifestEntry.MOVED -> path.equals(first.getSourcePath()) ? first.getHash() : null;
+      default -> null;
+    };
+  }
+
+  private void restoreFile(Path source, String hash, Path destination, RestoreResult result) {
+    try {
+      ioLimiter.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      result.failedPaths.add(source);
+      return;
+    }
+    try {
+      Files.createDirectories(destination.getParent());
+      Path tempPath = Files.createTempFile(destination.getParent(), destination.getFileName().toString(), ".restore");
+      try {
+        long bytes = blobStore.copyTo(hash, tempPath);
+        Files.move(tempPath, destination, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        result.restoredFiles.increment();
+        result.restoredBytes.add(bytes);
+      } finally {
+        Files.deleteIfExists(tempPath);
+      }
+    } catch (IOException e) {
+      Logger.getLogger(RestoreEngine.class.getName()).log(Level.SEVERE, "Could not restore " + source + " to " + destination, e);
+      result.failedPaths.add(source);
+    } finally {
+      ioLimiter.release();
+    }
+  }
+
+  /**
+   * What a restore did
+   */
+  public static final class RestoreResult {
+    private final LongAdder restoredFiles = new LongAdder();
+    private final LongAdder restoredBytes = new LongAdder();
+    private final ConcurrentLinkedQueue<Path> failedPaths = new ConcurrentLinkedQueue<>();
+
+    public long getRestoredFiles() {
+      return restoredFiles.sum();
+    }
+
+    public long getRestoredBytes() {
+      return restoredBytes.sum();
+    }
+
+    public List<Path> getFailedPaths() {
+      return Collections.unmodifiableList(new ArrayList<>(failedPaths));
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package com.myproject.versioning;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.myproject.helper.ConfigHelper;
+
+/**
+ * The RetentionPolicy class decides which versions of a file are worth keeping. Versions are thinned out
+ * the older they get:
+ * <ul>
+ *   <li>the last {@code keepLast} versions of every file are always kept</li>
+ *   <li>every version younger than {@code keepAllDays} is kept</li>
+ *   <li>for the next {@code hourlyDays}, only the last version of every hour is kept</li>
+ *   <li>for the next {@code dailyDays}, only the last version of every day is kept, 0 keeps daily versions forever</li>
+ *   <li>anything older is dropped</li>
+ * </ul>
+ * On top of that {@code maxBytes} caps the total size of the blob store. Once it is exceeded the oldest versions
+ * are dropped as well, except for the last version of every file.
+ */
+public final class RetentionPolicy {
+  private static final long HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private final int keepLast;
+  private final long keepAllMillis;
+  private final long hourlyMillis;
+  private final long dailyMillis;
+  private final long maxBytes;
+
+  /**
+   * @param keepLast the number of most recent versions of a file that are always kept
+   * @param keepAllDays the number of days every version is kept for
+   * @param hourlyDays the number of days after that one version per hour is kept for
+   * @param dailyDays the number of days after that one version per day is kept for, 0 for forever
+   * @param maxBytes the largest total size of the blob store in bytes, 0 for no cap
+   */
+  public RetentionPolicy(int keepLast, long keepAllDays, long hourlyDays, long dailyDays, long maxBytes) {
+    this.keepLast = Math.max(1, keepLast);
+    this.keepAllMillis = TimeUnit.DAYS.toMillis(Math.max(0, keepAllDays));
+    this.hourlyMillis = TimeUnit.DAYS.toMillis(Math.max(0, hourlyDays));
+    this.dailyMillis = TimeUnit.DAYS.toMillis(Math.max(0, dailyDays));
+    this.maxBytes = Math.max(0, maxBytes);
+  }
+
+  /**
+   * Creates the policy configured by the {@code filesorter.retention.*} system properties
+   * @return the configured policy
+   * */
+  public static RetentionPolicy fromConfig() {
+    return new RetentionPolicy(
+        ConfigHelper.getInt(ConfigHelper.RETENTION_KEEP_LAST, 10),
+        ConfigHelper.getLong(ConfigHelper.RETENTION_KEEP_ALL_DAYS, 7),
+        ConfigHelper.getLong(ConfigHelper.RETENTION_HOURLY_DAYS, 30),
+        ConfigHelper.getLong(ConfigHelper.RETENTION_DAILY_DAYS, 365),
+        ConfigHelper.getLong(ConfigHelper.RETENTION_MAX_BYTES, 0));
+  }
+
+  /**
+   * Decides which versions of a file to keep
+   * @param history the versions of the file in time order
+   * @param now the current time in epoch milliseconds
+   * @return for every version of the history, true if it is kept
+   * */
+  public boolean[] retain(List<ManifestEntry> history, long now) {
+    int size = history.size();
+    boolean[] keep = new boolean[size];
+    for (int i = 0; i < size; i++) {
+      long timestamp = history.get(i).getTimestamp();
+      long age = now - timestamp;
+      // A version is the last of its hour or day if the next version falls into a later one
+      long nextTimestamp = i + 1 < size ? history.get(i + 1).getTimestamp() : Long.MAX_VALUE;
+
+      if (i >= size - keepLast || age <= keepAllMillis) {
+        keep[i] = true;
+      } else if (age <= keepAllMillis + hourlyMillis) {
+        keep[i] = timestamp / HOUR_MILLIS != nextTimestamp / HOUR_MILLIS;
+      } else if (dailyMillis == 0 || age <= keepAllMillis + hourlyMillis + dailyMillis) {
+        keep[i] = timestamp / DAY_MILLIS != nextTimestamp / DAY_MILLIS;
+      }
+    }
+    return keep;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public int getKeepLast() {
+    return keepLast;
+  }
+}
@@ -0,0 +1,282 @@
+package com.myproject.versioning;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The SnapshotStrategies class holds the ways a file can be snapshotted, best first:
+ * <ol>
+ *   <li>{@link #REFLINK}, a copy-on-write clone on file systems such as btrfs and XFS, which takes no time and no
+ *   space until one of the copies is written</li>
+ *   <li>{@link #HARDLINK}, a second name for the same file, for sources that are never written again</li>
+ *   <li>{@link #TRANSFER}, {@link FileChannel#transferTo}, which lets the kernel copy without going through the heap</li>
+ *   <li>{@link #COPY}, a buffered copy that works everywhere</li>
+ * </ol>
+ * {@link #detect(Path, String)} probes which of them the versions folder supports. A snapshot then falls back along
+ * the detected strategies, since e.g. neither a clone nor a link works across file systems.
+ */
+public final class SnapshotStrategies {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Clones the file with {@code cp --reflink=always}, the JDK has no API for it */
+  public static final SnapshotStrategy REFLINK = new SnapshotStrategy() {
+    @Override
+    public String getName() {
+      return "reflink";
+    }
+
+    @Override
+    public boolean isCopyFree() {
+      return true;
+    }
+
+    @Override
+    public boolean requiresImmutableSource() {
+      return false;
+    }
+
+    @Override
+    public void snapshot(Path source, Path target) throws IOException {
+      Process process = new ProcessBuilder("cp", "--reflink=always", "--", source.toString(), target.toString())
+          .redirectErrorStream(true)
+          .start();
+      String output;
+      try (InputStream input = process.getInputStream()) {
+        output = new String(input.readAllBytes(), StandardCharsets.UTF_8).trim();
+      }
+      try {
+        if (process.waitFor() != 0) {
+          throw new IOException("Could not clone " + source + ": " + output);
+        }
+      } catch (InterruptedException e) {
+        process.destroy();
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while cloning " + source);
+      }
+    }
+  };
+
+  /** Links the target to the source, both names share one file from then on */
+  public static final SnapshotStrategy HARDLINK = new SnapshotStrategy() {
+    @Override
+    public String getName() {
+      return "hardlink";
+    }
+
+    @Override
+    public boolean isCopyFree() {
+      return true;
+    }
+
+    @Override
+    public boolean requiresImmutableSource() {
+      return true;
+    }
+
+    @Override
+    public void snapshot(Path source, Path target) throws IOException {
+      Files.deleteIfExists(target);
+      Files.createLink(target, source);
+    }
+  };
+
+  /** Copies the file between two channels, which the kernel can do without copying it through the heap */
+  public static final SnapshotStrategy TRANSFER = new SnapshotStrategy() {
+    @Override
+    public String getName() {
+      return "transfer";
+    }
+
+    @Override
+    public boolean isCopyFree() {
+      return false;
+    }
+
+    @Override
+    public boolean requiresImmutableSource() {
+      return false;
+    }
+
+    @Override
+    public void snapshot(Path source, Path target) throws IOException {
+      try (FileChannel input = FileChannel.open(source, StandardOpenOption.READ);
+           FileChannel output = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+               StandardOpenOption.TRUNCATE_EXISTING)) {
+        long size = input.size();
+        long copied = 0;
+        while (copied < size) {
+          long transferred = input.transferTo(copied, size - copied, output);
+          if (transferred <= 0) {
+            // The source was truncated while it was copied
+            break;
+          }
+          copied += transferred;
+        }
+      }
+    }
+  };
+
+  /** Copies the file through a buffer on the heap */
+  public static final SnapshotStrategy COPY = new SnapshotStrategy() {
+    @Override
+    public String getName() {
+      return "copy";
+    }
+
+    @Override
+    public boolean isCopyFree() {
+      return false;
+    }
+
+    @Override
+    public boolean requiresImmutableSource() {
+      return false;
+    }
+
+    @Override
+    public void snapshot(Path source, Path target) throws IOException {
+      try (InputStream input = Files.newInputStream(source);
+           OutputStream output = Files.newOutputStream(target)) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = input.read(buffer)) >= 0) {
+          output.write(buffer, 0, read);
+        }
+      }
+    }
+  };
+
+  private static final List<SnapshotStrategy> ORDER = List.of(REFLINK, HARDLINK, TRANSFER, COPY);
+
+  /** The strategies that need no probing, used when nothing was detected */
+  public static final List<SnapshotStrategy> FALLBACK = List.of(TRANSFER, COPY);
+
+  private SnapshotStrategies() {
+  }
+
+  /**
+   * Finds the strategies a folder supports, by trying the ones that need file system support on a probe file
+   * @param directory the folder snapshots are made in, created if needed
+   * @param preferred the name of the best strategy to be tried, or "auto" to try all of them
+   * @return the supported strategies, best first. Those at or after transfer are always included.
+   * @throws IllegalArgumentException if no strategy has the preferred name
+   * */
+  public static List<SnapshotStrategy> detect(Path directory, String preferred) {
+    List<SnapshotStrategy> candidates = "auto".equalsIgnoreCase(preferred.trim())
+        ? ORDER
+        : ORDER.subList(ORDER.indexOf(forName(preferred)), ORDER.size());
+    List<SnapshotStrategy> supported = new ArrayList<>();
+    for (SnapshotStrategy strategy : candidates) {
+      if (FALLBACK.contains(strategy) || probe(directory, strategy)) {
+        supported.add(strategy);
+      }
+    }
+    Logger.getLogger(SnapshotStrategies.class.getName()).log(Level.INFO, "Snapshots in {0} try {1}",
+        new Object[]{directory, supported.stream().map(SnapshotStrategy::getName).toList()});
+    return List.copyOf(supported);
+  }
+
+  /**
+   * Snapshots a file with the best strategy that works for it
+   * @param strategies the strategies to be tried, best first
+   * @param source the file to be copied
+   * @param target where the copy is made. An existing file is replaced.
+   * @param immutableSource true if the source is never written again, which allows the target to be a link to it
+   * @return the strategy the snapshot was made with
+   * @throws IOException if no strategy could snapshot the file
+   * */
+  public static SnapshotStrategy snapshot(List<SnapshotStrategy> strategies, Path source, Path target,
+                                          boolean immutableSource) throws IOException {
+    IOException failure = null;
+    for (SnapshotStrategy strategy : strategies) {
+      if (strategy.requiresImmutableSource() && !immutableSource) {
+        continue;
+      }
+      try {
+        strategy.snapshot(source, target);
+        return strategy;
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (IOException e) {
+        if (failure == null) {
+          failure = e;
+        } else {
+          failure.addSuppressed(e);
+        }
+      }
+    }
+    throw failure != null ? failure : new IOException("No snapshot strategy for " + source);
+  }
+
+  /**
+   * Gets the best strategy of a list that can snapshot a file that may be written again
+   * @param strategies the strategies, best first
+   * @return the strategy, or null if there is none
+   * */
+  public static SnapshotStrategy bestForMutable(List<SnapshotStrategy> strategies) {
+    for (SnapshotStrategy strategy : strategies) {
+      if (!strategy.requiresImmutableSource()) {
+        return strategy;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Finds a strategy by its name
+   * @param name the name of the strategy, case insensitive
+   * @return the strategy
+   * @throws IllegalArgumentException if no strategy has this name
+   * */
+  public static SnapshotStrategy forName(String name) {
+    String key = name.trim().toLowerCase(Locale.ROOT);
+    for (SnapshotStrategy strategy : ORDER) {
+      if (strategy.getName().equals(key)) {
+        return strategy;
+      }
+    }
+    throw new IllegalArgumentException("Unknown snapshot strategy: " + name + ", expected auto, reflink, hardlink, transfer or copy");
+  }
+
+  private static boolean probe(Path directory, SnapshotStrategy strategy) {
+    Path source = null;
+    Path target = null;
+    try {
+      Files.createDirectories(directory);
+      source = Files.createTempFile(directory, "snapshot", ".probe");
+      Files.write(source, new byte[]{1, 2, 3});
+      target = source.resolveSibling(source.getFileName() + "." + strategy.getName());
+      strategy.snapshot(source, target);
+      return Files.size(target) == 3;
+    } catch (IOException e) {
+      Logger.getLogger(SnapshotStrategies.class.getName()).log(Level.FINE, strategy.getName() + " is not supported in " + directory, e);
+      return false;
+    } finally {
+      deleteQuietly(target);
+      deleteQuietly(source);
+    }
+  }
+
+  private static void deleteQuietly(Path path) {
+    if (path == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      Logger.getLogger(SnapshotStrategies.class.getName()).log(Level.WARNING, "Could not delete probe file: " + path, e);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package com.myproject.versioning;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A SnapshotStrategy copies a file as it is at one moment into the versions folder, or out of it again.
+ * Strategies range from a copy-on-write clone that shares the blocks of the source to a plain buffered copy,
+ * and are tried in that order until one works for the two paths at hand.
+ *
+ * @see SnapshotStrategies
+ */
+public interface SnapshotStrategy {
+
+  /**
+   * @return the name the strategy is selected by in the {@code filesorter.snapshot} system property
+   * */
+  String getName();
+
+  /**
+   * @return true if the snapshot costs neither a copy of the content nor the space for one
+   * */
+  boolean isCopyFree();
+
+  /**
+   * A snapshot that is the source itself, such as a hard link, changes whenever the source is written in place.
+   * Such strategies are only used for sources that are never written again.
+   * @return true if the strategy may only be used for immutable sources
+   * */
+  boolean requiresImmutableSource();
+
+  /**
+   * Snapshots a file
+   * @param source the file to be copied
+   * @param target where the copy is made. An existing file is replaced.
+   * @throws IOException if this strategy cannot snapshot the file, e.g. because the two paths are on different
+   * file systems, or if the file could not be read or written
+   * */
+  void snapshot(Path source, Path target) throws IOException;
+}
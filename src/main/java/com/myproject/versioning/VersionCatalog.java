@@ -0,0 +1,1207 @@
+package com.myproject.versioning;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The VersionCatalog class answers questions about past versions without walking the versions folder
+ * or rereading the manifest.
+ *
+ * <p>Versions are kept in two parts. The bulk of them is in a segment, {@code versions/catalog.seg}, that holds the
+ * versions sorted by path and in time order per path, followed by a sparse index of the first path of every 8 KiB
+ * and an index by time. Only the sparse index is read when the catalog is opened, the versions themselves are read
+ * when a query asks for them, so opening a catalog of millions of versions costs neither the time to parse the
+ * manifest nor the memory to hold it. Versions recorded after the segment was written, the tail, are kept in memory:
+ * <ul>
+ *   <li>by path, sorted by path, with the versions of each path in time order, so the history of a file and the
+ *   state of a whole directory at a point in time are range lookups</li>
+ *   <li>by time, for every event in a time range</li>
+ *   <li>by event type and time, e.g. every deletion in the last hour</li>
+ * </ul>
+ * Every query merges the two parts. The segment records how much of the manifest it covers and a checksum of the
+ * end of that part, the tail is read from the manifest after it. A segment that no longer matches the manifest is
+ * ignored and the whole manifest is read instead.
+ *
+ * <p>A catalog opened for writing rewrites the segment with the tail merged in when it is opened with a large
+ * tail, when it is closed, and in between on the thread of the {@link GarbageCollector}, after a collection dropped
+ * versions and whenever the tail has grown by another {@value #MIN_COMPACTION_ENTRIES} versions. The new segment is
+ * written from a copy of the tail, so new versions are only held up while the segment is swapped. Versions the group
+ * committer has not written to the manifest yet stay in the tail, since the segment covers only the written part.
+ *
+ * <p>Versions are keyed by their full original path, so files with the same name in different folders never collide.
+ * A move is kept in the histories of both of its paths, as the last version of one and the first of the other.
+ */
+public final class VersionCatalog {
+  private static final String SEGMENT_NAME = "catalog.seg";
+  private static final int SEGMENT_MAGIC = 0x46534331;
+  // Offsets of the sparse index and the time index, the number of versions, the length and checksum of the
+  // manifest the segment covers, and the magic
+  private static final int FOOTER_SIZE = 5 * Long.BYTES + Integer.BYTES;
+  // Every time index entry is a timestamp and the offset of the version in the segment
+  private static final int TIME_ENTRY_SIZE = 2 * Long.BYTES;
+  private static final int BLOCK_SIZE = 8 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // Enough for most single versions, longer ones are read in several parts
+  private static final int LINE_BUFFER_SIZE = 512;
+  // Small tails are merged into the segment only when the catalog is closed or after a collection
+  private static final int MIN_COMPACTION_ENTRIES = 1024;
+  // Every version is filed under its path, a move also under its source path
+  private static final char FILED_UNDER_PATH = 'p';
+  private static final char FILED_UNDER_SOURCE = 's';
+
+  // The tail, keyed by the path as a string so the files below a directory form one contiguous range
+  private final TreeMap<String, List<ManifestEntry>> entriesByPath = new TreeMap<>();
+  private final TreeMap<Long, List<ManifestEntry>> entriesByTime = new TreeMap<>();
+  private final Map<String, TreeMap<Long, List<ManifestEntry>>> entriesByType = new HashMap<>();
+  // Guards the tail
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  // Readers of the segment share it, replacing or closing the segment takes it exclusively
+  private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+  // Manifest lines of versions dropped from the segment since it was written
+  private final Set<String> removedLines = ConcurrentHashMap.newKeySet();
+  // Held by a rewrite of the segment and by the removal of versions, so the two never overlap
+  private final ReentrantLock compactionLock = new ReentrantLock();
+  private final VersionManifest versionManifest;
+  private final Path segmentPath;
+  private final boolean readOnly;
+  // Null if there is none
+  private Segment segment;
+  private long size;
+  private long removedFromSegment;
+  // Runs the rewrites once the tail has grown, null until the garbage collector hands over its thread
+  private volatile Executor compactionExecutor;
+  // The size of the tail the last rewrite left behind, and whether the next rewrite is queued already
+  private long compactedSize;
+  private boolean compactionQueued;
+
+  /**
+   * Opens the catalog of every version recorded in a manifest. A manifest opened read-only gives a catalog that
+   * never writes its segment.
+   * @param versionManifest the manifest to be indexed
+   * */
+  public VersionCatalog(VersionManifest versionManifest) {
+    this.versionManifest = versionManifest;
+    this.segmentPath = versionManifest.getManifestPath().resolveSibling(SEGMENT_NAME);
+    this.readOnly = versionManifest.isReadOnly();
+    this.segment = Segment.open(segmentPath, versionManifest);
+    List<ManifestEntry> tail = new ArrayList<>();
+    versionManifest.readFrom(segment == null ? 0 : segment.manifestLength, tail);
+    for (ManifestEntry entry : tail) {
+      add(entry);
+    }
+    if (!readOnly && (segment == null ? size > 0 : size >= MIN_COMPACTION_ENTRIES)) {
+      compact();
+    }
+  }
+
+  /**
+   * Appends a newly recorded version to the manifest and adds it to every index. Both happen under the lock of the
+   * tail, so a rewrite of the segment sees every line of the manifest in the catalog. Queues a rewrite once the tail
+   * has grown by another {@value #MIN_COMPACTION_ENTRIES} versions.
+   * @param entry the entry to be recorded
+   * @throws IOException if the manifest could not be written
+   * */
+  public void record(ManifestEntry entry) throws IOException {
+    Executor executor = null;
+    lock.writeLock().lock();
+    try {
+      versionManifest.append(entry);
+      add(entry);
+      if (!compactionQueued && compactionExecutor != null && size - compactedSize >= MIN_COMPACTION_ENTRIES) {
+        compactionQueued = true;
+        executor = compactionExecutor;
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (executor != null) {
+      try {
+        executor.execute(this::compactIfNeeded);
+      } catch (RejectedExecutionException e) {
+        // The garbage collector is closed, the catalog writes its segment when it is closed itself
+      }
+    }
+  }
+
+  /**
+   * Adds a version that is in the manifest already to every index
+   * @param entry the entry that was appended to the manifest
+   * */
+  public void add(ManifestEntry entry) {
+    lock.writeLock().lock();
+    try {
+      insertInTimeOrder(entriesByPath.computeIfAbsent(entry.getPath().toString(), key -> new ArrayList<>()), entry);
+      if (entry.getSourcePath() != null) {
+        insertInTimeOrder(entriesByPath.computeIfAbsent(entry.getSourcePath().toString(), key -> new ArrayList<>()), entry);
+      }
+      entriesByTime.computeIfAbsent(entry.getTimestamp(), key -> new ArrayList<>(1)).add(entry);
+      entriesByType.computeIfAbsent(entry.getEventType(), key -> new TreeMap<>())
+          .computeIfAbsent(entry.getTimestamp(), key -> new ArrayList<>(1)).add(entry);
+      size++;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Removes versions that were dropped from the manifest from every index. Versions of the segment are filtered out
+   * of it until it is rewritten, see {@link #compactIfNeeded()}.
+   * @param entries the entries to be removed, as returned by this catalog
+   * */
+  public void removeAll(Collection<ManifestEntry> entries) {
+    Set<ManifestEntry> removed = Collections.newSetFromMap(new IdentityHashMap<>());
+    removed.addAll(entries);
+    compactionLock.lock();
+    lock.writeLock().lock();
+    try {
+      // Every key is visited once, all removed entries under it go in a single pass
+      Set<String> paths = new HashSet<>();
+      Set<Long> timestamps = new HashSet<>();
+      for (ManifestEntry entry : removed) {
+        paths.add(entry.getPath().toString());
+        if (entry.getSourcePath() != null) {
+          paths.add(entry.getSourcePath().toString());
+        }
+        timestamps.add(entry.getTimestamp());
+      }
+      for (String path : paths) {
+        removeFrom(entriesByPath, path, removed);
+      }
+      long removedFromTail = 0;
+      for (Long timestamp : timestamps) {
+        // A move is listed under two paths but under its time only once
+        removedFromTail += removeFrom(entriesByTime, timestamp, removed);
+        for (TreeMap<Long, List<ManifestEntry>> byType : entriesByType.values()) {
+          removeFrom(byType, timestamp, removed);
+        }
+      }
+      size -= removedFromTail;
+      if (removed.size() > removedFromTail && segment != null) {
+        // The rest came from the segment, which is filtered until it is written again
+        for (ManifestEntry entry : removed) {
+          removedLines.add(entry.toLine());
+        }
+        removedFromSegment += removed.size() - removedFromTail;
+      }
+    } finally {
+      lock.writeLock().unlock();
+      compactionLock.unlock();
+    }
+  }
+
+  /**
+   * Gets every version of a file
+   * @param path the absolute path of the file
+   * @return the versions in the order they were recorded, empty if the file was never versioned
+   * */
+  public List<ManifestEntry> history(Path path) {
+    String key = path.toString();
+    List<ManifestEntry> history = new ArrayList<>();
+    forEachHistory(key, key + (char) 0, (historyPath, entries) -> history.addAll(entries));
+    return history;
+  }
+
+  /**
+   * Gets the last version of a file recorded at or before a point in time
+   * @param path the absolute path of the file
+   * @param timestamp the point in time in epoch milliseconds
+   * @return the version or null if the file had no version yet. The version is a deletion if the file was deleted,
+   * or a move away from the path if it was moved.
+   * */
+  public ManifestEntry versionAt(Path path, long timestamp) {
+    return lastAtOrBefore(history(path), timestamp);
+  }
+
+  /**
+   * Gets the state of every versioned file below a directory at a point in time
+   * @param directory the absolute path of the directory
+   * @param timestamp the point in time in epoch milliseconds
+   * @return the last version of every file that existed at that time, by path and in path order
+   * */
+  public Map<Path, ManifestEntry> stateAt(Path directory, long timestamp) {
+    Map<Path, ManifestEntry> state = new LinkedHashMap<>();
+    String prefix = prefixOf(directory);
+    forEachHistory(prefix, endOf(prefix), (path, entries) -> {
+      ManifestEntry entry = lastAtOrBefore(entries, timestamp);
+      if (entry != null && entry.isPresentAt(path)) {
+        state.put(path, entry);
+      }
+    });
+    return state;
+  }
+
+  /**
+   * Gets every version recorded below a directory
+   * @param directory the absolute path of the directory
+   * @return the histories of the files by path and in path order
+   * */
+  public Map<Path, List<ManifestEntry>> historyBelow(Path directory) {
+    Map<Path, List<ManifestEntry>> histories = new LinkedHashMap<>();
+    String prefix = prefixOf(directory);
+    forEachHistory(prefix, endOf(prefix), histories::put);
+    return histories;
+  }
+
+  /**
+   * Walks the history of every file that was ever versioned, in path order. The segment is read as it is walked,
+   * so the whole catalog is never held in memory at once, and versions can be recorded meanwhile.
+   * @param action receives the path and the versions of each file in the order they were recorded
+   * */
+  public void forEachHistory(BiConsumer<Path, List<ManifestEntry>> action) {
+    forEachHistory(null, null, action);
+  }
+
+  /**
+   * Gets every event of a type in a time range, e.g. all deletions in the last hour
+   * @param eventType one of the {@link ManifestEntry} event types, or null for every type
+   * @param from the start of the range in epoch milliseconds, inclusive
+   * @param to the end of the range in epoch milliseconds, inclusive
+   * @return the events in the order they were recorded
+   * */
+  public List<ManifestEntry> events(String eventType, long from, long to) {
+    List<ManifestEntry> events = new ArrayList<>();
+    if (from > to) {
+      return events;
+    }
+    List<ManifestEntry> tailEvents = new ArrayList<>();
+    lock.readLock().lock();
+    try {
+      TreeMap<Long, List<ManifestEntry>> index = eventType == null ? entriesByTime : entriesByType.get(eventType);
+      if (index != null) {
+        for (List<ManifestEntry> entries : index.subMap(from, true, to, true).values()) {
+          tailEvents.addAll(entries);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    segmentLock.readLock().lock();
+    try {
+      if (segment != null) {
+        segment.forEachInTime(from, to, line -> {
+          if ((eventType == null || eventType.equals(eventTypeOf(line))) && !removedLines.contains(line)) {
+            events.add(ManifestEntry.parse(line));
+          }
+        });
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read version catalog: " + segmentPath, e);
+    } finally {
+      segmentLock.readLock().unlock();
+    }
+    return mergeInTimeOrder(events, tailEvents);
+  }
+
+  /**
+   * @return the paths of every file that was ever versioned
+   * */
+  public Collection<String> paths() {
+    List<String> paths = new ArrayList<>();
+    forEachHistory((path, entries) -> paths.add(path.toString()));
+    return paths;
+  }
+
+  public long size() {
+    lock.readLock().lock();
+    try {
+      return size + (segment == null ? 0 : segment.entryCount - removedFromSegment);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Rewrites the segment if versions were dropped since it was written or the tail has grown past the threshold.
+   * Called by the {@link GarbageCollector} on its own thread after a collection, and when a rewrite is queued.
+   * */
+  public void compactIfNeeded() {
+    if (readOnly) {
+      return;
+    }
+    boolean dirty;
+    lock.writeLock().lock();
+    try {
+      compactionQueued = false;
+      dirty = size >= MIN_COMPACTION_ENTRIES || !removedLines.isEmpty();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    if (dirty) {
+      compact();
+    }
+  }
+
+  /**
+   * Writes the tail into the segment if it has grown or versions were dropped, and closes the segment. Should be
+   * called after the {@link GroupCommitter} was closed, so every recorded version is in the manifest and in the
+   * segment.
+   * */
+  public void close() {
+    compactionLock.lock();
+    try {
+      if (!readOnly) {
+        boolean dirty;
+        lock.readLock().lock();
+        try {
+          dirty = size >= MIN_COMPACTION_ENTRIES || !removedLines.isEmpty() || (segment == null && size > 0);
+        } finally {
+          lock.readLock().unlock();
+        }
+        if (dirty) {
+          compact();
+        }
+      }
+      segmentLock.writeLock().lock();
+      try {
+        if (segment != null) {
+          segment.close();
+          segment = null;
+        }
+      } finally {
+        segmentLock.writeLock().unlock();
+      }
+    } finally {
+      compactionLock.unlock();
+    }
+  }
+
+  /**
+   * Has the segment rewritten on an executor once the tail has grown, such as the thread of the garbage collector
+   * @param executor runs the rewrites, one at a time
+   * */
+  void compactOn(Executor executor) {
+    this.compactionExecutor = executor;
+  }
+
+  /**
+   * Walks the histories of the paths in a range, merging the segment and the tail
+   * @param fromKey the first path of the range, inclusive, or null to start with the first path
+   * @param toKey the end of the range, exclusive, or null to walk to the last path
+   * */
+  private void forEachHistory(String fromKey, String toKey, BiConsumer<Path, List<ManifestEntry>> action) {
+    forEachRecords(fromKey, toKey, (key, records) -> {
+      List<ManifestEntry> entries = new ArrayList<>(records.size());
+      for (Record record : records) {
+        entries.add(record.entry());
+      }
+      action.accept(Paths.get(key), entries);
+    });
+  }
+
+  /**
+   * Walks the versions of the paths in a range as records, the segment part of each history first read from the
+   * segment and then merged with the tail part in time order
+   * */
+  private void forEachRecords(String fromKey, String toKey, BiConsumer<String, List<Record>> action) {
+    forEachRecords(fromKey, toKey, new TailCursor(tailRange(fromKey, toKey)), action);
+  }
+
+  private void forEachRecords(String fromKey, String toKey, TailCursor tail, BiConsumer<String, List<Record>> action) {
+    segmentLock.readLock().lock();
+    try {
+      if (segment != null) {
+        List<Record> group = new ArrayList<>();
+        String[] groupKey = {null};
+        segment.scan(fromKey, toKey, (key, record) -> {
+          if (!key.equals(groupKey[0])) {
+            if (groupKey[0] != null) {
+              tail.emit(groupKey[0], group, action);
+            }
+            groupKey[0] = key;
+            group.clear();
+          }
+          if (!removedLines.contains(record.line)) {
+            group.add(record);
+          }
+        });
+        if (groupKey[0] != null) {
+          tail.emit(groupKey[0], group, action);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Could not read version catalog: " + segmentPath, e);
+    } finally {
+      segmentLock.readLock().unlock();
+    }
+    tail.emitRest(action);
+  }
+
+  /**
+   * Copies the tail histories of the paths in a range, so the segment can be read without holding up new versions
+   * */
+  private TreeMap<String, List<ManifestEntry>> tailRange(String fromKey, String toKey) {
+    TreeMap<String, List<ManifestEntry>> range = new TreeMap<>();
+    lock.readLock().lock();
+    try {
+      NavigableMap<String, List<ManifestEntry>> histories = entriesByPath;
+      if (fromKey != null) {
+        histories = histories.tailMap(fromKey, true);
+      }
+      if (toKey != null) {
+        histories = histories.headMap(toKey, false);
+      }
+      for (Map.Entry<String, List<ManifestEntry>> history : histories.entrySet()) {
+        range.put(history.getKey(), new ArrayList<>(history.getValue()));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return range;
+  }
+
+  private static List<Record> tailRecords(String key, List<ManifestEntry> entries) {
+    List<Record> records = new ArrayList<>(entries.size());
+    for (ManifestEntry entry : entries) {
+      boolean underSource = !entry.getPath().toString().equals(key);
+      if (!underSource && entry.getPath().equals(entry.getSourcePath())) {
+        // A move onto its own path is listed twice, the second time as filed under its source
+        underSource = records.stream().anyMatch(record -> record.entry == entry);
+      }
+      records.add(new Record(entry, underSource));
+    }
+    return records;
+  }
+
+  /**
+   * Merges the tail into the segment and writes the result as the new segment, which replaces the old one
+   * atomically. The segment is written from a copy of the tail, so new versions and queries are only held up while
+   * the copy is taken and the new segment is swapped in. Versions whose lines the manifest has not written yet stay
+   * in the tail.
+   * */
+  private void compact() {
+    Path tempPath = segmentPath.resolveSibling(SEGMENT_NAME + ".tmp");
+    compactionLock.lock();
+    try {
+      long coveredLength;
+      List<ManifestEntry> written = new ArrayList<>();
+      TreeMap<String, List<ManifestEntry>> writtenByPath = new TreeMap<>();
+      lock.writeLock().lock();
+      try {
+        // Every line appended so far is in the tail or the segment, as versions are recorded under this lock
+        List<String> unwritten = new ArrayList<>();
+        coveredLength = versionManifest.writtenLength(unwritten);
+        Set<ManifestEntry> held = heldBack(unwritten);
+        for (List<ManifestEntry> entries : entriesByTime.values()) {
+          for (ManifestEntry entry : entries) {
+            if (held.contains(entry)) {
+              continue;
+            }
+            written.add(entry);
+            writtenByPath.computeIfAbsent(entry.getPath().toString(), key -> new ArrayList<>()).add(entry);
+            if (entry.getSourcePath() != null) {
+              writtenByPath.computeIfAbsent(entry.getSourcePath().toString(), key -> new ArrayList<>()).add(entry);
+            }
+          }
+        }
+      } finally {
+        lock.writeLock().unlock();
+      }
+      long checksum = versionManifest.checksum(coveredLength);
+      if (checksum < 0) {
+        return;
+      }
+
+      long entryCount;
+      segmentLock.readLock().lock();
+      try {
+        entryCount = write(tempPath, coveredLength, checksum, writtenByPath, written);
+      } finally {
+        segmentLock.readLock().unlock();
+      }
+      Files.move(tempPath, segmentPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      Segment compacted = Segment.open(segmentPath, versionManifest);
+      if (compacted == null || compacted.entryCount != entryCount) {
+        throw new IOException("Written version catalog could not be read back");
+      }
+      swap(compacted, written);
+    } catch (IOException | UncheckedIOException e) {
+      // The catalog keeps working from the old segment and the tail
+      Logger.getLogger(VersionCatalog.class.getName()).log(Level.SEVERE, "Could not write version catalog: " + segmentPath, e);
+    } finally {
+      compactionLock.unlock();
+      try {
+        Files.deleteIfExists(tempPath);
+      } catch (IOException e) {
+        Logger.getLogger(VersionCatalog.class.getName()).log(Level.WARNING, "Could not delete: " + tempPath, e);
+      }
+    }
+  }
+
+  /**
+   * Picks the versions of the tail whose lines are not written to the manifest yet. A line that is in the manifest
+   * more than once is held back as often as it is unwritten, the latest versions first. Must be called while holding
+   * the write lock.
+   * @param unwritten the lines the manifest has buffered
+   * @return the versions to be kept out of the segment
+   * */
+  private Set<ManifestEntry> heldBack(List<String> unwritten) {
+    Set<ManifestEntry> held = Collections.newSetFromMap(new IdentityHashMap<>());
+    if (unwritten.isEmpty()) {
+      return held;
+    }
+    Map<String, Integer> counts = new HashMap<>();
+    for (String line : unwritten) {
+      counts.merge(line, 1, Integer::sum);
+    }
+    for (List<ManifestEntry> entries : entriesByTime.descendingMap().values()) {
+      for (int i = entries.size() - 1; i >= 0; i--) {
+        ManifestEntry entry = entries.get(i);
+        String line = entry.toLine();
+        Integer count = counts.get(line);
+        if (count == null) {
+          continue;
+        }
+        held.add(entry);
+        if (count > 1) {
+          counts.put(line, count - 1);
+        } else {
+          counts.remove(line);
+          if (counts.isEmpty()) {
+            return held;
+          }
+        }
+      }
+    }
+    return held;
+  }
+
+  /**
+   * Replaces the segment with a rewritten one and drops the versions written into it from the tail
+   * @param compacted the new segment
+   * @param written the versions of the tail that are in the new segment
+   * */
+  private void swap(Segment compacted, List<ManifestEntry> written) {
+    Set<ManifestEntry> moved = Collections.newSetFromMap(new IdentityHashMap<>());
+    moved.addAll(written);
+    lock.writeLock().lock();
+    segmentLock.writeLock().lock();
+    try {
+      if (segment != null) {
+        segment.close();
+      }
+      segment = compacted;
+      Set<String> paths = new HashSet<>();
+      Set<Long> timestamps = new HashSet<>();
+      for (ManifestEntry entry : written) {
+        paths.add(entry.getPath().toString());
+        if (entry.getSourcePath() != null) {
+          paths.add(entry.getSourcePath().toString());
+        }
+        timestamps.add(entry.getTimestamp());
+      }
+      for (String path : paths) {
+        removeFrom(entriesByPath, path, moved);
+      }
+      for (Long timestamp : timestamps) {
+        removeFrom(entriesByTime, timestamp, moved);
+        for (TreeMap<Long, List<ManifestEntry>> byType : entriesByType.values()) {
+          removeFrom(byType, timestamp, moved);
+        }
+      }
+      size -= written.size();
+      compactedSize = size;
+      removedLines.clear();
+      removedFromSegment = 0;
+    } finally {
+      segmentLock.writeLock().unlock();
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Writes the versions of the segment and of a copy of the tail as a new segment. Must be called while holding the
+   * read lock of the segment.
+   * @param tail the copied versions by path, in time order per path
+   * @param tailInTime the same versions in time order
+   * @return the number of versions written
+   * */
+  private long write(Path tempPath, long coveredLength, long checksum, TreeMap<String, List<ManifestEntry>> tail,
+                     List<ManifestEntry> tailInTime) throws IOException {
+    // Where the versions of the old segment and of the tail went, for the time index
+    OffsetMap moved = new OffsetMap();
+    Map<ManifestEntry, Long> tailOffsets = new IdentityHashMap<>();
+    List<Long> blockOffsets = new ArrayList<>();
+    List<String> blockKeys = new ArrayList<>();
+    long[] position = {0};
+    long[] entryCount = {0};
+
+    try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+        Files.newOutputStream(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), BUFFER_SIZE))) {
+      forEachRecords(null, null, new TailCursor(tail), (key, records) -> {
+        for (Record record : records) {
+          if (position[0] >= (long) blockOffsets.size() * BLOCK_SIZE) {
+            blockOffsets.add(position[0]);
+            blockKeys.add(key);
+          }
+          if (!record.underSource) {
+            if (record.offset >= 0) {
+              moved.add(record.offset, position[0]);
+            } else {
+              tailOffsets.put(record.entry, position[0]);
+            }
+            entryCount[0]++;
+          }
+          byte[] bytes = ((record.underSource ? FILED_UNDER_SOURCE : FILED_UNDER_PATH) + record.line + "\n").getBytes(StandardCharsets.UTF_8);
+          try {
+            output.write(bytes);
+          } catch (IOException e) {
+            throw new UncheckedIOException(e);
+          }
+          position[0] += bytes.length;
+        }
+      });
+
+      long blocksOffset = position[0];
+      output.writeInt(blockOffsets.size());
+      for (int i = 0; i < blockOffsets.size(); i++) {
+        output.writeLong(blockOffsets.get(i));
+        output.writeUTF(blockKeys.get(i));
+      }
+      long timesOffset = blocksOffset + Integer.BYTES + blockIndexLength(blockKeys);
+
+      // The old segment is in time order already, the tail is merged into it with the older version first
+      Iterator<ManifestEntry> times = tailInTime.iterator();
+      ManifestEntry nextTail = times.hasNext() ? times.next() : null;
+      if (segment != null) {
+        for (long[] time : segment.times(0)) {
+          long newOffset = moved.get(time[1]);
+          if (newOffset < 0) {
+            // Dropped since the old segment was written
+            continue;
+          }
+          while (nextTail != null && nextTail.getTimestamp() < time[0]) {
+            writeTime(output, nextTail.getTimestamp(), tailOffsets.get(nextTail));
+            nextTail = times.hasNext() ? times.next() : null;
+          }
+          writeTime(output, time[0], newOffset);
+        }
+      }
+      while (nextTail != null) {
+        writeTime(output, nextTail.getTimestamp(), tailOffsets.get(nextTail));
+        nextTail = times.hasNext() ? times.next() : null;
+      }
+
+      output.writeLong(blocksOffset);
+      output.writeLong(timesOffset);
+      output.writeLong(entryCount[0]);
+      output.writeLong(coveredLength);
+      output.writeLong(checksum);
+      output.writeInt(SEGMENT_MAGIC);
+    }
+    try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    }
+    return entryCount[0];
+  }
+
+  private static long blockIndexLength(List<String> blockKeys) {
+    long length = 0;
+    for (String key : blockKeys) {
+      length += Long.BYTES + 2 + modifiedUtf8Length(key);
+    }
+    return length;
+  }
+
+  /**
+   * @return the length of a string as written by {@link DataOutputStream#writeUTF(String)}, without its length prefix
+   * */
+  private static int modifiedUtf8Length(String value) {
+    int length = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      length += c >= 0x0001 && c <= 0x007F ? 1 : c > 0x07FF ? 3 : 2;
+    }
+    return length;
+  }
+
+  private static void writeTime(DataOutputStream output, long timestamp, long offset) throws IOException {
+    output.writeLong(timestamp);
+    output.writeLong(offset);
+  }
+
+  private static String prefixOf(Path directory) {
+    String prefix = directory.toString();
+    return prefix.endsWith(File.separator) ? prefix : prefix + File.separator;
+  }
+
+  /**
+   * Every path that starts with the prefix sorts before the prefix with its last character incremented
+   * */
+  private static String endOf(String prefix) {
+    return prefix.substring(0, prefix.length() - 1) + (char) (prefix.charAt(prefix.length() - 1) + 1);
+  }
+
+  private static String eventTypeOf(String line) {
+    int start = line.indexOf('\t') + 1;
+    return line.substring(start, line.indexOf('\t', start));
+  }
+
+  private static long timestampOf(String line) {
+    return Long.parseLong(line, 0, line.indexOf('\t'), 10);
+  }
+
+  /**
+   * Gets the path a version is filed under without parsing it, unless it is a move
+   * */
+  private static String keyOf(String line, boolean underSource) {
+    if (!underSource && !ManifestEntry.MOVED.equals(eventTypeOf(line))) {
+      // The path goes last, after five separators
+      int separator = -1;
+      for (int i = 0; i < 5; i++) {
+        separator = line.indexOf('\t', separator + 1);
+      }
+      return line.substring(separator + 1);
+    }
+    ManifestEntry entry = ManifestEntry.parse(line);
+    return (underSource ? entry.getSourcePath() : entry.getPath()).toString();
+  }
+
+  /**
+   * Merges two lists that are each in time order, taking from the first one on equal times
+   * */
+  private static <T> List<T> mergeInTimeOrder(List<T> first, List<T> second) {
+    if (second.isEmpty()) {
+      return first;
+    }
+    List<T> merged = new ArrayList<>(first.size() + second.size());
+    int i = 0;
+    int j = 0;
+    while (i < first.size() || j < second.size()) {
+      if (j == second.size() || (i < first.size() && timestampOf(first.get(i)) <= timestampOf(second.get(j)))) {
+        merged.add(first.get(i++));
+      } else {
+        merged.add(second.get(j++));
+      }
+    }
+    return merged;
+  }
+
+  private static long timestampOf(Object value) {
+    return value instanceof Record record ? record.timestamp : ((ManifestEntry) value).getTimestamp();
+  }
+
+  /**
+   * Removes every entry of a set from the list under a key, and the key once its list is empty
+   * @return the number of entries removed
+   * */
+  private static <K> int removeFrom(Map<K, List<ManifestEntry>> index, K key, Set<ManifestEntry> removed) {
+    List<ManifestEntry> entries = index.get(key);
+    if (entries == null) {
+      return 0;
+    }
+    int before = entries.size();
+    entries.removeIf(removed::contains);
+    if (entries.isEmpty()) {
+      index.remove(key);
+    }
+    return before - entries.size();
+  }
+
+  private static void insertInTimeOrder(List<ManifestEntry> entries, ManifestEntry entry) {
+    // Versions nearly always arrive in time order, so this is an append in practice
+    int index = entries.size();
+    while (index > 0 && entries.get(index - 1).getTimestamp() > entry.getTimestamp()) {
+      index--;
+    }
+    entries.add(index, entry);
+  }
+
+  private static ManifestEntry lastAtOrBefore(List<ManifestEntry> entries, long timestamp) {
+    int low = 0;
+    int high = entries.size() - 1;
+    ManifestEntry found = null;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      ManifestEntry entry = entries.get(middle);
+      if (entry.getTimestamp() <= timestamp) {
+        found = entry;
+        low = middle + 1;
+      } else {
+        high = middle - 1;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * A version as the segment keeps it: its manifest line, whether it is filed under the source path of a move,
+   * and where it is in the segment
+   */
+  private static final class Record {
+    private final String line;
+    private final boolean underSource;
+    private final long timestamp;
+    // The offset in the segment, -1 for a version of the tail
+    private final long offset;
+    private ManifestEntry entry;
+
+    private Record(String line, boolean underSource, long offset) {
+      this.line = line;
+      this.underSource = underSource;
+      this.timestamp = timestampOf(line);
+      this.offset = offset;
+    }
+
+    private Record(ManifestEntry entry, boolean underSource) {
+      this.line = entry.toLine();
+      this.underSource = underSource;
+      this.timestamp = entry.getTimestamp();
+      this.offset = -1;
+      this.entry = entry;
+    }
+
+    private ManifestEntry entry() {
+      if (entry == null) {
+        entry = ManifestEntry.parse(line);
+      }
+      return entry;
+    }
+  }
+
+  /**
+   * Walks the tail histories of a range of paths alongside the segment, both in path order
+   */
+  private static final class TailCursor {
+    private final Iterator<Map.Entry<String, List<ManifestEntry>>> histories;
+    private Map.Entry<String, List<ManifestEntry>> next;
+
+    private TailCursor(TreeMap<String, List<ManifestEntry>> histories) {
+      this.histories = histories.entrySet().iterator();
+      advance();
+    }
+
+    /**
+     * Hands over the tail histories of the paths before a path of the segment, then the merged history of the path
+     * */
+    private void emit(String key, List<Record> group, BiConsumer<String, List<Record>> action) {
+      while (next != null && next.getKey().compareTo(key) < 0) {
+        action.accept(next.getKey(), tailRecords(next.getKey(), next.getValue()));
+        advance();
+      }
+      List<Record> records = new ArrayList<>(group);
+      if (next != null && next.getKey().equals(key)) {
+        records = mergeInTimeOrder(records, tailRecords(key, next.getValue()));
+        advance();
+      }
+      if (!records.isEmpty()) {
+        action.accept(key, records);
+      }
+    }
+
+    /**
+     * Hands over the tail histories of the paths after the last path of the segment
+     * */
+    private void emitRest(BiConsumer<String, List<Record>> action) {
+      while (next != null) {
+        action.accept(next.getKey(), tailRecords(next.getKey(), next.getValue()));
+        advance();
+      }
+    }
+
+    private void advance() {
+      next = histories.hasNext() ? histories.next() : null;
+    }
+  }
+
+  /**
+   * Maps the offsets of the versions of an old segment to their offsets in the new one. Both are written in path
+   * order, so the old offsets arrive sorted and are looked up with a binary search.
+   */
+  private static final class OffsetMap {
+    private long[] oldOffsets = new long[1024];
+    private long[] newOffsets = new long[1024];
+    private int count;
+
+    private void add(long oldOffset, long newOffset) {
+      if (count == oldOffsets.length) {
+        oldOffsets = Arrays.copyOf(oldOffsets, count * 2);
+        newOffsets = Arrays.copyOf(newOffsets, count * 2);
+      }
+      oldOffsets[count] = oldOffset;
+      newOffsets[count] = newOffset;
+      count++;
+    }
+
+    /**
+     * @return the new offset, or -1 if the version was not written again
+     * */
+    private long get(long oldOffset) {
+      int index = Arrays.binarySearch(oldOffsets, 0, count, oldOffset);
+      return index < 0 ? -1 : newOffsets[index];
+    }
+  }
+
+  /**
+   * An open segment file. It is never written once it was opened, so readers share it without a lock of its own.
+   */
+  private static final class Segment {
+    private final Path path;
+    private final FileChannel channel;
+    private final long blocksOffset;
+    private final long timesOffset;
+    private final long timesEnd;
+    private final long entryCount;
+    private final long manifestLength;
+    // The offset and the first path of every block, in path order
+    private final long[] blockOffsets;
+    private final String[] blockKeys;
+
+    private Segment(Path path, FileChannel channel, long blocksOffset, long timesOffset, long timesEnd, long entryCount,
+                    long manifestLength, long[] blockOffsets, String[] blockKeys) {
+      this.path = path;
+      this.channel = channel;
+      this.blocksOffset = blocksOffset;
+      this.timesOffset = timesOffset;
+      this.timesEnd = timesEnd;
+      this.entryCount = entryCount;
+      this.manifestLength = manifestLength;
+      this.blockOffsets = blockOffsets;
+      this.blockKeys = blockKeys;
+    }
+
+    /**
+     * Opens a segment and reads its sparse index
+     * @return the segment, or null if there is none or it does not match the manifest
+     * */
+    private static Segment open(Path path, VersionManifest versionManifest) {
+      FileChannel channel;
+      try {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+      } catch (NoSuchFileException e) {
+        return null;
+      } catch (IOException e) {
+        Logger.getLogger(VersionCatalog.class.getName()).log(Level.WARNING, "Could not open version catalog: " + path, e);
+        return null;
+      }
+      try {
+        long size = channel.size();
+        if (size < FOOTER_SIZE) {
+          throw new IOException("Version catalog is too short");
+        }
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        readFully(channel, footer, size - FOOTER_SIZE);
+        long blocksOffset = footer.getLong(0);
+        long timesOffset = footer.getLong(8);
+        long entryCount = footer.getLong(16);
+        long manifestLength = footer.getLong(24);
+        long checksum = footer.getLong(32);
+        long timesEnd = size - FOOTER_SIZE;
+        if (footer.getInt(40) != SEGMENT_MAGIC || blocksOffset < 0 || timesOffset < blocksOffset || timesEnd < timesOffset
+            || (timesEnd - timesOffset) != entryCount * TIME_ENTRY_SIZE) {
+          throw new IOException("Version catalog is damaged");
+        }
+        if (versionManifest.checksum(manifestLength) != checksum) {
+          Logger.getLogger(VersionCatalog.class.getName()).log(Level.INFO, "Version catalog {0} is stale, reading the whole manifest", path);
+          channel.close();
+          return null;
+        }
+
+        ByteBuffer blocks = ByteBuffer.allocate((int) (timesOffset - blocksOffset));
+        readFully(channel, blocks, blocksOffset);
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(blocks.array()));
+        int count = input.readInt();
+        long[] blockOffsets = new long[count];
+        String[] blockKeys = new String[count];
+        for (int i = 0; i < count; i++) {
+          blockOffsets[i] = input.readLong();
+          blockKeys[i] = input.readUTF();
+        }
+        return new Segment(path, channel, blocksOffset, timesOffset, timesEnd, entryCount, manifestLength, blockOffsets, blockKeys);
+      } catch (IOException | RuntimeException e) {
+        Logger.getLogger(VersionCatalog.class.getName()).log(Level.WARNING, "Ignoring unreadable version catalog: " + path, e);
+        try {
+          channel.close();
+        } catch (IOException closeFailure) {
+          e.addSuppressed(closeFailure);
+        }
+        return null;
+      }
+    }
+
+    /**
+     * Reads the versions filed under the paths of a range, in path order
+     * @param fromKey the first path, inclusive, or null to start with the first one
+     * @param toKey the end of the range, exclusive, or null to read to the end
+     * */
+    private void scan(String fromKey, String toKey, BiConsumer<String, Record> visitor) throws IOException {
+      long start = 0;
+      if (fromKey != null) {
+        // The last block that starts before the key, the versions of the key may begin at its end
+        int index = Arrays.binarySearch(blockKeys, fromKey);
+        int block = index >= 0 ? index - 1 : -index - 2;
+        while (block > 0 && blockKeys[block].equals(fromKey)) {
+          block--;
+        }
+        start = block < 0 ? 0 : blockOffsets[block];
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(fromKey == null ? BUFFER_SIZE : BLOCK_SIZE);
+      readLines(start, blocksOffset, buffer, (offset, text) -> {
+        boolean underSource = text.charAt(0) == FILED_UNDER_SOURCE;
+        String line = text.substring(1);
+        String key = keyOf(line, underSource);
+        if (fromKey != null && key.compareTo(fromKey) < 0) {
+          return true;
+        }
+        if (toKey != null && key.compareTo(toKey) >= 0) {
+          return false;
+        }
+        visitor.accept(key, new Record(line, underSource, offset));
+        return true;
+      });
+    }
+
+    /**
+     * Reads the versions recorded in a time range, in the order they were recorded
+     * */
+    private void forEachInTime(long from, long to, Consumer<String> visitor) throws IOException {
+      long low = 0;
+      long high = entryCount;
+      ByteBuffer time = ByteBuffer.allocate(TIME_ENTRY_SIZE);
+      while (low < high) {
+        long middle = (low + high) >>> 1;
+        time.clear();
+        readFully(channel, time, timesOffset + middle * TIME_ENTRY_SIZE);
+        if (time.getLong(0) < from) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      ByteBuffer lineBuffer = ByteBuffer.allocate(LINE_BUFFER_SIZE);
+      for (long[] entry : times(low)) {
+        if (entry[0] > to) {
+          return;
+        }
+        readLines(entry[1], blocksOffset, lineBuffer, (offset, text) -> {
+          visitor.accept(text.substring(1));
+          return false;
+        });
+      }
+    }
+
+    /**
+     * @param first the index of the first entry
+     * @return the entries of the time index from one on as a timestamp and an offset, read as they are iterated
+     * */
+    private Iterable<long[]> times(long first) {
+      return () -> new Iterator<>() {
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE - BUFFER_SIZE % TIME_ENTRY_SIZE);
+        private long position = timesOffset + first * TIME_ENTRY_SIZE;
+
+        @Override
+        public boolean hasNext() {
+          return position < timesEnd || buffer.hasRemaining() && buffer.position() > 0;
+        }
+
+        @Override
+        public long[] next() {
+          if (buffer.position() == 0 || !buffer.hasRemaining()) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), timesEnd - position));
+            try {
+              readFully(channel, buffer, position);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+            position += buffer.limit();
+            buffer.flip();
+          }
+          return new long[]{buffer.getLong(), buffer.getLong()};
+        }
+      };
+    }
+
+    /**
+     * Reads the lines between two offsets
+     * @param buffer the buffer to read with, its size is how much is read at once
+     * @param visitor gets the offset and the text of each line without its line break, and returns false to stop
+     * */
+    private void readLines(long from, long to, ByteBuffer buffer, LineVisitor visitor) throws IOException {
+      // The part of a line that runs over the end of the buffer
+      ByteArrayOutputStream carry = new ByteArrayOutputStream(256);
+      long lineStart = from;
+      for (long position = from; position < to; ) {
+        buffer.clear().limit((int) Math.min(buffer.capacity(), to - position));
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+          throw new IOException("Version catalog ends early: " + path);
+        }
+        byte[] bytes = buffer.array();
+        int start = 0;
+        for (int i = 0; i < read; i++) {
+          if (bytes[i] != '\n') {
+            continue;
+          }
+          carry.write(bytes, start, i - start);
+          if (!visitor.visit(lineStart, carry.toString(StandardCharsets.UTF_8))) {
+            return;
+          }
+          carry.reset();
+          start = i + 1;
+          lineStart = position + start;
+        }
+        carry.write(bytes, start, read - start);
+        position += read;
+      }
+    }
+
+    private void close() {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Logger.getLogger(VersionCatalog.class.getName()).log(Level.WARNING, "Could not close version catalog: " + path, e);
+      }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, position + buffer.position()) < 0) {
+          throw new IOException("Version catalog ends early");
+        }
+      }
+    }
+  }
+
+  @FunctionalInterface
+  private interface LineVisitor {
+    boolean visit(long offset, String text);
+  }
+}
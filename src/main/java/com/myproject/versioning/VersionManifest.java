@@ -0,0 +1,460 @@
+package com.myproject.versioning;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The VersionManifest class is the append-only log of every versioned event.
+ * Entries are small text lines that point into the {@link BlobStore}, so recording a version
+ * never copies the content of the file again.
+ *
+ * <p>Every entry ends with a line break. A crash while an entry is written can leave the last line without one,
+ * so when the manifest is opened for writing it is cut back to its last line break, as {@link PackStore} cuts a
+ * half-written batch off a pack. Readers skip such a line instead, since a watcher may still be writing it.
+ *
+ * <p>A group committed manifest buffers appended entries until the {@link GroupCommitter} writes them, after the
+ * blobs they point at are durable, with one write and one fsync for the whole batch.
+ */
+public final class VersionManifest {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int CHECKSUM_BYTES = 4 * 1024;
+
+  private final Path manifestPath;
+  // A lock rather than a monitor, so virtual threads waiting on the manifest do not pin their carrier
+  private final ReentrantLock lock = new ReentrantLock();
+  private final boolean groupCommitted;
+  // Set for readers such as history and restore, which must not change the manifest under a running watcher
+  private final boolean readOnly;
+  // Lines appended but not written yet, guarded by the lock
+  private List<String> pendingLines = new ArrayList<>();
+  // Lines taken by the group committer that are not written yet, guarded by the lock
+  private List<String> committingLines = List.of();
+
+  public VersionManifest(Path versionsPath) {
+    this(versionsPath, false);
+  }
+
+  /**
+   * @param versionsPath the versions folder
+   * @param groupCommitted true if appended entries are buffered until a {@link GroupCommitter} writes them
+   * */
+  public VersionManifest(Path versionsPath, boolean groupCommitted) {
+    this(versionsPath, groupCommitted, false);
+  }
+
+  private VersionManifest(Path versionsPath, boolean groupCommitted, boolean readOnly) {
+    this.manifestPath = versionsPath.resolve("manifest.log");
+    this.groupCommitted = groupCommitted;
+    this.readOnly = readOnly;
+    if (!readOnly) {
+      cutTornTail();
+    }
+  }
+
+  /**
+   * Opens a manifest for reading only, nothing can be appended to or removed from it
+   * @param versionsPath the versions folder
+   * @return the manifest
+   * */
+  public static VersionManifest openReader(Path versionsPath) {
+    return new VersionManifest(versionsPath, false, true);
+  }
+
+  /**
+   * Appends an entry to the manifest
+   * @param entry the entry to be recorded
+   * @throws IOException if the manifest could not be written
+   * */
+  public void append(ManifestEntry entry) throws IOException {
+    checkWritable();
+    lock.lock();
+    try {
+      if (groupCommitted) {
+        pendingLines.add(entry.toLine());
+        return;
+      }
+      try (BufferedWriter writer = Files.newBufferedWriter(manifestPath, StandardCharsets.UTF_8,
+              StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+        writer.write(entry.toLine());
+        writer.newLine();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Takes the lines appended since the last batch, for the group committer
+   * @return the lines in the order they were appended
+   * */
+  List<String> takePending() {
+    lock.lock();
+    try {
+      List<String> lines = pendingLines;
+      pendingLines = new ArrayList<>();
+      committingLines = lines;
+      return lines;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes a batch of lines taken by {@link #takePending()} and makes them durable. A batch that fails is
+   * requeued, to be written with the next one.
+   * @param lines the lines to be written
+   * @throws IOException if the manifest could not be written
+   * */
+  void commit(List<String> lines) throws IOException {
+    if (lines.isEmpty()) {
+      return;
+    }
+    StringBuilder batch = new StringBuilder(lines.size() * 128);
+    for (String line : lines) {
+      batch.append(line).append(System.lineSeparator());
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+    lock.lock();
+    try (FileChannel channel = FileChannel.open(manifestPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND)) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+      committingLines = List.of();
+    } catch (IOException e) {
+      requeue(lines);
+      throw e;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Puts a batch of lines taken by {@link #takePending()} back in front of the lines appended since
+   * @param lines the lines that could not be written
+   * */
+  void requeue(List<String> lines) {
+    lock.lock();
+    try {
+      List<String> requeued = new ArrayList<>(lines.size() + pendingLines.size());
+      requeued.addAll(lines);
+      requeued.addAll(pendingLines);
+      pendingLines = requeued;
+      committingLines = List.of();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Reads every entry recorded in the manifest. Lines that cannot be parsed are skipped, and so is a last line
+   * that was not completely written yet.
+   * @return the entries in the order they were recorded
+   * */
+  public List<ManifestEntry> readAll() {
+    List<ManifestEntry> entries = new ArrayList<>();
+    readFrom(0, entries);
+    return entries;
+  }
+
+  /**
+   * Reads the entries recorded from an offset on, for the {@link VersionCatalog} that has the ones before it
+   * @param offset where to start reading, the end of a line
+   * @param entries receives the entries in the order they were recorded
+   * @return the offset after the last complete line that was read
+   * */
+  long readFrom(long offset, List<ManifestEntry> entries) {
+    long completeLength = offset;
+    lock.lock();
+    try (FileChannel channel = FileChannel.open(manifestPath, StandardOpenOption.READ)) {
+      completeLength = Math.max(offset, completeLength(channel));
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      // The part of a line that runs over the end of the buffer
+      ByteArrayOutputStream carry = new ByteArrayOutputStream(256);
+      for (long position = offset; position < completeLength; ) {
+        buffer.clear().limit((int) Math.min(buffer.capacity(), completeLength - position));
+        int read = channel.read(buffer, position);
+        if (read < 0) {
+          break;
+        }
+        position += read;
+        byte[] bytes = buffer.array();
+        int lineStart = 0;
+        for (int i = 0; i < read; i++) {
+          if (bytes[i] != '\n') {
+            continue;
+          }
+          carry.write(bytes, lineStart, i - lineStart);
+          parseLine(carry.toString(StandardCharsets.UTF_8), entries);
+          carry.reset();
+          lineStart = i + 1;
+        }
+        carry.write(bytes, lineStart, read - lineStart);
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing has been versioned yet
+    } catch (IOException e) {
+      Logger.getLogger(VersionManifest.class.getName()).log(Level.SEVERE, "Could not read manifest: " + manifestPath, e);
+    } finally {
+      lock.unlock();
+    }
+    return completeLength;
+  }
+
+  /**
+   * Checksums the last bytes of the manifest before an offset, so a {@link VersionCatalog} can tell whether the
+   * manifest still starts the way it did when it was indexed. A manifest rewritten by {@link #remove(Collection)}
+   * has its lines moved, which changes them.
+   * @param length the length of the part of the manifest to be checked
+   * @return the checksum, or -1 if the manifest is shorter or could not be read
+   * */
+  long checksum(long length) {
+    lock.lock();
+    try (FileChannel channel = FileChannel.open(manifestPath, StandardOpenOption.READ)) {
+      if (channel.size() < length) {
+        return -1;
+      }
+      ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(length, CHECKSUM_BYTES));
+      long start = length - buffer.capacity();
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, start + buffer.position()) < 0) {
+          return -1;
+        }
+      }
+      CRC32 checksum = new CRC32();
+      checksum.update(buffer.flip());
+      return checksum.getValue();
+    } catch (NoSuchFileException e) {
+      return length == 0 ? new CRC32().getValue() : -1;
+    } catch (IOException e) {
+      Logger.getLogger(VersionManifest.class.getName()).log(Level.WARNING, "Could not read manifest: " + manifestPath, e);
+      return -1;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the length of the manifest up to its last complete line
+   * @throws IOException if the manifest could not be read
+   * */
+  long completeLength() throws IOException {
+    lock.lock();
+    try (FileChannel channel = FileChannel.open(manifestPath, StandardOpenOption.READ)) {
+      return completeLength(channel);
+    } catch (NoSuchFileException e) {
+      return 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gets the written part of the manifest together with the lines appended but not written yet, in one consistent
+   * view, so a {@link VersionCatalog} can tell which of its versions the written part holds
+   * @param unwritten receives the lines that are buffered or being written by the group committer
+   * @return the length of the manifest up to its last complete line
+   * @throws IOException if the manifest could not be read
+   * */
+  long writtenLength(Collection<String> unwritten) throws IOException {
+    lock.lock();
+    try {
+      unwritten.addAll(committingLines);
+      unwritten.addAll(pendingLines);
+      return completeLength();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  boolean isReadOnly() {
+    return readOnly;
+  }
+
+  /**
+   * Removes entries from the manifest. The manifest is copied without them while new entries keep being appended,
+   * and only the lines appended during the copy are carried over while appends wait, so event handling is not
+   * held up by the size of the manifest.
+   * @param dropped the entries to be removed
+   * @return the number of lines that were removed
+   * @throws IOException if the manifest could not be rewritten, in which case it is left as it was
+   * */
+  public int remove(Collection<ManifestEntry> dropped) throws IOException {
+    checkWritable();
+    Set<String> droppedLines = new HashSet<>();
+    for (ManifestEntry entry : dropped) {
+      droppedLines.add(entry.toLine());
+    }
+    lock.lock();
+    try {
+      // Entries not written yet are dropped before they ever are
+      pendingLines.removeIf(droppedLines::contains);
+    } finally {
+      lock.unlock();
+    }
+
+    long snapshotLength;
+    lock.lock();
+    try {
+      snapshotLength = Files.exists(manifestPath) ? Files.size(manifestPath) : 0;
+    } finally {
+      lock.unlock();
+    }
+    if (snapshotLength == 0 || droppedLines.isEmpty()) {
+      return 0;
+    }
+
+    Path tempPath = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+    int removed = 0;
+    try (FileChannel source = FileChannel.open(manifestPath, StandardOpenOption.READ);
+         FileChannel target = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      InputStream input = new BufferedInputStream(Channels.newInputStream(source), BUFFER_SIZE);
+      OutputStream output = new BufferedOutputStream(Channels.newOutputStream(target), BUFFER_SIZE);
+      ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+      for (long position = 0; position < snapshotLength; position++) {
+        int value = input.read();
+        if (value < 0) {
+          break;
+        }
+        line.write(value);
+        if (value == '\n') {
+          if (droppedLines.contains(withoutTerminator(line.toString(StandardCharsets.UTF_8)))) {
+            removed++;
+          } else {
+            line.writeTo(output);
+          }
+          line.reset();
+        }
+      }
+      line.writeTo(output);
+      output.flush();
+
+      lock.lock();
+      try {
+        // Carry over whatever was appended while the copy was made, then swap the copy in
+        long length = source.size();
+        for (long position = snapshotLength; position < length; ) {
+          position += source.transferTo(position, length - position, target);
+        }
+        target.force(false);
+        Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } finally {
+        lock.unlock();
+      }
+    } finally {
+      Files.deleteIfExists(tempPath);
+    }
+    return removed;
+  }
+
+  public Path getManifestPath() {
+    return manifestPath;
+  }
+
+  /**
+   * Drops the line terminator, {@code \n} or {@code \r\n} as written by {@link #commit(List)}, and nothing else,
+   * so a path that starts or ends with whitespace keeps it
+   * */
+  private static String withoutTerminator(String line) {
+    int end = line.length();
+    if (end > 0 && line.charAt(end - 1) == '\n') {
+      end--;
+    }
+    if (end > 0 && line.charAt(end - 1) == '\r') {
+      end--;
+    }
+    return line.substring(0, end);
+  }
+
+  private static void parseLine(String line, List<ManifestEntry> entries) {
+    // Lines written with the line separator of Windows keep their carriage return
+    if (line.endsWith("\r")) {
+      line = line.substring(0, line.length() - 1);
+    }
+    if (line.isBlank()) {
+      return;
+    }
+    try {
+      entries.add(ManifestEntry.parse(line));
+    } catch (IllegalArgumentException e) {
+      Logger.getLogger(VersionManifest.class.getName()).log(Level.WARNING, "Skipping malformed manifest line: {0}", line);
+    }
+  }
+
+  /**
+   * Cuts off a last line that a crash left without its line break. Such an entry was never committed, the version
+   * it records is versioned again once the file is compared against the baseline index.
+   * */
+  private void cutTornTail() {
+    try (FileChannel channel = FileChannel.open(manifestPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long size = channel.size();
+      long completeLength = completeLength(channel);
+      if (completeLength < size) {
+        channel.truncate(completeLength);
+        channel.force(false);
+        Logger.getLogger(VersionManifest.class.getName()).log(Level.WARNING, "Cut {0} bytes of a half-written entry from {1}",
+            new Object[]{size - completeLength, manifestPath});
+      }
+    } catch (NoSuchFileException e) {
+      // Nothing has been versioned yet
+    } catch (IOException e) {
+      Logger.getLogger(VersionManifest.class.getName()).log(Level.SEVERE, "Could not recover manifest: " + manifestPath, e);
+    }
+  }
+
+  /**
+   * Finds the end of the last complete line by reading the manifest backwards from its end
+   * @return the length of the manifest up to and including its last line break, 0 if it has none
+   * */
+  private static long completeLength(FileChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(4096);
+    long end = channel.size();
+    while (end > 0) {
+      long start = Math.max(0, end - buffer.capacity());
+      buffer.clear().limit((int) (end - start));
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, start + buffer.position()) < 0) {
+          break;
+        }
+      }
+      for (int i = buffer.position() - 1; i >= 0; i--) {
+        if (buffer.get(i) == '\n') {
+          return start + i + 1;
+        }
+      }
+      end = start;
+    }
+    return 0;
+  }
+
+  private void checkWritable() {
+    if (readOnly) {
+      throw new IllegalStateException("Manifest is open read-only: " + manifestPath);
+    }
+  }
+}
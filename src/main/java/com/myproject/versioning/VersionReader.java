@@ -0,0 +1,58 @@
+package com.myproject.versioning;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The VersionReader class opens the versions folder of a watched directory for looking at past versions only, as
+ * {@code history} and {@code restore} do, possibly while a watcher is running on the same directory.
+ *
+ * <p>Unlike a {@link FileVersioner} it starts no group committer or garbage collector, probes no snapshot
+ * strategies and never compacts, truncates or appends to the manifest, the baseline index or the packs. Large files
+ * stored as snapshots are copied out with the {@link SnapshotStrategies#FALLBACK} strategies.
+ *
+ * <p>Usage example:
+ * <pre>
+ * {@code
+ * try (VersionReader reader = new VersionReader(Paths.get("path/to/directory"))) {
+ *   List<ManifestEntry> history = reader.getVersionCatalog().history(file);
+ * }
+ * }
+ * </pre>
+ */
+public final class VersionReader implements AutoCloseable {
+
+  // Null if no run stored blobs in packs
+  private final PackStore packStore;
+  private final VersionCatalog versionCatalog;
+  private final RestoreEngine restoreEngine;
+
+  public VersionReader(Path directoryPath) {
+    Path versionsPath = directoryPath.resolve("versions");
+    // Packs written by earlier runs stay readable even if packing has been turned off since
+    this.packStore = Files.isDirectory(versionsPath.resolve("packs")) ? PackStore.openReader(versionsPath) : null;
+    // Blobs name their codec in their header, the codec given here would only be used for writing
+    BlobStore blobStore = new BlobStore(versionsPath, BlobCodecs.NONE, null, 0, SnapshotStrategies.FALLBACK, packStore);
+    this.versionCatalog = new VersionCatalog(VersionManifest.openReader(versionsPath));
+    this.restoreEngine = new RestoreEngine(blobStore, versionCatalog, new BaselineIndex(versionsPath, true));
+  }
+
+  public VersionCatalog getVersionCatalog() {
+    return versionCatalog;
+  }
+
+  public RestoreEngine getRestoreEngine() {
+    return restoreEngine;
+  }
+
+  /**
+   * Closes the catalog and the packs that were opened for reading
+   * */
+  @Override
+  public void close() {
+    versionCatalog.close();
+    if (packStore != null) {
+      packStore.close();
+    }
+  }
+}
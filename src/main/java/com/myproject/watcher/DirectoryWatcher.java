@@ -1,130 +1,284 @@
 package com.myproject.watcher;
 
 import java.io.IOException;
-import java.nio.file.ClosedWatchServiceException;
-import java.nio.file.FileSystems;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+import com.myproject.helper.ConfigHelper;
 import com.myproject.helper.DirHelper;
-import com.myproject.helper.StringHelper;
+import com.myproject.helper.IoLimiter;
+import com.myproject.helper.ThreadHelper;
+import com.myproject.metrics.Counter;
+import com.myproject.metrics.MetricsExporter;
+import com.myproject.metrics.MetricsRegistry;
 
-public class DirectoryWatcher {
+public final class DirectoryWatcher {
     private final Path DIRECTORY_PATH;
-    private final WatchService watchService;
-    private final ConcurrentHashMap<Path, Long> mapPathToCreationTime = new ConcurrentHashMap<>();
+    private static final long DEFAULT_QUIET_PERIOD_MILLIS = 500;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 10_000;
+    private static final long DEFAULT_SCAN_PROGRESS_INTERVAL_MILLIS = 5_000;
+    private static final long DEFAULT_SCAN_TARGET_MILLIS = 60_000;
+    private static final long DEFAULT_POLL_MIN_INTERVAL_MILLIS = 250;
+    private static final long DEFAULT_POLL_MAX_INTERVAL_MILLIS = 10_000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final WatchBackend watchBackend;
     private final EventHandler eventHandler;
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final EventCoalescer eventCoalescer;
+    private final IoLimiter ioLimiter = IoLimiter.shared();
     private final AtomicBoolean running = new AtomicBoolean(true);
-    private final Set<Path> registeredDirectories = Collections.synchronizedSet(new HashSet<>());
+    // Directories that lost events and wait for a rescan
+    private final Set<Path> dirtyDirectories = ConcurrentHashMap.newKeySet();
+    // Walks new folders and rescans folders after an overflow, so neither blocks the watch loop or the coalescer
+    private final ExecutorService directoryExecutor = ThreadHelper.newTaskExecutor("directory-walker");
+    private final AtomicLong overflowCount = new AtomicLong();
+    private final AtomicLong rescanCount = new AtomicLong();
+    private final Counter createdEvents = MetricsRegistry.shared().counter("events.received.created", "Creation events received from the backend");
+    private final Counter modifiedEvents = MetricsRegistry.shared().counter("events.received.modified", "Modification events received from the backend");
+    private final Counter deletedEvents = MetricsRegistry.shared().counter("events.received.deleted", "Deletion events received from the backend");
 
     public DirectoryWatcher(Path DIRECTORY_PATH) throws IOException {
         System.out.println("Directory Watcher init");
-        this.watchService = FileSystems.getDefault().newWatchService();
-        this.eventHandler = new EventHandler(DIRECTORY_PATH, watchService);
+        this.watchBackend = WatchBackends.create(ConfigHelper.getString(ConfigHelper.WATCH_BACKEND, WatchBackends.DEFAULT),
+                ConfigHelper.getLong(ConfigHelper.POLL_MIN_INTERVAL_MILLIS, DEFAULT_POLL_MIN_INTERVAL_MILLIS),
+                ConfigHelper.getLong(ConfigHelper.POLL_MAX_INTERVAL_MILLIS, DEFAULT_POLL_MAX_INTERVAL_MILLIS));
+        this.eventHandler = new EventHandler(DIRECTORY_PATH);
+        this.eventCoalescer = new EventCoalescer(
+                ConfigHelper.getLong(ConfigHelper.COALESCE_QUIET_PERIOD_MILLIS, DEFAULT_QUIET_PERIOD_MILLIS),
+                ConfigHelper.getLong(ConfigHelper.COALESCE_MAX_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS),
+                this::dispatchEvent);
         this.DIRECTORY_PATH = DIRECTORY_PATH;
+        registerMetrics(watchBackend, eventCoalescer, overflowCount, rescanCount);
         watchAllDirectories();
         analyzeEvents();
     }
 
     /**
-     * Registers a directory to be watched by the watchservice class
+     * Registers the values the watcher keeps for itself with the shared metrics registry and starts exporting it,
+     * over JMX and, if {@code filesorter.metrics.port} is set, over HTTP
+     * @see MetricsExporter
+     * */
+    private static void registerMetrics(WatchBackend watchBackend, EventCoalescer eventCoalescer, AtomicLong overflowCount, AtomicLong rescanCount) {
+        MetricsRegistry registry = MetricsRegistry.shared();
+        registry.gauge("watcher.directories", "Directories watched by the " + watchBackend.getName() + " backend", watchBackend::size);
+        registry.counter("watcher.overflows", "Overflows of the watch backend", overflowCount::get);
+        registry.counter("watcher.rescans", "Directories rescanned after an overflow", rescanCount::get);
+        registry.gauge("coalescer.pending", "Paths waiting for their quiet period", eventCoalescer::getPendingCount);
+        registry.counter("coalescer.coalesced", "Raw events merged into an earlier event of the same path", eventCoalescer::getCoalescedEvents);
+        registry.counter("coalescer.cancelled", "Pending events that cancelled out, e.g. a file created and deleted again", eventCoalescer::getCancelledEvents);
+        MetricsExporter.start(registry, ConfigHelper.getInt(ConfigHelper.METRICS_PORT, 0), ConfigHelper.getBoolean(ConfigHelper.METRICS_JMX, true));
+    }
+
+    /**
+     * Registers a directory to be watched by the watch backend. Called concurrently by the tree scans.
      * @param path The directory to be watched
-     * @see WatchService watchservice
-     * @see ExecutorService executorService
+     * @see WatchBackend
      * */
     private void registerDirectory(Path path) {
-        executorService.submit(() -> {
-            try {
-                if (path != null && DirHelper.checkDirExists(path) && DirHelper.isADir(path)) {
-                    synchronized (registeredDirectories) {
-                        if (!registeredDirectories.contains(path)) {
-                            registeredDirectories.add(path);
-                            path.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
-                                    StandardWatchEventKinds.ENTRY_DELETE,
-                                    StandardWatchEventKinds.ENTRY_MODIFY);
-                        }
-                    }
-                }else{
-                    throw new RuntimeException("Entered Path: " + DIRECTORY_PATH + " is not a directory");
-
-                }
-            } catch (IOException e) {
-                Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Failed to register directory!", e);
-            }
-        });
+        try {
+            // Registration is blocking filesystem work, so it shares the disk I/O limit with event handling
+            ioLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            watchBackend.register(path);
+        } catch (NoSuchFileException e) {
+            // Removed again before it could be watched
+        } catch (IOException e) {
+            Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Failed to register directory!", e);
+        } finally {
+            ioLimiter.release();
+        }
     }
 
     /**
-     * Analyzes and handles the creation, delete and modify events that occur in a directory
+     * Takes the events of every watched directory from the backend and hands them to the coalescer
      */
     private void analyzeEvents() {
-        executorService.submit(() -> {
+        WatchBackend.Listener listener = new WatchBackend.Listener() {
+            @Override
+            public void onEvent(Path path, WatchEvent.Kind<?> eventKind) {
+                if (eventKind == StandardWatchEventKinds.ENTRY_CREATE) {
+                    createdEvents.increment();
+                } else if (eventKind == StandardWatchEventKinds.ENTRY_MODIFY) {
+                    modifiedEvents.increment();
+                } else {
+                    deletedEvents.increment();
+                }
+                // Events are merged per path before anything is read, folders are told apart after that
+                eventCoalescer.submit(path, eventKind);
+            }
+
+            @Override
+            public void onOverflow(Path directory) {
+                handleOverflow(directory);
+            }
+        };
+        // Every other thread is a daemon or virtual thread, this one keeps the JVM alive while the directory is watched
+        Thread watchThread = new Thread(() -> {
             try {
-                while (running.get()) {
-                    WatchKey key = this.watchService.take();
+                watchBackend.run(listener);
+                Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Watch backend closed!");
+                closeWatchService();
+            } catch (InterruptedException e) {
+                Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Watch service interrupted!", e);
+                Thread.currentThread().interrupt();
+            }
+        }, "directory-watcher");
+        watchThread.start();
+    }
 
-                    for (WatchEvent<?> event : key.pollEvents()) {
-                        WatchEvent.Kind<?> eventKind = event.kind();
-                        Path affectedPath = (Path) event.context();
-                        Path absolutePath = DIRECTORY_PATH.resolve(affectedPath);
-                        long currentTimeMillis = System.currentTimeMillis();
-                        String timestamp = StringHelper.formatTime();
+    /**
+     * Hands an event that the coalescer settled on over to the event handler. A deleted path that was a watched
+     * folder is handled as the deletion of the whole folder, a created folder is walked.
+     * @param absolutePath the path the event happened to
+     * @param eventKind the merged kind of the event
+     * @param timestamp the time of the last raw event of the path, in epoch milliseconds
+     * */
+    private void dispatchEvent(Path absolutePath, WatchEvent.Kind<?> eventKind, long timestamp) {
+        if (eventKind == StandardWatchEventKinds.ENTRY_DELETE) {
+            if (watchBackend.isDirectory(absolutePath)) {
+                watchBackend.unregisterTree(absolutePath);
+                eventHandler.consumeFolderDeletion(absolutePath, timestamp);
+                return;
+            }
+        } else if (Files.isDirectory(absolutePath, LinkOption.NOFOLLOW_LINKS)) {
+            // Created, moved in or replaced. A folder that is still watched only had its attributes changed.
+            if (!watchBackend.isWatched(absolutePath)) {
+                submitDirectoryTask(absolutePath, () -> handleDirectoryCreation(absolutePath));
+            }
+            return;
+        }
+        eventHandler.consumeEvents(absolutePath, eventKind, timestamp);
+    }
 
-                        DirHelper.handleDirectoryDuplication(absolutePath, eventKind, currentTimeMillis, mapPathToCreationTime);
+    private void submitDirectoryTask(Path directory, Runnable task) {
+        try {
+            directoryExecutor.submit(task);
+        } catch (RejectedExecutionException e) {
+            Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.FINE, "Watcher closed, dropping folder task for: {0}", directory);
+        }
+    }
 
-                        if(DirHelper.isADir(absolutePath) && Files.exists(absolutePath)){
-                            handleDirectoryCreation(absolutePath);
-                        }else{
-                       eventHandler.consumeEvents(absolutePath, eventKind);
-                       eventHandler.handleEvents(timestamp);
-                        }
+    /**
+     * Queues a rescan of a directory whose events were lost because the queue of the watch service overflowed.
+     * Overflows that arrive before the rescan starts are merged into it.
+     * @param directory the directory the overflow was reported for
+     * */
+    private void handleOverflow(Path directory) {
+        long overflows = overflowCount.incrementAndGet();
+        Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.WARNING, "Events were lost for {0}, rescanning it ({1} overflows so far)",
+                new Object[]{directory, overflows});
+        if (!dirtyDirectories.add(directory)) {
+            return;
+        }
+        submitDirectoryTask(directory, () -> rescanDirectory(directory));
+    }
 
-                    }
+    /**
+     * Lists a directory and compares it against the baseline, so the creations, modifications and deletions whose
+     * events were lost are versioned after all. Folders that appeared in it are watched and walked as created.
+     * @param directory the directory that lost events
+     * */
+    private void rescanDirectory(Path directory) {
+        // Cleared first, so an overflow during the rescan queues another one
+        dirtyDirectories.remove(directory);
+        rescanCount.incrementAndGet();
 
-                    if (!key.reset()) {
-                        Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.WARNING, "WatchKey is no longer valid.");
+        Map<Path, BasicFileAttributes> files = new HashMap<>();
+        List<Path> newDirectories = new ArrayList<>();
+        try {
+            ioLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isRegularFile()) {
+                        files.put(entry, attributes);
+                    } else if (attributes.isDirectory() && !watchBackend.isWatched(entry) && !entry.equals(DIRECTORY_PATH.resolve("versions"))) {
+                        newDirectories.add(entry);
                     }
+                } catch (NoSuchFileException e) {
+                    // Deleted since it was listed
                 }
-            } catch (InterruptedException e) {
-                Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Watch service interrupted!", e);
-                Thread.currentThread().interrupt();
-            } catch (ClosedWatchServiceException e) {
-                Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Watch service closed!", e);
-                closeWatchService();
             }
-        });
+        } catch (NoSuchFileException e) {
+            // The directory itself is gone, which its parent reports
+            return;
+        } catch (IOException e) {
+            Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Could not rescan: " + directory, e);
+            return;
+        } finally {
+            ioLimiter.release();
+        }
+
+        for (Path newDirectory : newDirectories) {
+            handleDirectoryCreation(newDirectory);
+        }
+        eventHandler.reconcileDirectory(directory, files);
     }
 
+    /**
+     * @return the number of overflows the watch service reported
+     * */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * @return the number of directories rescanned after an overflow
+     * */
+    public long getRescanCount() {
+        return rescanCount.get();
+    }
+
+    /**
+     * Walks the watched directory once, registering every folder and building the baseline of every file on the way.
+     * Changes made while the watcher was down are compared against the baseline index and versioned.
+     * */
     public void watchAllDirectories() {
-        // Recursively walks through all the subdirectories in a directory
-        try (Stream<Path> paths = Files.walk(this.DIRECTORY_PATH)) {
-            List<Path> subDirectories = paths.filter(Files::isDirectory).distinct().sorted().toList();
-            Path exemptedPath = DIRECTORY_PATH.resolve("versions");
+        if (!DirHelper.checkDirExists(DIRECTORY_PATH) || !DirHelper.isADir(DIRECTORY_PATH)) {
+            throw new RuntimeException("Entered Path: " + DIRECTORY_PATH + " is not a directory");
+        }
 
-            // Register the directory if the path is not part of the version folder
-            subDirectories.stream()
-                    .filter(validPaths -> !validPaths.startsWith(exemptedPath))
-                    .forEach(this::registerDirectory);
+        try {
+            newTreeScanner(DIRECTORY_PATH, new TreeScanner.Visitor() {
+                @Override
+                public void visitDirectory(Path directory) {
+                    registerDirectory(directory);
+                }
 
-        } catch (IOException e) {
-            Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Failed to get directories!", e);
-            closeWatchService();
+                @Override
+                public void visitFile(Path file, BasicFileAttributes attributes) {
+                    eventHandler.indexFile(file, attributes);
+                }
+            }).scan(ConfigHelper.getLong(ConfigHelper.SCAN_PROGRESS_INTERVAL_MILLIS, DEFAULT_SCAN_PROGRESS_INTERVAL_MILLIS),
+                    ConfigHelper.getLong(ConfigHelper.SCAN_TARGET_MILLIS, DEFAULT_SCAN_TARGET_MILLIS));
+            // Whatever the last run knew about and the scan did not find was deleted while the watcher was down
+            eventHandler.reconcileBaseline();
         } catch (SecurityException e) {
             Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Security exception!", e);
             closeWatchService();
@@ -132,39 +286,60 @@ public class DirectoryWatcher {
     }
 
     /**
-     * Handles the sequences of events for when a directory is created
+     * Handles the sequences of events for when a directory is created. The new folder is walked once,
+     * every folder in it is registered and every file in it is queued as created, so files still being copied
+     * in are versioned once they are complete.
      * @param folderPath the folder that is created
      * */
     private void handleDirectoryCreation(Path folderPath){
-            try(Stream<Path> paths = Files.walk(folderPath)){
-                CopyOnWriteArrayList<Path> newDirectories = paths.filter(Files::isDirectory).sorted().collect(Collectors.toCollection(CopyOnWriteArrayList::new));
-                newDirectories.forEach(this::registerDirectory);
-                ConcurrentSkipListSet <Path> newFiles;
-                try{
-                    for(Path directory: newDirectories){
-                    newFiles = Files.walk(directory).filter(Files::isRegularFile).filter(Files::isReadable).filter(Files::isWritable).collect(Collectors.toCollection(ConcurrentSkipListSet::new));
-                    for(Path file: newFiles){
-                        if(Files.exists(file.toAbsolutePath()) && !newFiles.contains(folderPath)){
-                            eventHandler.handleFileCreation(file, StringHelper.formatTime());
-                        }
-                    }
-                }
-                }catch (IOException e){
-                    Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Failed to create versioned file for: " + folderPath, e);
-                }
+        newTreeScanner(folderPath, new TreeScanner.Visitor() {
+            @Override
+            public void visitDirectory(Path directory) {
+                registerDirectory(directory);
+            }
 
-            }catch (IOException e){
-                Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Failed to get directories!", e);
+            @Override
+            public void visitFile(Path file, BasicFileAttributes attributes) {
+                if (Files.isReadable(file) && Files.isWritable(file)) {
+                    eventHandler.consumeEvents(file, StandardWatchEventKinds.ENTRY_CREATE, System.currentTimeMillis());
+                }
             }
+        }).scan(0, 0);
+    }
+
+    private TreeScanner newTreeScanner(Path root, TreeScanner.Visitor visitor) {
+        return new TreeScanner(root, DIRECTORY_PATH.resolve("versions"),
+                ConfigHelper.getInt(ConfigHelper.SCAN_PARALLELISM, Runtime.getRuntime().availableProcessors()), visitor);
     }
 
     private void closeWatchService() {
-        running.set(false);
-        executorService.shutdown();
+        close();
+    }
+
+    /**
+     * Stops watching and drains what was already seen, so no event is lost on shutdown: the watch backend is closed
+     * first so no new events come in, then the coalescer hands over its pending events, then the folder walks
+     * finish and the event handler versions everything it queued. Calling it again does nothing.
+     * */
+    public void close() {
+        if (!running.compareAndSet(true, false)) {
+            return;
+        }
         try {
-            this.watchService.close();
+            this.watchBackend.close();
         } catch (IOException e) {
             Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Failed to close watch service!", e);
         }
+        eventCoalescer.close();
+        directoryExecutor.shutdown();
+        try {
+            if (!directoryExecutor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.WARNING, "Folder walks did not finish in time, closing anyway");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        eventHandler.closeEventService();
+        MetricsExporter.stop();
     }
 }
\ No newline at end of file
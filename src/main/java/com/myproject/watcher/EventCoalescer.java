@@ -0,0 +1,234 @@
+package com.myproject.watcher;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.myproject.metrics.Counter;
+import com.myproject.metrics.Histogram;
+import com.myproject.metrics.MetricsRegistry;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * The EventCoalescer class merges the raw watch events of a path until the path has been quiet for a while,
+ * so that an editor save or a large copy is handled as one event instead of a dozen.
+ *
+ * <p>Events are merged as follows:
+ * <ul>
+ *   <li>CREATE followed by MODIFY stays a CREATE</li>
+ *   <li>CREATE followed by DELETE cancels out, nothing is emitted</li>
+ *   <li>any number of MODIFY events become a single MODIFY</li>
+ *   <li>MODIFY followed by DELETE becomes a DELETE</li>
+ *   <li>DELETE followed by CREATE becomes a MODIFY, the file was replaced</li>
+ * </ul>
+ * A path that never goes quiet is still emitted once its first event is older than the maximum delay.
+ *
+ * <p>Only the first event of a path allocates its pending event and its timer. Every further raw event is merged
+ * into the pending event under its own lock, so a burst of events on a busy path allocates nothing.
+ */
+public class EventCoalescer {
+    private final ConcurrentHashMap<Path, PendingEvent> pendingEvents = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "event-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final EventSink sink;
+    private final long quietPeriodMillis;
+    private final long maxDelayMillis;
+    private final AtomicLong coalescedEvents = new AtomicLong();
+    private final AtomicLong cancelledEvents = new AtomicLong();
+    private final Histogram delays = MetricsRegistry.shared().histogram("coalescer.delay.nanos",
+            "Time from the first raw event of a path to its merged event");
+    private final Counter droppedEvents = MetricsRegistry.shared().counter("events.dropped",
+            "Events dropped because the watcher was shutting down");
+
+    public EventCoalescer(long quietPeriodMillis, long maxDelayMillis, EventSink sink) {
+        this.quietPeriodMillis = quietPeriodMillis;
+        this.maxDelayMillis = Math.max(quietPeriodMillis, maxDelayMillis);
+        this.sink = sink;
+    }
+
+    /**
+     * Adds a raw event to the pending event of its path
+     * @param path the absolute path the event happened to
+     * @param eventKind the kind of the raw event
+     */
+    public void submit(Path path, WatchEvent.Kind<?> eventKind) {
+        long now = System.currentTimeMillis();
+        while (true) {
+            PendingEvent pending = pendingEvents.get(path);
+            if (pending == null) {
+                if (pendingEvents.putIfAbsent(path, new PendingEvent(eventKind, now)) == null) {
+                    schedule(path, quietPeriodMillis);
+                    return;
+                }
+            } else if (pending.merge(eventKind, now)) {
+                coalescedEvents.incrementAndGet();
+                return;
+            }
+            // Lost a race with the flush of the pending event or with the first event of the path, try again
+        }
+    }
+
+    /**
+     * Emits every pending event right away and stops the coalescer
+     */
+    public void close() {
+        scheduler.shutdownNow();
+        for (Path path : pendingEvents.keySet()) {
+            PendingEvent pending = pendingEvents.get(path);
+            WatchEvent.Kind<?> kind = pending == null ? null : pending.take(pendingEvents, path);
+            if (kind != null) {
+                sink.accept(path, kind, pending.lastEventTime);
+            }
+        }
+    }
+
+    /**
+     * @return the number of raw events that were merged into an already pending event
+     */
+    public long getCoalescedEvents() {
+        return coalescedEvents.get();
+    }
+
+    /**
+     * @return the number of pending events that cancelled out, e.g. a file created and deleted again
+     */
+    public long getCancelledEvents() {
+        return cancelledEvents.get();
+    }
+
+    public int getPendingCount() {
+        return pendingEvents.size();
+    }
+
+    /**
+     * Merges a new raw event into the pending kind of a path
+     * @param pending the pending kind, or null if earlier events cancelled out
+     * @param next the kind of the new raw event
+     * @return the merged kind, or null if nothing should be emitted
+     */
+    static WatchEvent.Kind<?> merge(WatchEvent.Kind<?> pending, WatchEvent.Kind<?> next) {
+        if (pending == null) {
+            return next;
+        }
+        if (pending == ENTRY_CREATE) {
+            return next == ENTRY_DELETE ? null : ENTRY_CREATE;
+        }
+        if (pending == ENTRY_DELETE) {
+            return next == ENTRY_DELETE ? ENTRY_DELETE : ENTRY_MODIFY;
+        }
+        // A modified file can only be modified again or deleted
+        return next == ENTRY_DELETE ? ENTRY_DELETE : ENTRY_MODIFY;
+    }
+
+    private void schedule(Path path, long delayMillis) {
+        try {
+            scheduler.schedule(() -> flush(path), delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            droppedEvents.increment();
+            Logger.getLogger(EventCoalescer.class.getName()).log(Level.FINE, "Coalescer closed, dropping event for: {0}", path);
+        }
+    }
+
+    /**
+     * Emits the pending event of a path if the path has been quiet long enough, otherwise checks again later
+     * @param path the path whose pending event is due
+     */
+    private void flush(Path path) {
+        PendingEvent pending = pendingEvents.get(path);
+        if (pending == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        WatchEvent.Kind<?> kind;
+        pending.lock.lock();
+        try {
+            if (pending.flushed) {
+                return;
+            }
+            long quietRemaining = pending.lastEventTime + quietPeriodMillis - now;
+            long delayRemaining = pending.firstEventTime + maxDelayMillis - now;
+            if (quietRemaining > 0 && delayRemaining > 0) {
+                schedule(path, Math.min(quietRemaining, delayRemaining));
+                return;
+            }
+            kind = pending.take(pendingEvents, path);
+        } finally {
+            pending.lock.unlock();
+        }
+
+        if (kind == null) {
+            cancelledEvents.incrementAndGet();
+            return;
+        }
+        delays.record(TimeUnit.MILLISECONDS.toNanos(now - pending.firstEventTime));
+
+        try {
+            sink.accept(path, kind, pending.lastEventTime);
+        } catch (RuntimeException e) {
+            Logger.getLogger(EventCoalescer.class.getName()).log(Level.SEVERE, "Failed to dispatch event for: " + path, e);
+        }
+    }
+
+    private static final class PendingEvent {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long firstEventTime;
+        // Null once the events of the path cancelled each other out
+        private WatchEvent.Kind<?> kind;
+        private long lastEventTime;
+        // Set once the event was taken out of the map, later raw events start a new pending event
+        private boolean flushed;
+
+        private PendingEvent(WatchEvent.Kind<?> kind, long now) {
+            this.kind = kind;
+            this.firstEventTime = now;
+            this.lastEventTime = now;
+        }
+
+        /**
+         * @return false if the event was flushed already and the raw event must start a new one
+         */
+        private boolean merge(WatchEvent.Kind<?> next, long now) {
+            lock.lock();
+            try {
+                if (flushed) {
+                    return false;
+                }
+                kind = EventCoalescer.merge(kind, next);
+                lastEventTime = now;
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Takes the event out of the map, so no raw event can be merged into it anymore
+         * @return the merged kind, or null if it cancelled out or was taken already
+         */
+        private WatchEvent.Kind<?> take(ConcurrentHashMap<Path, PendingEvent> pendingEvents, Path path) {
+            lock.lock();
+            try {
+                if (flushed) {
+                    return null;
+                }
+                flushed = true;
+                pendingEvents.remove(path, this);
+                return kind;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
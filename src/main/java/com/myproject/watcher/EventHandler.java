@@ -3,164 +3,304 @@ package com.myproject.watcher;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
-import com.myproject.helper.DirHelper;
+import com.myproject.helper.ConfigHelper;
 import com.myproject.helper.FileHelper;
-import com.myproject.helper.StringHelper;
+import com.myproject.helper.HashHelper;
+import com.myproject.helper.IoLimiter;
+import com.myproject.metrics.Counter;
+import com.myproject.metrics.MetricsRegistry;
+import com.myproject.versioning.BaselineIndex;
+import com.myproject.versioning.BaselineStore;
+import com.myproject.versioning.BlobStore;
 import com.myproject.versioning.FileVersioner;
+import com.myproject.versioning.Fingerprint;
+import com.myproject.versioning.ManifestEntry;
+import com.myproject.versioning.VersionCatalog;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
-public class EventHandler {
+public final class EventHandler {
     private final FileVersioner fileVersioner;
-    private ConcurrentSkipListSet<Path> files = new ConcurrentSkipListSet<>();
-    private final ConcurrentHashMap<Path, byte[]> mapPathToContent;
+    private final BlobStore blobStore;
+    private final BaselineIndex baselineIndex;
+    private final VersionCatalog versionCatalog;
+    private final ConcurrentSkipListSet<Path> files = new ConcurrentSkipListSet<>();
+    private final BaselineStore mapPathToContent;
     private final Path DIRECTORY_PATH;
-    private final ExecutorService eventService = Executors.newCachedThreadPool();
-    private final BlockingQueue<FileEvent> eventQueue = new PriorityBlockingQueue<>(20, new FileEventComparator());
-    private final AtomicBoolean running = new AtomicBoolean(true);
+    private static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final long DEFAULT_GC_INTERVAL_MINUTES = 60;
+    private static final long DEFAULT_LARGE_FILE_THRESHOLD = 16L * 1024 * 1024;
+    private static final long DEFAULT_STABILITY_WINDOW_MILLIS = 1_000;
+    private static final long DEFAULT_STABILITY_MAX_WAIT_MILLIS = 600_000;
+    private static final long DEFAULT_STABILITY_TICK_MILLIS = 100;
+    private static final long DEFAULT_MOVE_WINDOW_MILLIS = 3_000;
+
+    private final EventPipeline eventPipeline;
+    // Null if files are versioned as soon as their events arrive
+    private final StabilityDetector stabilityDetector;
+    // Null if every deletion is recorded as soon as it arrives
+    private final MoveDetector moveDetector;
+    private final IoLimiter ioLimiter = IoLimiter.shared();
+    private final long largeFileThreshold = ConfigHelper.getLong(ConfigHelper.LARGE_FILE_THRESHOLD, DEFAULT_LARGE_FILE_THRESHOLD);
+    private final boolean stripeBySubtree = "subtree".equalsIgnoreCase(ConfigHelper.getString(ConfigHelper.PIPELINE_STRIPE_BY, "path"));
     private Logger eventLogger =  Logger.getLogger(EventHandler.class.getName());
-    private final  WatchService watchService;
+    private final Counter handledEvents = MetricsRegistry.shared().counter("events.handled", "Events handled by the pipeline workers");
+    private final Counter droppedEvents = MetricsRegistry.shared().counter("events.dropped",
+            "Events dropped because the watcher was shutting down");
+    private final Counter recordedVersions = MetricsRegistry.shared().counter("versions.recorded", "Versions recorded in the manifest");
+    private final Counter versionedBytes = MetricsRegistry.shared().counter("versions.bytes", "Bytes of file content versioned");
 
-    public EventHandler(Path DIRECTORY_PATH, WatchService watchService){
+    public EventHandler(Path DIRECTORY_PATH){
         System.out.println("Event Handler init");
-        this.watchService = watchService;
         this.DIRECTORY_PATH = DIRECTORY_PATH;
         fileVersioner = new FileVersioner(DIRECTORY_PATH);
         this.mapPathToContent = fileVersioner.getMapFileToContent();
-        getAllFiles();
+        this.blobStore = fileVersioner.getBlobStore();
+        this.baselineIndex = fileVersioner.getBaselineIndex();
+        this.versionCatalog = fileVersioner.getVersionCatalog();
+        long stabilityWindowMillis = ConfigHelper.getLong(ConfigHelper.STABILITY_WINDOW_MILLIS, DEFAULT_STABILITY_WINDOW_MILLIS);
+        this.stabilityDetector = stabilityWindowMillis <= 0 ? null : new StabilityDetector(
+                stabilityWindowMillis,
+                ConfigHelper.getLong(ConfigHelper.STABILITY_MAX_WAIT_MILLIS, DEFAULT_STABILITY_MAX_WAIT_MILLIS),
+                ConfigHelper.getLong(ConfigHelper.STABILITY_TICK_MILLIS, DEFAULT_STABILITY_TICK_MILLIS),
+                new EventSink() {
+                    @Override
+                    public void accept(Path path, WatchEvent.Kind<?> eventKind, long timestamp) {
+                        submitEvent(path, eventKind, timestamp);
+                    }
+
+                    @Override
+                    public boolean offer(Path path, WatchEvent.Kind<?> eventKind, long timestamp) {
+                        return offerEvent(path, eventKind, timestamp);
+                    }
+                });
+        long moveWindowMillis = ConfigHelper.getLong(ConfigHelper.MOVE_WINDOW_MILLIS, DEFAULT_MOVE_WINDOW_MILLIS);
+        this.moveDetector = moveWindowMillis <= 0 ? null : new MoveDetector(moveWindowMillis, this::submitExpiredDeletion);
+        this.eventPipeline = new EventPipeline(
+                ConfigHelper.getInt(ConfigHelper.PIPELINE_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY),
+                ConfigHelper.getInt(ConfigHelper.PIPELINE_WORKERS, Runtime.getRuntime().availableProcessors()),
+                this::stripeKey,
+                this::handleEvent);
+        registerMetrics(eventPipeline, stabilityDetector, moveDetector, ioLimiter);
+        if(ConfigHelper.getBoolean(ConfigHelper.RETENTION_ENABLED, false)){
+            fileVersioner.getGarbageCollector().start(TimeUnit.MINUTES.toMillis(
+                    ConfigHelper.getLong(ConfigHelper.RETENTION_INTERVAL_MINUTES, DEFAULT_GC_INTERVAL_MINUTES)));
+        }
+        // Last, so the workers only ever see a handler whose fields are all assigned
+        eventPipeline.start();
     }
 
-    private void getAllFiles(){
-        try(Stream<Path> directories = Files.walk(DIRECTORY_PATH)){
-        CopyOnWriteArrayList<Path> folders = directories.filter(Files::isDirectory).collect(Collectors.toCollection(CopyOnWriteArrayList::new));
-            for(Path folder: folders){
-                    files = FileHelper.getFiles(folder);
-                if(files == null){
-                    files = new ConcurrentSkipListSet<>();
-                }
-                addFile(files);
+    /**
+     * Adds a file found by the initial scan of the directory to the baseline. Called concurrently by the scan.
+     * A file whose stat still matches the baseline index of the last run is not read at all. A file that changed
+     * or appeared while the watcher was down is queued as a modification or creation, so it gets its version.
+     * @param filePath Path to the file that was found.
+     * @param attributes The attributes read by the scan, so the file is not stat'ed again.
+     */
+    public void indexFile(Path filePath, BasicFileAttributes attributes){
+        Path absoluteFile = filePath.toAbsolutePath();
+        if(mapPathToContent.contains(absoluteFile) || !Files.isReadable(absoluteFile) || !Files.isWritable(absoluteFile)) return;
+
+        BaselineIndex.Record record = baselineIndex.get(absoluteFile);
+        if(record != null && blobStore.contains(record.getFingerprint().getHash())){
+            mapPathToContent.putStored(absoluteFile, record.getFingerprint());
+            files.add(absoluteFile);
+            if(!record.matches(attributes)){
+                consumeEvents(absoluteFile, ENTRY_MODIFY, System.currentTimeMillis());
+            }
+            return;
+        }
+        if(record == null && baselineIndex.isLoaded()){
+            consumeEvents(absoluteFile, ENTRY_CREATE, System.currentTimeMillis());
+            return;
+        }
+
+        try{
+            // The baseline goes to the blob store once, so the next start can trust the index without reading the file
+            byte[] fileBytes = isLarge(attributes) ? null : Files.readAllBytes(absoluteFile);
+            String hash = fileBytes == null ? blobStore.putFile(absoluteFile) : blobStore.put(fileBytes);
+            long size = fileBytes == null ? attributes.size() : fileBytes.length;
+            if(record != null && !hash.equals(record.getFingerprint().getHash())){
+                // The content the index remembers never made it into the blob store, so there is none to go back to
+                recordVersion(absoluteFile, ManifestEntry.MODIFIED, hash, size, ManifestEntry.NO_HASH, System.currentTimeMillis());
             }
+            files.add(absoluteFile);
+            updateBaseline(absoluteFile, fileBytes, new Fingerprint(size, attributes.lastModifiedTime().toMillis(), hash), attributes.fileKey());
+        }catch (NoSuchFileException e){
+            // Deleted while the tree was being scanned, there is nothing to keep a baseline of
         }catch (IOException e){
-            Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "Could not walk through : " + DIRECTORY_PATH.toString());
+            Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "Failed to read content from: " + absoluteFile.toString(), e);
         }
     }
 
-    private void addFile(ConcurrentSkipListSet<Path> files){
-        for(Path file: files){
-            Path absoluteFile = file.toAbsolutePath();
-            try{
-            if(files.contains(absoluteFile) && Files.exists(absoluteFile) && !absoluteFile.toString().contains("versions")){
-                files.add(absoluteFile);
-                mapPathToContent.put(absoluteFile, Files.readAllBytes(absoluteFile));
-                System.out.println("Added file: " + absoluteFile.toString());
+    /**
+     * Queues a deletion for every file in the baseline index of the last run that the initial scan did not find,
+     * because it was deleted while the watcher was down. Must be called once the scan is complete.
+     */
+    public void reconcileBaseline(){
+        for(Path path : baselineIndex.paths()){
+            BaselineIndex.Record record = baselineIndex.get(path);
+            if(record == null || mapPathToContent.contains(path)) continue;
+
+            if(Files.exists(path, LinkOption.NOFOLLOW_LINKS)){
+                // Still there but no longer versioned, e.g. it is not writable anymore
+                baselineIndex.remove(path);
+                continue;
             }
-            }catch (IOException e){
-                Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "Failed to read content from: " + absoluteFile.toString(), e);
+            mapPathToContent.putStored(path, record.getFingerprint());
+            files.add(path);
+            consumeEvents(path, ENTRY_DELETE, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Compares the files of a directory against the baseline after its events were lost, and queues the creations,
+     * modifications and deletions that were missed.
+     * @param directory The directory whose events were lost.
+     * @param present The regular files the directory holds now, with their attributes.
+     */
+    public void reconcileDirectory(Path directory, Map<Path, BasicFileAttributes> present){
+        long timestamp = System.currentTimeMillis();
+        for(Map.Entry<Path, BasicFileAttributes> file : present.entrySet()){
+            Path absoluteFile = file.getKey().toAbsolutePath();
+            Fingerprint fingerprint = mapPathToContent.fingerprintOf(absoluteFile);
+            BasicFileAttributes attributes = file.getValue();
+            if(fingerprint == null){
+                if(Files.isReadable(absoluteFile) && Files.isWritable(absoluteFile)){
+                    consumeEvents(absoluteFile, ENTRY_CREATE, timestamp);
+                }
+            }else if(!fingerprint.matches(attributes.size(), attributes.lastModifiedTime().toMillis())){
+                consumeEvents(absoluteFile, ENTRY_MODIFY, timestamp);
+            }
+        }
+        // Only the range of known files below the directory is walked, not the whole tree
+        Path absoluteDirectory = directory.toAbsolutePath();
+        for(Path known : filesBelow(absoluteDirectory)){
+            if(absoluteDirectory.equals(known.getParent()) && !present.containsKey(known)){
+                consumeEvents(known, ENTRY_DELETE, timestamp);
             }
         }
     }
 
     /**
      * Handles events in the case where a file was created.
-     * @param filePath Path to the file that was created -> Used to build the versioned filename.
-     * @param timestamp TimeStamp at which the file was created -> Used to build the versioned filename.
+     * @param filePath Path to the file that was created -> Recorded in the version manifest.
+     * @param timestamp TimeStamp at which the file was created, in epoch milliseconds.
      */
-    public void handleFileCreation(Path filePath, String timestamp) {
+    public void handleFileCreation(Path filePath, long timestamp) {
         if(!Files.exists(filePath)) return;
-        //Sets the number of times the file can be accessed
-        final int MAX_RETRIES = 5;
-        //The time the thread waits before trying to access the file again
-        final long RETRY_DELAY_MS = 100;
-        int attempts = 0;
-
-        while (attempts < MAX_RETRIES) {
-            try {
-
-                Path absolutePath = filePath.toAbsolutePath();
 
-                String fileName = absolutePath.getFileName().toString();
-                byte[] fileBytes = Files.readAllBytes(absolutePath);
-
-
-                String versionedFileName = FileHelper.buildVersionedFileName(this.DIRECTORY_PATH, fileName, "created", timestamp);
-                Path versionedFile = Paths.get(versionedFileName);
-
-                ensureParentDirectoryExists(versionedFile);
+        try {
+            Path absolutePath = filePath.toAbsolutePath();
+            settleDeletion(absolutePath);
 
-                if (Files.exists(versionedFile)) {
-                    return;
-                }
+            // Stat before reading, so a write racing with the read leaves a newer mtime behind
+            BasicFileAttributes attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+            long lastModified = attributes.lastModifiedTime().toMillis();
 
+            // A file moved here from a versioned path keeps its baseline and stored content
+            MoveDetector.Departure departure = moveDetector == null ? null : moveDetector.claim(absolutePath, attributes);
+            if (departure != null) {
+                handleFileMove(departure, absolutePath, attributes, timestamp);
+                return;
+            }
+            // Large files are streamed into the blob store and never held in memory
+            byte[] fileBytes = isLarge(attributes) ? null : Files.readAllBytes(absolutePath);
+            String hash = fileBytes == null ? blobStore.putFile(absolutePath) : blobStore.put(fileBytes);
+            long size = fileBytes == null ? attributes.size() : fileBytes.length;
 
-                Files.write(versionedFile, fileBytes, StandardOpenOption.CREATE_NEW);
+            // The same creation can be reported twice, e.g. by a folder walk and by its own event
+            if (hash.equals(mapPathToContent.hashOf(absolutePath))) {
+                return;
+            }
 
-                files.add(absolutePath);
-                mapPathToContent.put(absolutePath, fileBytes);
+            recordVersion(absolutePath, ManifestEntry.CREATED, hash, size, null, timestamp);
 
-                return; // Exit after successful operation
+            files.add(absolutePath);
+            updateBaseline(absolutePath, fileBytes, new Fingerprint(size, lastModified, hash), attributes.fileKey());
 
-            } catch (NoSuchFileException e) {
-                //If the file does not exist log an error and return
-                Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "File does not exist: " + filePath.toString(), e);
-                return;
-            } catch (FileSystemException e) {
-                //Checks if the file is locked or inaccessible. After trying 5 times log an error and don't version the file
-                attempts++;
-                if (attempts >= MAX_RETRIES) {
-                    Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "File is locked or inaccessible after multiple attempts: " + filePath.toString(), e);
-                    return;
-                }
-                try {
-                    Thread.sleep(RETRY_DELAY_MS);
-                } catch (InterruptedException interruptedException) {
-                    Thread.currentThread().interrupt();
-                    Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "Retry interrupted: " + filePath.toString(), interruptedException);
-                    return;
-                }
-            } catch (IOException e) {
-                Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "Could not write to: " + filePath.toString(), e);
-                return;
-            }
+        } catch (NoSuchFileException e) {
+            //If the file does not exist log an error and return
+            Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "File does not exist: " + filePath.toString(), e);
+        } catch (FileSystemException e) {
+            // The stability detector already waited for the writer, so the file is locked by something else
+            Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "File is locked or inaccessible: " + filePath.toString(), e);
+        } catch (IOException e) {
+            Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "Could not write to: " + filePath.toString(), e);
         }
     }
 
     /**
      * Handles events in the case where a file was modified.
-     * @param filePath Path to the file that was modified -> Used to build the versioned filename.
-     * @param timestamp TimeStamp at which the file was modified -> Used to build the versioned filename.
+     * @param filePath Path to the file that was modified -> Recorded in the version manifest.
+     * @param timestamp TimeStamp at which the file was modified, in epoch milliseconds.
      */
-    private void handleFileModification(Path filePath, String timestamp) {
+    public void handleFileModification(Path filePath, long timestamp) {
         if(filePath == null) return;
 
         try {
             Path absolutePath = filePath.toAbsolutePath();
-            String fileName = absolutePath.getFileName().toString();
 
-            if(!mapPathToContent.containsKey(absolutePath)) return;
+            if(!Files.exists(absolutePath)) return;
+            settleDeletion(absolutePath);
+
+            Fingerprint fingerprint = mapPathToContent.fingerprintOf(absolutePath);
+            // A file replaced by delete and create, or created while the tree was being scanned, has no baseline yet
+            if(fingerprint == null){
+                handleFileCreation(absolutePath, timestamp);
+                return;
+            }
 
-            byte[] oldBytes = mapPathToContent.get(absolutePath);
-            byte[] modifiedBytes = FileHelper.readFileContent(absolutePath);
+            // A burst of modify events usually leaves size and mtime untouched after the first one, so nothing is read
+            BasicFileAttributes attributes = Files.readAttributes(absolutePath, BasicFileAttributes.class);
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            if (fingerprint.matches(attributes.size(), lastModified)) return;
+
+            // Every file is read once, and the bytes that are hashed are the bytes that are stored
+            byte[] modifiedBytes = null;
+            String hash;
+            if (isLarge(attributes)) {
+                // Hashed while it is streamed into the blob store, unchanged content is dropped again
+                hash = blobStore.putFile(absolutePath, fingerprint.getHash());
+            } else {
+                modifiedBytes = FileHelper.readFileContent(absolutePath);
+                if (modifiedBytes == null) return;
+                hash = HashHelper.hash(modifiedBytes);
+            }
 
             // If the content of the file is still the same, then the file has not been modified.
-            if (Arrays.equals(oldBytes, modifiedBytes)) return;
+            if (hash.equals(fingerprint.getHash())) {
+                mapPathToContent.refresh(absolutePath, lastModified);
+                baselineIndex.put(absolutePath, mapPathToContent.fingerprintOf(absolutePath), attributes.fileKey());
+                return;
+            }
 
-            String versionedFileName = FileHelper.buildVersionedFileName(this.DIRECTORY_PATH, fileName, "modified", timestamp);
-            Path versionedFile = Paths.get(versionedFileName);
-            ensureParentDirectoryExists(versionedFile);
-            Files.write(versionedFile, oldBytes, StandardOpenOption.CREATE_NEW);
+            // The previous content is stored as well so the version can always be diffed or rolled back
+            String previousHash = mapPathToContent.persist(absolutePath);
+            long size;
+            if (modifiedBytes == null) {
+                // Streamed in full above, a delta would need both versions in memory
+                size = attributes.size();
+            } else {
+                boolean deltaBase = blobStore.isDeltaEnabled() && fingerprint.getSize() <= largeFileThreshold;
+                byte[] previousBytes = deltaBase ? mapPathToContent.get(absolutePath) : null;
+                hash = blobStore.putVersion(modifiedBytes, hash, previousHash, previousBytes);
+                size = modifiedBytes.length;
+            }
+            recordVersion(absolutePath, ManifestEntry.MODIFIED, hash, size, previousHash, timestamp);
 
-            mapPathToContent.replace(absolutePath, modifiedBytes);
+            updateBaseline(absolutePath, modifiedBytes, new Fingerprint(size, lastModified, hash), attributes.fileKey());
 
         } catch (IOException e) {
             Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "Could not process file modification for: " + filePath.toString(), e);
@@ -168,131 +308,348 @@ public class EventHandler {
     }
 
     /**
-     * Handles events in the case where a file was deleted.
-     * @param filePath Path to the file that was deleted -> Used to build the versioned filename.
-     * @param timestamp TimeStamp at which the file was deleted -> Used to build the versioned filename.
+     * Handles events in the case where a file was moved within the watched directory. Only the move is recorded,
+     * the baseline is carried over to the new path as it is.
+     * @param departure The held back deletion of the path the file was moved from.
+     * @param target Path the file was moved to.
+     * @param attributes The attributes of the moved file.
+     * @param timestamp TimeStamp at which the file turned up under its new path, in epoch milliseconds.
+     * @throws IOException if the manifest entry could not be written
      */
-    private void handleFileDeletion(Path filePath, String timestamp) {
-        try {
-            Path absolutePath = filePath.toAbsolutePath();
-            String fileName = absolutePath.getFileName().toString();
+    private void handleFileMove(MoveDetector.Departure departure, Path target, BasicFileAttributes attributes, long timestamp) throws IOException {
+        Path source = departure.getPath();
+        Fingerprint fingerprint = departure.getFingerprint();
+        // Every baseline is in the blob store already, so the move needs no blob of its own
+        recordVersion(ManifestEntry.moved(timestamp, fingerprint.getHash(), fingerprint.getSize(), source, target));
+
+        if(!mapPathToContent.rename(source, target)){
+            mapPathToContent.putStored(target, fingerprint);
+        }
+        files.remove(source);
+        files.add(target);
+        baselineIndex.remove(source);
+        baselineIndex.put(target, fingerprint, attributes.fileKey());
+    }
 
-            if (!mapPathToContent.containsKey(absolutePath)) return;
+    /**
+     * Handles events in the case where a file was deleted. With move detection the deletion is held back
+     * for a while, in case the file turns up under another path.
+     * @param filePath Path to the file that was deleted -> Recorded in the version manifest.
+     * @param timestamp TimeStamp at which the file was deleted, in epoch milliseconds.
+     */
+    private void handleFileDeletion(Path filePath, long timestamp) {
+        Path absolutePath = filePath.toAbsolutePath();
+        Fingerprint fingerprint = mapPathToContent.fingerprintOf(absolutePath);
+        if (fingerprint == null) return;
+
+        if (moveDetector != null) {
+            BaselineIndex.Record record = baselineIndex.get(absolutePath);
+            moveDetector.depart(absolutePath, fingerprint, record != null && record.hasFileKey() ? record.getFileKey() : null, timestamp);
+            return;
+        }
+        deleteFile(absolutePath, timestamp);
+    }
 
-            byte[] fileBytes = mapPathToContent.get(absolutePath);
+    /**
+     * Records the deletion of a file the move detector held back, once no move claimed it.
+     * @param departure The held back deletion.
+     */
+    private void recordDeletion(MoveDetector.Departure departure){
+        deleteFile(departure.getPath(), departure.getTimestamp());
+    }
 
-            String versionedFileName = FileHelper.buildVersionedFileName(this.DIRECTORY_PATH, fileName, "deleted", timestamp);
-            Path versionedFile = Paths.get(versionedFileName);
+    /**
+     * Records the held back deletion of a path whose move window ran out. Runs on the lane of the path, so a
+     * creation of the same path is either handled before, and has settled the deletion, or after it.
+     * @param absolutePath Path the move detector reported.
+     */
+    private void handleExpiredDeletion(Path absolutePath){
+        MoveDetector.Departure departure = moveDetector == null ? null : moveDetector.takeExpired(absolutePath);
+        if(departure != null){
+            recordDeletion(departure);
+        }
+    }
 
-            ensureParentDirectoryExists(versionedFile);
-            Files.write(versionedFile, fileBytes, StandardOpenOption.CREATE_NEW);
+    /**
+     * Records the deletion held back for a path before a new file under the same path is versioned, so the two
+     * are recorded in the order they happened.
+     * @param absolutePath Path a file was created or modified at.
+     */
+    private void settleDeletion(Path absolutePath){
+        MoveDetector.Departure departure = moveDetector == null ? null : moveDetector.take(absolutePath);
+        if(departure != null){
+            recordDeletion(departure);
+        }
+    }
+
+    /**
+     * Records the deletion of a file and drops its baseline.
+     * @param absolutePath Path to the file that was deleted.
+     * @param deletedAt Time of the deletion in epoch milliseconds.
+     */
+    private void deleteFile(Path absolutePath, long deletedAt) {
+        try {
+            if (!mapPathToContent.contains(absolutePath)) return;
+
+            String hash = mapPathToContent.persist(absolutePath);
+            recordVersion(new ManifestEntry(deletedAt, ManifestEntry.DELETED, hash, null, mapPathToContent.sizeOf(absolutePath), absolutePath));
 
             if(files.contains(absolutePath)){
             files.remove(absolutePath);
             mapPathToContent.remove(absolutePath);
+            baselineIndex.remove(absolutePath);
             }
 
         } catch (IOException e) {
-            Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "Could not read content from: " + filePath.toString(), e);
+            Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "Could not read content from: " + absolutePath.toString(), e);
         }
     }
 
-    private void handleFolderDeletion(Path folderPath, String timestamp){
-        if(!Files.exists(folderPath)) return;
-
-        try(Stream<Path> paths = Files.walk(folderPath)){
-            CopyOnWriteArrayList<Path> deletedDirectories = paths.filter(Files::isDirectory).sorted().collect(Collectors.toCollection(CopyOnWriteArrayList::new));
-            ConcurrentSkipListSet <Path> deletedFiles;
-            try{
-                for(Path directory: deletedDirectories){
-                    deletedFiles = Files.walk(directory).filter(Files::isRegularFile).filter(Files::isReadable).filter(Files::isWritable).collect(Collectors.toCollection(ConcurrentSkipListSet::new));
-                    for(Path file: deletedFiles){
-                        if(Files.exists(file.toAbsolutePath())){
-                            handleFileDeletion(file, timestamp);
-                        }
-                    }
-                }
-            }catch (IOException e){
-                Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Failed to create versioned file for: " + folderPath, e);
-            }
+    /**
+     * Checks if a file is too large to be read into memory
+     * @param attributes The attributes of the file.
+     * @return true if the file must take the streaming path.
+     */
+    private boolean isLarge(BasicFileAttributes attributes){
+        return attributes.size() > largeFileThreshold;
+    }
 
-        }catch (IOException e){
-            Logger.getLogger(DirectoryWatcher.class.getName()).log(Level.SEVERE, "Failed to get directories!", e);
+    /**
+     * Makes stored content the baseline of a file and records it in the baseline index
+     * @param filePath The path of the file.
+     * @param content The content if it was read into memory, or null if it was streamed into the blob store.
+     * @param fingerprint The fingerprint of the content, which must already be in the blob store.
+     * @param fileKey The file key of the file, or null if the file system has none.
+     */
+    private void updateBaseline(Path filePath, byte[] content, Fingerprint fingerprint, Object fileKey){
+        if(content == null){
+            mapPathToContent.putStored(filePath, fingerprint);
+        }else{
+            mapPathToContent.put(filePath, content, fingerprint, true);
         }
-
+        baselineIndex.put(filePath, fingerprint, fileKey);
     }
 
-    public void consumeEvents(Path absolutePath, WatchEvent.Kind<?> eventKind){
-
-        eventService.submit(() -> {
-            try{
-            if(eventKind.equals(ENTRY_CREATE)){
-                eventQueue.put(new FileEvent(absolutePath, FileEvent.EventType.FILE_CREATION, 3));
-            }else if(eventKind.equals(ENTRY_DELETE)){
-                if(!DirHelper.isADir(absolutePath)){
-                eventQueue.put(new FileEvent(absolutePath, FileEvent.EventType.FILE_DELETION, 2 ));
+    /**
+     * Queues an event for the worker threads. Creations and modifications wait in the stability detector until the
+     * file has stopped changing. A deletion drops the creation of the same file if that is still waiting.
+     * @param absolutePath Path the event happened to.
+     * @param eventKind The kind of watch event.
+     * @param timestamp TimeStamp at which the event was dispatched, in epoch milliseconds.
+     */
+    public void consumeEvents(Path absolutePath, WatchEvent.Kind<?> eventKind, long timestamp){
+        if(stabilityDetector != null){
+            if(eventKind.equals(ENTRY_CREATE) || eventKind.equals(ENTRY_MODIFY)){
+                stabilityDetector.submit(absolutePath, eventKind, timestamp);
                 return;
-                }
-                eventQueue.put(new FileEvent(absolutePath, FileEvent.EventType.FOLDER_DELETION, 4));
-            }else if(eventKind.equals(ENTRY_MODIFY)){
-                eventQueue.put(new FileEvent(absolutePath, FileEvent.EventType.FILE_MODIFICATION, 1));
             }
-            } catch (InterruptedException e) {
-                Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, Thread.currentThread().getName() + " was interrupted during its operation.", e);
-                Thread.currentThread().interrupt();
+            // A file that never settled was never versioned, so its deletion is dropped with it
+            if(eventKind.equals(ENTRY_DELETE) && stabilityDetector.cancel(absolutePath) == ENTRY_CREATE){
+                return;
             }
-        });
+        }
+        submitEvent(absolutePath, eventKind, timestamp);
+    }
 
+    /**
+     * Hands an event to the pipeline. Blocks while the event queue is full.
+     * @param absolutePath Path the event happened to.
+     * @param eventKind The kind of watch event.
+     * @param timestamp TimeStamp at which the event was dispatched, in epoch milliseconds.
+     */
+    private void submitEvent(Path absolutePath, WatchEvent.Kind<?> eventKind, long timestamp){
+        try{
+            eventPipeline.submit(absolutePath, eventTypeOf(eventKind), timestamp);
+        } catch (InterruptedException e) {
+            Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, Thread.currentThread().getName() + " was interrupted during its operation.", e);
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            droppedEvents.increment();
+            Logger.getLogger(EventHandler.class.getName()).log(Level.WARNING, "Event handler is closed, dropping event for: " + absolutePath);
+        }
+    }
 
+    /**
+     * Hands an event to the pipeline without waiting. Called on the wheel thread of the stability detector.
+     * @param absolutePath Path the event happened to.
+     * @param eventKind The kind of watch event.
+     * @param timestamp TimeStamp at which the event was dispatched, in epoch milliseconds.
+     * @return false if the lane of the event is full and the event must be offered again later.
+     */
+    private boolean offerEvent(Path absolutePath, WatchEvent.Kind<?> eventKind, long timestamp){
+        try{
+            return eventPipeline.offer(absolutePath, eventTypeOf(eventKind), timestamp);
+        } catch (IllegalStateException e) {
+            droppedEvents.increment();
+            Logger.getLogger(EventHandler.class.getName()).log(Level.WARNING, "Event handler is closed, dropping event for: " + absolutePath);
+            return true;
+        }
+    }
 
+    private static FileEvent.EventType eventTypeOf(WatchEvent.Kind<?> eventKind){
+        if(eventKind.equals(ENTRY_CREATE)){
+            return FileEvent.EventType.FILE_CREATION;
+        }else if(eventKind.equals(ENTRY_DELETE)){
+            return FileEvent.EventType.FILE_DELETION;
+        }
+        return FileEvent.EventType.FILE_MODIFICATION;
     }
 
-    public void handleEvents(String timestamp){
-        eventService.submit(() -> {
-            while (true){
-            try {
-                FileEvent fileEvent = eventQueue.take();
-                FileEvent.EventType eventType = fileEvent.getEventType();
-                Path eventPath = fileEvent.getPath().toAbsolutePath();
-
-                switch (eventType){
-                    case FILE_CREATION -> handleFileCreation(eventPath, timestamp);
-                    case FILE_DELETION -> handleFileDeletion(eventPath, timestamp);
-                    case FILE_MODIFICATION -> handleFileModification(eventPath, timestamp);
-                    case FOLDER_DELETION -> handleFolderDeletion(eventPath, timestamp);
-                    default -> {
-                        System.out.println("Default event found");
-                        return;
-                    }
+    /**
+     * Queues the held back deletion of a path on its lane once its move window ran out. Called on the wheel thread of
+     * the move detector.
+     * @param absolutePath Path of the deleted file.
+     */
+    private void submitExpiredDeletion(Path absolutePath){
+        try{
+            eventPipeline.submit(absolutePath, FileEvent.EventType.FILE_DEPARTURE_EXPIRY, System.currentTimeMillis());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            // Shutting down, the deletion is recorded when the move detector is closed
+        }
+    }
 
-                }
-                System.out.println("Handled path: " + fileEvent.getPath());
+    /**
+     * Queues the deletion of every file the baseline knows below a deleted folder. The folder is gone, so the watcher
+     * tells it apart from a file by its watch key, and there is nothing left on disk to walk. Every deletion is queued
+     * on the lane of its own file, so it runs in order with the other events of that file.
+     * @param folderPath Path of the deleted folder.
+     * @param timestamp TimeStamp at which the event was dispatched, in epoch milliseconds.
+     */
+    public void consumeFolderDeletion(Path folderPath, long timestamp){
+        for(Path file : filesBelow(folderPath)){
+            if(file.startsWith(folderPath)){
+                consumeEvents(file, ENTRY_DELETE, timestamp);
+            }
+        }
+    }
 
+    /**
+     * Narrows the known files down to the range that holds every file below a folder. Paths sort by their names, so
+     * everything below {@code /a/b} lies between {@code /a/b} and {@code /a/b0}, as {@code 0} follows the separator,
+     * together with a few siblings such as {@code /a/b.txt} that the caller filters out.
+     * @param folderPath Path of the folder.
+     * @return the range of the known files, a view that is not copied.
+     */
+    private Set<Path> filesBelow(Path folderPath){
+        Path name = folderPath.getFileName();
+        if(name == null){
+            return files;
+        }
+        char afterSeparator = (char) (folderPath.getFileSystem().getSeparator().charAt(0) + 1);
+        return files.subSet(folderPath, false, folderPath.resolveSibling(name.toString() + afterSeparator), false);
+    }
 
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                Logger.getLogger(EventHandler.class.getName()).log(Level.SEVERE, "Stopped the event service object", e);
+    /**
+     * Handles a single event on a worker thread of the event pipeline
+     * @param fileEvent the event taken from the queue
+     */
+    private void handleEvent(FileEvent fileEvent){
+        long timestamp = fileEvent.getTimestamp();
+        Path eventPath = fileEvent.getPath().toAbsolutePath();
+
+        try{
+            ioLimiter.acquire();
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try{
+            switch (fileEvent.getEventType()){
+                case FILE_CREATION -> handleFileCreation(eventPath, timestamp);
+                case FILE_DELETION -> handleFileDeletion(eventPath, timestamp);
+                case FILE_MODIFICATION -> handleFileModification(eventPath, timestamp);
+                case FILE_DEPARTURE_EXPIRY -> handleExpiredDeletion(eventPath);
+                default -> {
+                    eventLogger.log(Level.WARNING, "Unknown event type {0} for: {1}", new Object[]{fileEvent.getEventType(), eventPath});
+                    return;
+                }
             }
-        }});
+        }finally {
+            ioLimiter.release();
+        }
+        handledEvents.increment();
+        // Printing every path serialized the workers on System.out, the count is exported and the path only logged
+        eventLogger.log(Level.FINE, "Handled path: {0}", eventPath);
     }
 
     /**
-     * Ensures the parent directory of a file exists.
-     * @param filePath The path to the file.
+     * Registers the values the pipeline components keep for themselves with the shared metrics registry.
+     * Static, so the registered method references do not capture a half built handler.
      */
-    private void ensureParentDirectoryExists(Path filePath) {
-        try {
-            if (filePath != null && !Files.exists(filePath.getParent())) {
-                Files.createDirectories(filePath.getParent());
-            }
-        } catch (IOException e) {
-            Logger.getLogger(EventHandler.class.getName()).log(Level.WARNING, "Could not create parent directory for: " + filePath, e);
+    private static void registerMetrics(EventPipeline eventPipeline, StabilityDetector stabilityDetector,
+                                        MoveDetector moveDetector, IoLimiter ioLimiter){
+        MetricsRegistry registry = MetricsRegistry.shared();
+        registry.gauge("pipeline.queue.depth", "Events queued in the pipeline lanes", eventPipeline::getQueueDepth);
+        registry.gauge("io.inflight", "Filesystem operations holding an I/O permit", ioLimiter::getInFlight);
+        if(stabilityDetector != null){
+            registry.counter("stability.stable", "Files that stopped changing within the stability window", stabilityDetector::getStableFiles);
+            registry.counter("stability.forced", "Files handed on after the longest stability wait", stabilityDetector::getForcedFiles);
+            registry.gauge("stability.pending", "Files waiting to stop changing", stabilityDetector::getPendingCount);
+        }
+        if(moveDetector != null){
+            registry.counter("moves.detected", "Deletions and creations recorded as moves", moveDetector::getDetectedMoves);
+            registry.gauge("moves.pending", "Deletions waiting for a matching creation", moveDetector::getPendingCount);
         }
     }
 
-    private void closeEventService(){
-       running.set(false);
-       eventService.shutdown();
+    /**
+     * Picks the key that decides which lane of the pipeline an event runs on. Events with the same key run in
+     * arrival order. With {@code filesorter.pipeline.stripeBy=subtree} every top level entry of the watched
+     * directory gets its own key, so whole folders are ordered, otherwise every path is its own key.
+     * @param eventPath the path of the event to be queued
+     * @return the stripe key of the event
+     */
+    private Object stripeKey(Path eventPath){
+        if(stripeBySubtree && eventPath.startsWith(DIRECTORY_PATH) && !eventPath.equals(DIRECTORY_PATH)){
+            return DIRECTORY_PATH.relativize(eventPath).getName(0);
+        }
+        return eventPath;
+    }
+
+    public int getQueueDepth(){
+        return eventPipeline.getQueueDepth();
+    }
+
+    /**
+     * Records an event in the version manifest. The content of the version must already be in the blob store.
+     * @param filePath The path of the file the event happened to.
+     * @param eventType The type of event, one of the {@link ManifestEntry} event types.
+     * @param hash The hash of the content of the file for this version.
+     * @param size The size of the content in bytes.
+     * @param previousHash The hash of the content the file had before the event, or null if there is none.
+     * @param timestamp TimeStamp at which the event was dispatched, in epoch milliseconds. Versions carry the time of
+     *                  their event, not the time they were handled, which can be seconds later.
+     * @throws IOException if the manifest entry could not be written
+     */
+    private void recordVersion(Path filePath, String eventType, String hash, long size, String previousHash, long timestamp) throws IOException {
+        recordVersion(new ManifestEntry(timestamp, eventType, hash, previousHash, size, filePath));
+    }
+
+    private void recordVersion(ManifestEntry entry) throws IOException {
+        versionCatalog.record(entry);
+        recordedVersions.increment();
+        versionedBytes.add(entry.getSize());
+    }
+
+    /**
+     * Stops accepting events and waits for the queued ones to be handled
+     */
+    public void closeEventService(){
+       fileVersioner.getGarbageCollector().close();
+       if(stabilityDetector != null){
+           stabilityDetector.close();
+       }
+       eventPipeline.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+       // Deletions still waiting for their move are recorded as deletions, the lanes are done so nothing races them
+       if(moveDetector != null){
+           for(MoveDetector.Departure departure : moveDetector.close()){
+               recordDeletion(departure);
+           }
+       }
+       fileVersioner.close();
+       baselineIndex.close();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,271 @@
+package com.myproject.watcher;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.myproject.helper.ThreadHelper;
+import com.myproject.metrics.Histogram;
+import com.myproject.metrics.MetricsRegistry;
+
+/**
+ * The EventPipeline class is a striped executor for file events. Every event is assigned to one of a fixed number
+ * of lanes by the hash of its stripe key, and each lane is a bounded queue drained by a single worker thread.
+ * A lane queues its events in a ring of {@link FileEvent} slots that is allocated with the lane, and its worker
+ * handles the event in its slot before handing the slot back, so an event costs no allocation on its way through.
+ *
+ * <p>Events with the same stripe key therefore run strictly in the order they were submitted, while events with
+ * different keys run concurrently on all lanes. When a lane is full, submitting to it blocks, so a burst of events
+ * slows the watcher down instead of piling up threads or memory. A thread that must not block, such as a timer
+ * wheel, offers its events instead and tries again later if the lane is full.
+ *
+ * <p>Lanes run on virtual threads when {@code filesorter.virtualThreads} is set, so the lane count can be raised
+ * well beyond the number of cores without costing a platform thread per lane.
+ */
+public class EventPipeline {
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final Lane[] lanes;
+    private final Function<Path, Object> stripeKey;
+    private final Consumer<FileEvent> handler;
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final Histogram queueTimes = MetricsRegistry.shared().histogram("pipeline.queue.nanos",
+            "Time an event waited in its lane for a worker");
+    private final Histogram handleTimes = MetricsRegistry.shared().histogram("pipeline.handle.nanos",
+            "Time a worker took to handle an event");
+
+    /**
+     * Creates the lanes. Their workers run once {@link #start()} is called, so the handler can be a method of an
+     * object that is still being built.
+     * @param capacity the total number of events that can wait, shared evenly between the lanes
+     * @param laneCount the number of lanes, and so of worker threads
+     * @param stripeKey gives the key that decides the lane of an event from its path, e.g. the path itself
+     * @param handler handles an event on the worker thread of its lane, and must not keep the event afterwards
+     */
+    public EventPipeline(int capacity, int laneCount, Function<Path, Object> stripeKey, Consumer<FileEvent> handler) {
+        this.stripeKey = stripeKey;
+        this.handler = handler;
+        this.lanes = new Lane[Math.max(1, laneCount)];
+        int laneCapacity = Math.max(1, capacity / lanes.length);
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(laneCapacity, "event-lane-" + i);
+        }
+    }
+
+    /**
+     * Starts the worker of every lane
+     */
+    public void start() {
+        for (Lane lane : lanes) {
+            lane.thread.start();
+        }
+    }
+
+    /**
+     * Queues an event on its lane, waiting for space if the lane is full
+     * @param path the path the event happened to
+     * @param eventType the type of the event
+     * @param timestamp the time the event was dispatched, in epoch milliseconds
+     * @throws InterruptedException if the thread is interrupted while waiting for space
+     * @throws IllegalStateException if the pipeline is shut down
+     */
+    public void submit(Path path, FileEvent.EventType eventType, long timestamp) throws InterruptedException {
+        if (!running.get()) {
+            throw new IllegalStateException("Event pipeline is shut down");
+        }
+        lanes[laneOf(stripeKey.apply(path))].put(path, eventType, timestamp);
+    }
+
+    /**
+     * Queues an event on its lane if the lane has space, without waiting
+     * @param path the path the event happened to
+     * @param eventType the type of the event
+     * @param timestamp the time the event was dispatched, in epoch milliseconds
+     * @return false if the lane is full
+     * @throws IllegalStateException if the pipeline is shut down
+     */
+    public boolean offer(Path path, FileEvent.EventType eventType, long timestamp) {
+        if (!running.get()) {
+            throw new IllegalStateException("Event pipeline is shut down");
+        }
+        return lanes[laneOf(stripeKey.apply(path))].offer(path, eventType, timestamp);
+    }
+
+    /**
+     * Stops accepting events and waits for the lanes to handle everything already queued
+     * @param timeout the longest time to wait for the lanes to drain
+     * @param unit the unit of the timeout
+     * @return true if every queued event was handled in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        running.set(false);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        boolean drained = true;
+        try {
+            for (Lane lane : lanes) {
+                lane.thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+                drained &= !lane.thread.isAlive();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            drained = false;
+        }
+
+        if (!drained) {
+            Logger.getLogger(EventPipeline.class.getName()).log(Level.WARNING, "Dropping {0} queued events on shutdown", getQueueDepth());
+            for (Lane lane : lanes) {
+                lane.thread.interrupt();
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * @return the number of events waiting on all lanes
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            depth += lane.size();
+        }
+        return depth;
+    }
+
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    private int laneOf(Object key) {
+        // Spread the hash so keys that differ only in their high bits still land on different lanes
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return Math.floorMod(hash, lanes.length);
+    }
+
+    private final class Lane implements Runnable {
+        private final FileEvent[] slots;
+        private final Thread thread;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final Condition notFull = lock.newCondition();
+        // The slot the worker takes next and the slot the next event is put in
+        private int head;
+        private int tail;
+        private int count;
+
+        private Lane(int capacity, String name) {
+            this.slots = new FileEvent[capacity];
+            for (int i = 0; i < capacity; i++) {
+                slots[i] = new FileEvent();
+            }
+            this.thread = ThreadHelper.newThread(name, this);
+        }
+
+        private void put(Path path, FileEvent.EventType eventType, long timestamp) throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                while (count == slots.length) {
+                    notFull.await();
+                }
+                enqueue(path, eventType, timestamp);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean offer(Path path, FileEvent.EventType eventType, long timestamp) {
+            lock.lock();
+            try {
+                if (count == slots.length) {
+                    return false;
+                }
+                enqueue(path, eventType, timestamp);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Puts an event in the tail slot. The caller holds the lock and has made sure there is space.
+         */
+        private void enqueue(Path path, FileEvent.EventType eventType, long timestamp) {
+            slots[tail].set(path, eventType, timestamp, System.nanoTime());
+            tail = (tail + 1) % slots.length;
+            count++;
+            notEmpty.signal();
+        }
+
+        /**
+         * Waits for the next event. Its slot stays taken until {@link #release()}, so the event can be handled in place.
+         * @return the event, or null if none arrived within the poll interval
+         */
+        private FileEvent take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL_MILLIS);
+                while (count == 0) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return slots[head];
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void release() {
+            lock.lock();
+            try {
+                slots[head].clear();
+                head = (head + 1) % slots.length;
+                count--;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private int size() {
+            lock.lock();
+            try {
+                return count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Keep going after shutdown until the lane is drained
+                while (running.get() || size() > 0) {
+                    FileEvent fileEvent = take();
+                    if (fileEvent == null) {
+                        continue;
+                    }
+                    long start = System.nanoTime();
+                    queueTimes.record(start - fileEvent.getQueuedAt());
+                    try {
+                        handler.accept(fileEvent);
+                    } catch (RuntimeException e) {
+                        Logger.getLogger(EventPipeline.class.getName()).log(Level.SEVERE, "Failed to handle " + fileEvent, e);
+                    } finally {
+                        release();
+                    }
+                    handleTimes.record(System.nanoTime() - start);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
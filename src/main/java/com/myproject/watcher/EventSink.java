@@ -0,0 +1,33 @@
+package com.myproject.watcher;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+
+/**
+ * An EventSink receives the events a stage of the watcher held back, such as the {@link EventCoalescer} or the
+ * {@link StabilityDetector}, together with the time of the last raw event they were made of. Versions are stamped
+ * with that time, not with the time the event got through the stage.
+ */
+@FunctionalInterface
+public interface EventSink {
+
+    /**
+     * @param path the absolute path the event happened to
+     * @param eventKind the kind of the event
+     * @param timestamp the time of the last raw event of the path, in epoch milliseconds
+     */
+    void accept(Path path, WatchEvent.Kind<?> eventKind, long timestamp);
+
+    /**
+     * Hands an event over without waiting. A stage that runs on a shared thread, such as a {@link TimerWheel}, uses
+     * this and keeps the event for a later try if it is refused. Accepts the event by default.
+     * @param path the absolute path the event happened to
+     * @param eventKind the kind of the event
+     * @param timestamp the time of the last raw event of the path, in epoch milliseconds
+     * @return false if the event could not be taken right now
+     */
+    default boolean offer(Path path, WatchEvent.Kind<?> eventKind, long timestamp) {
+        accept(path, eventKind, timestamp);
+        return true;
+    }
+}
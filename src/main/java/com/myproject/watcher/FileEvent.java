@@ -2,35 +2,64 @@ package com.myproject.watcher;
 import java.nio.file.Path;
 
 
+/**
+ * A FileEvent is one slot of the ring a lane of the {@link EventPipeline} queues its events in. The slots are
+ * created with the lane and filled again for every event, so queuing an event allocates nothing.
+ * An event is only valid while its handler runs, a handler that needs it later must copy what it needs.
+ */
 public class FileEvent {
-    public enum EventType{FOLDER_REGISTRATION, FOLDER_DELETION, FILE_CREATION, FILE_MODIFICATION, FILE_DELETION}
-    private final EventType eventType;
-    private final int priority;
-    private final Path path;
+    // FILE_DEPARTURE_EXPIRY: the move window of a held back deletion ran out, see MoveDetector
+    public enum EventType{FILE_CREATION, FILE_MODIFICATION, FILE_DELETION, FILE_DEPARTURE_EXPIRY}
+    private EventType eventType;
+    private Path path;
+    // Time the event was dispatched, in epoch milliseconds
+    private long timestamp;
+    // When the event was queued, as by System.nanoTime(), to measure how long it waited for a worker
+    private long queuedAt;
 
-    public FileEvent(Path path, EventType eventType, int priority) {
+    FileEvent() {
+    }
+
+    /**
+     * Fills the slot with a new event
+     */
+    void set(Path path, EventType eventType, long timestamp, long queuedAt) {
         this.eventType = eventType;
-        this.priority = priority;
         this.path = path;
+        this.timestamp = timestamp;
+        this.queuedAt = queuedAt;
+    }
+
+    /**
+     * Empties the slot once its event was handled, so it does not keep the path alive
+     */
+    void clear() {
+        this.eventType = null;
+        this.path = null;
     }
 
     public EventType getEventType() {
         return eventType;
     }
 
-    public int getPriority() {
-        return priority;
-    }
     public Path getPath() {
         return path;
     }
 
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getQueuedAt() {
+        return queuedAt;
+    }
+
     @Override
     public String toString() {
         return "FileEvent -> {" +
                 "eventType=" + eventType +
-                ", priority=" + priority +
                 ", path=" + path +
+                ", timestamp=" + timestamp +
                 '}';
     }
 
@@ -0,0 +1,167 @@
+package com.myproject.watcher;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.myproject.helper.ThreadHelper;
+
+/**
+ * The HybridWatchBackend class watches every directory with the {@link JdkWatchBackend} where it can and falls back
+ * to the {@link PollingWatchBackend} per directory where it cannot:
+ * <ul>
+ *   <li>directories on a network file system, where the kernel never hears of changes made on another machine</li>
+ *   <li>directories whose registration failed, e.g. because {@code max_user_watches} is used up. Once that happened
+ *   every further directory is polled right away instead of failing again.</li>
+ * </ul>
+ * A tree on a local disk within the watch limit is watched exactly as by the JDK backend, only the overflowing part
+ * of a huge tree and remote mounts pay for polling.
+ */
+final class HybridWatchBackend implements WatchBackend {
+    static final String NAME = "hybrid";
+    // File system types of network mounts, as reported by FileStore.type() on Linux and macOS
+    private static final Set<String> REMOTE_FILE_SYSTEMS = Set.of("nfs", "nfs4", "cifs", "smb", "smb2", "smb3",
+            "smbfs", "afs", "ncpfs", "9p", "fuse.sshfs", "fuse.rclone", "davfs", "webdav");
+
+    private final JdkWatchBackend jdkBackend;
+    private final PollingWatchBackend pollingBackend;
+    // Whether the directories of a device are on a network file system, so the mount table is read once per device
+    private final ConcurrentHashMap<Object, Boolean> remoteDevices = new ConcurrentHashMap<>();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private volatile boolean watchesExhausted;
+
+    HybridWatchBackend(long minIntervalMillis, long maxIntervalMillis) throws IOException {
+        this.jdkBackend = new JdkWatchBackend();
+        this.pollingBackend = new PollingWatchBackend(minIntervalMillis, maxIntervalMillis);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean register(Path directory) throws IOException {
+        if (isWatched(directory)) {
+            return false;
+        }
+        if (watchesExhausted || isRemote(directory)) {
+            return pollingBackend.register(directory);
+        }
+        try {
+            return jdkBackend.register(directory);
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (IOException e) {
+            if (!watchesExhausted) {
+                watchesExhausted = true;
+                Logger.getLogger(HybridWatchBackend.class.getName()).log(Level.WARNING,
+                        "Could not watch {0} ({1}), this and every further directory is polled instead",
+                        new Object[]{directory, e.getMessage()});
+            }
+            fallbacks.incrementAndGet();
+            return pollingBackend.register(directory);
+        }
+    }
+
+    @Override
+    public int unregisterTree(Path root) {
+        return jdkBackend.unregisterTree(root) + pollingBackend.unregisterTree(root);
+    }
+
+    @Override
+    public boolean isWatched(Path directory) {
+        return jdkBackend.isWatched(directory) || pollingBackend.isWatched(directory);
+    }
+
+    @Override
+    public boolean isDirectory(Path path) {
+        return jdkBackend.isDirectory(path) || pollingBackend.isDirectory(path);
+    }
+
+    /**
+     * Polls on a thread of its own and takes the events of the watch service on the calling thread
+     */
+    @Override
+    public void run(Listener listener) throws InterruptedException {
+        Thread poller = ThreadHelper.newThread("watch-poller", () -> {
+            try {
+                pollingBackend.run(listener);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        poller.start();
+        try {
+            jdkBackend.run(listener);
+        } finally {
+            pollingBackend.close();
+        }
+    }
+
+    @Override
+    public int size() {
+        return jdkBackend.size() + pollingBackend.size();
+    }
+
+    /**
+     * @return the number of directories that are polled
+     */
+    public int getPolledDirectoryCount() {
+        return pollingBackend.size();
+    }
+
+    /**
+     * @return the number of directories that are polled because the watch service could not register them
+     */
+    public long getFallbackCount() {
+        return fallbacks.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        pollingBackend.close();
+        jdkBackend.close();
+    }
+
+    /**
+     * Checks if a directory is on a network file system. A directory is only on another device than its parent if
+     * it is a mount point, so the file store is looked up once per device.
+     */
+    private boolean isRemote(Path directory) throws IOException {
+        Object device = deviceOf(directory);
+        if (device == null) {
+            return isRemote(Files.getFileStore(directory));
+        }
+        Boolean remote = remoteDevices.get(device);
+        if (remote == null) {
+            remote = isRemote(Files.getFileStore(directory));
+            remoteDevices.put(device, remote);
+        }
+        return remote;
+    }
+
+    private static boolean isRemote(FileStore fileStore) {
+        return REMOTE_FILE_SYSTEMS.contains(fileStore.type().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * @return the id of the device the directory is on, or null if the file system does not tell
+     */
+    private static Object deviceOf(Path directory) throws IOException {
+        try {
+            return Files.getAttribute(directory, "unix:dev", LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.myproject.watcher;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The JdkWatchBackend class watches directories with the {@link WatchService} of the default file system, i.e.
+ * inotify on Linux, with one {@link WatchKey} per directory. Events arrive as soon as the kernel reports them and
+ * cost nothing while nothing changes, but every directory takes one of the user's {@code max_user_watches}, and
+ * changes made on another machine of a network mount are never reported.
+ */
+final class JdkWatchBackend implements WatchBackend {
+    static final String NAME = "jdk";
+
+    private final WatchService watchService;
+    private final WatchRegistry watchRegistry;
+
+    JdkWatchBackend() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.watchRegistry = new WatchRegistry(watchService);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean register(Path directory) throws IOException {
+        return watchRegistry.register(directory);
+    }
+
+    @Override
+    public int unregisterTree(Path root) {
+        return watchRegistry.unregisterTree(root);
+    }
+
+    @Override
+    public boolean isWatched(Path directory) {
+        return watchRegistry.isWatched(directory);
+    }
+
+    @Override
+    public boolean isDirectory(Path path) {
+        return watchRegistry.isDirectory(path);
+    }
+
+    /**
+     * Takes the events of every watched directory. Paths are resolved against the directory of their watch key
+     * through the registry, the loop itself never touches the file system.
+     */
+    @Override
+    public void run(Listener listener) throws InterruptedException {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                // Null once the key was cancelled, its remaining events belong to a folder that is gone
+                Path directory = watchRegistry.directoryOf(key);
+
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    WatchEvent.Kind<?> eventKind = event.kind();
+                    if (directory == null) {
+                        continue;
+                    }
+                    // An overflow has no path, events of the directory were lost
+                    if (eventKind == StandardWatchEventKinds.OVERFLOW) {
+                        listener.onOverflow(directory);
+                        continue;
+                    }
+                    listener.onEvent(directory.resolve((Path) event.context()), eventKind);
+                }
+
+                if (!key.reset()) {
+                    // The folder was deleted or moved away, which its parent reports
+                    Logger.getLogger(JdkWatchBackend.class.getName()).log(Level.FINE, "WatchKey is no longer valid: {0}", directory);
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // Closed, there is nothing left to report
+        }
+    }
+
+    @Override
+    public int size() {
+        return watchRegistry.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -0,0 +1,247 @@
+package com.myproject.watcher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.myproject.helper.HashHelper;
+import com.myproject.versioning.Fingerprint;
+
+/**
+ * The MoveDetector class tells a file that was moved or renamed apart from a file that was deleted while another
+ * one was created. The watch service reports a move as a deletion of the old path and a creation of the new one,
+ * which would otherwise be versioned twice, with the content read, hashed and stored again for the new path.
+ *
+ * <p>The deletion of a versioned file is held back for the move window. A created file claims it if it is the same
+ * file: within a file system a move keeps the file key, the size and the modification time. Across file systems
+ * only size and modification time are kept, so the content is hashed to make sure. A deletion that nobody claims
+ * within the window is passed on as a deletion.
+ *
+ * <p>Like the {@link StabilityDetector}, waiting deletions are expired on a {@link TimerWheel}. The wheel does not
+ * record an expired deletion itself, it only reports the path, so the deletion can be taken with {@link #takeExpired}
+ * and recorded on the pipeline lane of the path, in order with every other event of the path.
+ */
+public final class MoveDetector {
+    private static final int WHEEL_SIZE = 512;
+    private static final long TICK_MILLIS = 100;
+
+    private final ConcurrentHashMap<Path, Departure> departuresByPath = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Departure> departuresByFileKey = new ConcurrentHashMap<>();
+    // For files that change their key on the way, i.e. moves across file systems
+    private final ConcurrentHashMap<Long, Queue<Departure>> departuresBySize = new ConcurrentHashMap<>();
+    private final TimerWheel<Departure> timerWheel;
+    private final Consumer<Path> sink;
+    private final long windowMillis;
+    private final AtomicLong detectedMoves = new AtomicLong();
+    private final AtomicLong hashedCandidates = new AtomicLong();
+
+    /**
+     * @param windowMillis the time a deletion waits for its creation. It must cover the time a creation is held back
+     *                     by the stability detector.
+     * @param sink receives the path of every deletion whose window ran out without a move claiming it. It must not
+     *             block for long, as it runs on the wheel thread.
+     */
+    public MoveDetector(long windowMillis, Consumer<Path> sink) {
+        this.windowMillis = windowMillis;
+        this.sink = sink;
+        this.timerWheel = new TimerWheel<>("move-detector", TICK_MILLIS, WHEEL_SIZE, this::expire);
+        timerWheel.start();
+    }
+
+    /**
+     * Holds back the deletion of a versioned file
+     * @param path the absolute path of the deleted file
+     * @param fingerprint the baseline fingerprint of the file
+     * @param fileKey the file key the baseline index recorded for the file, or null if there is none
+     * @param timestamp the time of the deletion event, in epoch milliseconds
+     * @return false if the deletion of the path is already held back
+     */
+    public boolean depart(Path path, Fingerprint fingerprint, String fileKey, long timestamp) {
+        Departure departure = new Departure(path, fingerprint, fileKey, timestamp);
+        if (departuresByPath.putIfAbsent(path, departure) != null) {
+            return false;
+        }
+        if (fileKey != null) {
+            departuresByFileKey.put(fileKey, departure);
+        }
+        // Added inside compute, so a queue that is being dropped as empty is not added to
+        departuresBySize.compute(fingerprint.getSize(), (size, queue) -> {
+            Queue<Departure> departures = queue == null ? new ConcurrentLinkedQueue<>() : queue;
+            departures.add(departure);
+            return departures;
+        });
+        timerWheel.schedule(departure, windowMillis);
+        return true;
+    }
+
+    /**
+     * Finds the deletion a created file was moved from and takes it, so it is not passed on as a deletion
+     * @param path the absolute path of the created file
+     * @param attributes the attributes of the created file
+     * @return the deletion, or null if the file was not moved from a path that is held back
+     */
+    public Departure claim(Path path, BasicFileAttributes attributes) {
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        Object fileKey = attributes.fileKey();
+        if (fileKey != null) {
+            Departure departure = departuresByFileKey.get(fileKey.toString());
+            // A key can be reused by a new file right after the deletion, which size and mtime rule out
+            if (departure != null && departure.fingerprint.matches(size, lastModified) && take(departure)) {
+                detectedMoves.incrementAndGet();
+                return departure;
+            }
+        }
+
+        Queue<Departure> sameSize = departuresBySize.get(size);
+        if (sameSize == null) {
+            return null;
+        }
+        String hash = null;
+        for (Departure departure : sameSize) {
+            if (!departure.fingerprint.matches(size, lastModified)) {
+                continue;
+            }
+            if (hash == null) {
+                try {
+                    hashedCandidates.incrementAndGet();
+                    hash = HashHelper.hash(path);
+                } catch (IOException e) {
+                    Logger.getLogger(MoveDetector.class.getName()).log(Level.FINE, "Could not hash move candidate: " + path, e);
+                    return null;
+                }
+            }
+            if (hash.equals(departure.fingerprint.getHash()) && take(departure)) {
+                detectedMoves.incrementAndGet();
+                return departure;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes the held back deletion of a path, e.g. because a new file was created under the same path
+     * @param path the absolute path
+     * @return the deletion, or null if none is held back for the path
+     */
+    public Departure take(Path path) {
+        Departure departure = departuresByPath.get(path);
+        return departure != null && take(departure) ? departure : null;
+    }
+
+    /**
+     * Takes the held back deletion of a path once its window ran out. A deletion of the same path that was held back
+     * later is left to wait for its own window.
+     * @param path the absolute path the wheel reported
+     * @return the deletion, or null if it was claimed or taken in the meantime or is still within its window
+     */
+    public Departure takeExpired(Path path) {
+        Departure departure = departuresByPath.get(path);
+        if (departure == null || System.nanoTime() - departure.departedAt < TimeUnit.MILLISECONDS.toNanos(windowMillis)) {
+            return null;
+        }
+        return take(departure) ? departure : null;
+    }
+
+    /**
+     * Stops the detector and takes every deletion that is still held back, so the caller can record them
+     * @return the deletions, in no particular order
+     */
+    public List<Departure> close() {
+        timerWheel.stop();
+        List<Departure> remaining = new ArrayList<>();
+        for (Departure departure : departuresByPath.values()) {
+            if (take(departure)) {
+                remaining.add(departure);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * @return the number of deletions that were claimed by a move
+     */
+    public long getDetectedMoves() {
+        return detectedMoves.get();
+    }
+
+    /**
+     * @return the number of created files that had to be hashed to be matched against a deletion
+     */
+    public long getHashedCandidates() {
+        return hashedCandidates.get();
+    }
+
+    public int getPendingCount() {
+        return departuresByPath.size();
+    }
+
+    private void expire(Departure departure) {
+        if (departuresByPath.get(departure.path) == departure) {
+            sink.accept(departure.path);
+        }
+    }
+
+    /**
+     * Removes a deletion from every index. Only one of the creation, the expiry and close gets to take it.
+     * @return true if this call took the deletion
+     */
+    private boolean take(Departure departure) {
+        if (!departuresByPath.remove(departure.path, departure)) {
+            return false;
+        }
+        if (departure.fileKey != null) {
+            departuresByFileKey.remove(departure.fileKey, departure);
+        }
+        departuresBySize.computeIfPresent(departure.fingerprint.getSize(), (size, queue) -> {
+            queue.remove(departure);
+            return queue.isEmpty() ? null : queue;
+        });
+        return true;
+    }
+
+    /**
+     * The deletion of a versioned file that may turn out to be a move
+     */
+    public static final class Departure {
+        private final Path path;
+        private final Fingerprint fingerprint;
+        private final String fileKey;
+        private final long timestamp;
+        // As by System.nanoTime(), the window is measured from it
+        private final long departedAt = System.nanoTime();
+
+        private Departure(Path path, Fingerprint fingerprint, String fileKey, long timestamp) {
+            this.path = path;
+            this.fingerprint = fingerprint;
+            this.fileKey = fileKey;
+            this.timestamp = timestamp;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public Fingerprint getFingerprint() {
+            return fingerprint;
+        }
+
+        /**
+         * @return the time the file was deleted in epoch milliseconds
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+}
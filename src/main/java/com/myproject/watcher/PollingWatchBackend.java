@@ -0,0 +1,281 @@
+package com.myproject.watcher;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The PollingWatchBackend class finds changes by listing directories and comparing the size and modification time
+ * of their entries against the last listing. It takes no kernel watches and works on every file system, including
+ * network mounts whose changes are made on another machine, at the cost of a delay and of the stat calls.
+ *
+ * <p>Directories are polled at an adaptive interval: a directory is polled again after an eighth of the time
+ * since it last changed, bounded by the minimum and maximum interval. The newest modification time of its entries
+ * counts as a change, so after a restart a folder that is being worked in starts out hot while an archive that was
+ * last touched months ago is polled at the maximum interval. A directory that changes becomes hot again at once.
+ */
+final class PollingWatchBackend implements WatchBackend {
+    static final String NAME = "polling";
+    // A directory is polled again after this fraction of the time since it last changed
+    private static final long AGE_DIVISOR = 8;
+
+    private final ConcurrentHashMap<Path, PolledDirectory> directories = new ConcurrentHashMap<>();
+    private final DelayQueue<PolledDirectory> schedule = new DelayQueue<>();
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong statCalls = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param minIntervalMillis the interval directories that just changed are polled at
+     * @param maxIntervalMillis the interval directories that have not changed for a long time are polled at
+     */
+    PollingWatchBackend(long minIntervalMillis, long maxIntervalMillis) {
+        this.minIntervalMillis = Math.max(1, minIntervalMillis);
+        this.maxIntervalMillis = Math.max(this.minIntervalMillis, maxIntervalMillis);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Lists the directory once, so only what changes from now on is reported
+     */
+    @Override
+    public boolean register(Path directory) throws IOException {
+        if (isWatched(directory)) {
+            return false;
+        }
+        PolledDirectory polledDirectory = new PolledDirectory(directory, list(directory));
+        polledDirectory.lastChangedAt = polledDirectory.newestModified();
+        PolledDirectory replaced = directories.put(directory, polledDirectory);
+        if (replaced != null) {
+            // A directory deleted and created again under the same name
+            replaced.valid = false;
+        }
+        // Spread over the first interval, so a tree registered at once is not polled at once
+        long intervalMillis = intervalOf(polledDirectory, System.currentTimeMillis());
+        polledDirectory.nextPollAt = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(intervalMillis + 1));
+        schedule.add(polledDirectory);
+        return true;
+    }
+
+    @Override
+    public int unregisterTree(Path root) {
+        int removed = 0;
+        for (Map.Entry<Path, PolledDirectory> entry : directories.entrySet()) {
+            if (entry.getKey().startsWith(root) && directories.remove(entry.getKey(), entry.getValue())) {
+                // Dropped from the schedule the next time it is due
+                entry.getValue().valid = false;
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean isWatched(Path directory) {
+        PolledDirectory polledDirectory = directories.get(directory);
+        return polledDirectory != null && polledDirectory.valid;
+    }
+
+    @Override
+    public boolean isDirectory(Path path) {
+        return directories.containsKey(path);
+    }
+
+    /**
+     * Polls every directory that is due, one at a time
+     */
+    @Override
+    public void run(Listener listener) throws InterruptedException {
+        while (!closed) {
+            PolledDirectory polledDirectory = schedule.take();
+            if (closed) {
+                return;
+            }
+            if (!polledDirectory.valid || directories.get(polledDirectory.path) != polledDirectory) {
+                continue;
+            }
+            poll(polledDirectory, listener);
+            if (polledDirectory.valid) {
+                polledDirectory.nextPollAt = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(intervalOf(polledDirectory, System.currentTimeMillis()));
+                schedule.add(polledDirectory);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return directories.size();
+    }
+
+    /**
+     * @return the number of directories listed since the backend was created
+     */
+    public long getPolls() {
+        return polls.get();
+    }
+
+    /**
+     * @return the number of entries stat'ed since the backend was created
+     */
+    public long getStatCalls() {
+        return statCalls.get();
+    }
+
+    /**
+     * @return the number of directories that are polled at the minimum interval
+     */
+    public int getHotDirectoryCount() {
+        long now = System.currentTimeMillis();
+        int hot = 0;
+        for (PolledDirectory polledDirectory : directories.values()) {
+            if (polledDirectory.valid && intervalOf(polledDirectory, now) == minIntervalMillis) {
+                hot++;
+            }
+        }
+        return hot;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        // Wakes the poller up right away
+        schedule.add(new PolledDirectory(null, Map.of()));
+    }
+
+    /**
+     * Lists a directory and reports how it changed since the last listing
+     */
+    private void poll(PolledDirectory polledDirectory, Listener listener) {
+        Map<String, Entry> entries;
+        try {
+            entries = list(polledDirectory.path);
+        } catch (NoSuchFileException e) {
+            // Deleted, which its parent reports. It stays known as a directory until then.
+            polledDirectory.valid = false;
+            return;
+        } catch (IOException e) {
+            Logger.getLogger(PollingWatchBackend.class.getName()).log(Level.FINE, "Could not poll: " + polledDirectory.path, e);
+            return;
+        }
+        polls.incrementAndGet();
+
+        boolean changed = false;
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            Entry before = polledDirectory.entries.get(entry.getKey());
+            Entry after = entry.getValue();
+            if (before == null) {
+                listener.onEvent(polledDirectory.path.resolve(entry.getKey()), StandardWatchEventKinds.ENTRY_CREATE);
+            } else if (before.directory != after.directory) {
+                // Replaced by an entry of the other type
+                listener.onEvent(polledDirectory.path.resolve(entry.getKey()), StandardWatchEventKinds.ENTRY_DELETE);
+                listener.onEvent(polledDirectory.path.resolve(entry.getKey()), StandardWatchEventKinds.ENTRY_CREATE);
+            } else if (!after.directory && (before.size != after.size || before.lastModified != after.lastModified)) {
+                // Folders report changes below them themselves
+                listener.onEvent(polledDirectory.path.resolve(entry.getKey()), StandardWatchEventKinds.ENTRY_MODIFY);
+            } else {
+                continue;
+            }
+            changed = true;
+        }
+        for (String name : polledDirectory.entries.keySet()) {
+            if (!entries.containsKey(name)) {
+                listener.onEvent(polledDirectory.path.resolve(name), StandardWatchEventKinds.ENTRY_DELETE);
+                changed = true;
+            }
+        }
+
+        polledDirectory.entries = entries;
+        polledDirectory.lastChangedAt = changed ? System.currentTimeMillis()
+                : Math.max(polledDirectory.lastChangedAt, polledDirectory.newestModified());
+    }
+
+    private Map<String, Entry> list(Path directory) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                try {
+                    statCalls.incrementAndGet();
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    entries.put(path.getFileName().toString(), new Entry(attributes.size(),
+                            attributes.lastModifiedTime().toMillis(), attributes.isDirectory()));
+                } catch (NoSuchFileException e) {
+                    // Deleted since it was listed
+                }
+            }
+        }
+        return entries;
+    }
+
+    private long intervalOf(PolledDirectory polledDirectory, long now) {
+        long ageMillis = Math.max(0, now - polledDirectory.lastChangedAt);
+        return Math.min(maxIntervalMillis, Math.max(minIntervalMillis, ageMillis / AGE_DIVISOR));
+    }
+
+    private static final class PolledDirectory implements Delayed {
+        private final Path path;
+        // Only touched by the poller once the directory is registered
+        private Map<String, Entry> entries;
+        private volatile long lastChangedAt;
+        private volatile long nextPollAt;
+        // False once the directory is gone or no longer watched
+        private volatile boolean valid = true;
+
+        private PolledDirectory(Path path, Map<String, Entry> entries) {
+            this.path = path;
+            this.entries = entries;
+        }
+
+        private long newestModified() {
+            long newest = 0;
+            for (Entry entry : entries.values()) {
+                newest = Math.max(newest, entry.lastModified);
+            }
+            return newest;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(nextPollAt - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(nextPollAt, ((PolledDirectory) other).nextPollAt);
+        }
+    }
+
+    private static final class Entry {
+        private final long size;
+        private final long lastModified;
+        private final boolean directory;
+
+        private Entry(long size, long lastModified, boolean directory) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.directory = directory;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.myproject.watcher;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.myproject.metrics.Histogram;
+import com.myproject.metrics.MetricsRegistry;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * The StabilityDetector class holds back creation and modification events until the file has stopped changing,
+ * so a file that is still being written, such as an upload or a large copy, is versioned once it is complete
+ * instead of half-written and then again.
+ *
+ * <p>A file is stable once its size and modification time have not changed for the stability window. On Windows,
+ * where a writer usually keeps other processes from opening the file for writing, it must also be closed by its
+ * writer. A file that never settles is passed on after the maximum wait anyway.
+ *
+ * <p>Waiting files are checked on a {@link TimerWheel}, so no thread sleeps on behalf of a file and thousands of
+ * files in flight cost one map entry and one timer each. Further events for a waiting file are merged into its entry
+ * under the entry's own lock and allocate nothing.
+ *
+ * <p>A stable event is offered to the sink without waiting, so one full lane of the event pipeline cannot hold up the
+ * checks and timers of every other file. A refused event stays waiting and is checked and offered again on the next
+ * tick, where further events can still be merged into it or cancel it.
+ */
+public final class StabilityDetector {
+    private static final int WHEEL_SIZE = 512;
+    private static final boolean WRITERS_LOCK_FILES = System.getProperty("os.name", "").startsWith("Windows");
+
+    private final ConcurrentHashMap<Path, Candidate> candidates = new ConcurrentHashMap<>();
+    private final TimerWheel<Path> timerWheel;
+    private final EventSink sink;
+    private final long windowMillis;
+    private final long maxWaitMillis;
+    private final AtomicLong stableFiles = new AtomicLong();
+    private final AtomicLong forcedFiles = new AtomicLong();
+    private final Histogram waitTimes = MetricsRegistry.shared().histogram("stability.wait.nanos",
+            "Time an event was held back until its file stopped changing");
+
+    /**
+     * @param windowMillis the time a file must go unchanged before it is stable
+     * @param maxWaitMillis the longest time an event is held back for a file that keeps changing
+     * @param tickMillis the precision the files are checked with
+     * @param sink receives every event once its file is stable, with the time of the last event merged into it
+     */
+    public StabilityDetector(long windowMillis, long maxWaitMillis, long tickMillis, EventSink sink) {
+        this.windowMillis = windowMillis;
+        this.maxWaitMillis = Math.max(windowMillis, maxWaitMillis);
+        this.sink = sink;
+        this.timerWheel = new TimerWheel<>("stability-detector", tickMillis, WHEEL_SIZE, this::check);
+        timerWheel.start();
+    }
+
+    /**
+     * Holds back an event until its file is stable. An event for a file that is already waiting is merged into it.
+     * @param path the absolute path of the file
+     * @param eventKind ENTRY_CREATE or ENTRY_MODIFY
+     * @param timestamp the time of the event, in epoch milliseconds
+     */
+    public void submit(Path path, WatchEvent.Kind<?> eventKind, long timestamp) {
+        while (true) {
+            Candidate candidate = candidates.get(path);
+            if (candidate == null) {
+                if (candidates.putIfAbsent(path, new Candidate(eventKind, timestamp, System.currentTimeMillis())) == null) {
+                    // The first check only takes the stat the window is measured from
+                    timerWheel.schedule(path, 0);
+                    return;
+                }
+            } else if (candidate.merge(eventKind, timestamp)) {
+                return;
+            }
+            // Lost a race with the emission of the candidate or with the first event of the file, try again
+        }
+    }
+
+    /**
+     * Drops the event held back for a file, e.g. because the file was deleted
+     * @param path the absolute path of the file
+     * @return the kind of the dropped event, or null if none was held back
+     */
+    public WatchEvent.Kind<?> cancel(Path path) {
+        Candidate candidate = candidates.get(path);
+        return candidate == null ? null : candidate.take(candidates, path);
+    }
+
+    /**
+     * Passes every event that is held back on right away and stops the detector
+     */
+    public void close() {
+        timerWheel.stop();
+        for (Path path : candidates.keySet()) {
+            Candidate candidate = candidates.get(path);
+            WatchEvent.Kind<?> kind = candidate == null ? null : candidate.take(candidates, path);
+            if (kind != null) {
+                sink.accept(path, kind, candidate.timestamp);
+            }
+        }
+    }
+
+    /**
+     * @return the number of files that were passed on once they were stable
+     */
+    public long getStableFiles() {
+        return stableFiles.get();
+    }
+
+    /**
+     * @return the number of files that were passed on after the maximum wait without being stable
+     */
+    public long getForcedFiles() {
+        return forcedFiles.get();
+    }
+
+    public int getPendingCount() {
+        return candidates.size();
+    }
+
+    /**
+     * Checks a waiting file on the wheel thread and passes its event on if it is stable, otherwise checks it again later
+     * @param path the path of the file
+     */
+    private void check(Path path) {
+        Candidate candidate = candidates.get(path);
+        if (candidate == null) {
+            // Cancelled or already passed on
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            // Gone or unreadable, which the event handler deals with
+            emit(path, candidate);
+            return;
+        }
+
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (size != candidate.size || lastModified != candidate.lastModified) {
+            candidate.size = size;
+            candidate.lastModified = lastModified;
+            candidate.stableSince = now;
+        } else if (now - candidate.stableSince >= windowMillis && !isOpenForWriting(path)) {
+            if (emit(path, candidate)) {
+                stableFiles.incrementAndGet();
+            }
+            return;
+        }
+
+        if (now - candidate.firstSeen >= maxWaitMillis) {
+            if (emit(path, candidate)) {
+                forcedFiles.incrementAndGet();
+                Logger.getLogger(StabilityDetector.class.getName()).log(Level.FINE, "File did not settle within {0} ms: {1}", new Object[]{maxWaitMillis, path});
+            }
+            return;
+        }
+        // Stable but still open for writing is checked again a window later
+        long remaining = candidate.stableSince + windowMillis - now;
+        timerWheel.schedule(path, remaining > 0 ? remaining : windowMillis);
+    }
+
+    /**
+     * Offers the event of a waiting file to the sink. If the sink is full the file stays waiting and is checked again
+     * on the next tick, so the wheel thread never blocks on the sink.
+     * @param path the path of the file
+     * @param candidate the waiting event of the file
+     * @return true if the event was passed on
+     */
+    private boolean emit(Path path, Candidate candidate) {
+        switch (candidate.offer(candidates, path, sink)) {
+            case OFFERED:
+                waitTimes.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - candidate.firstSeen));
+                return true;
+            case REFUSED:
+                timerWheel.schedule(path, 0);
+                return false;
+            default:
+                // Cancelled while it was checked
+                return false;
+        }
+    }
+
+    /**
+     * Checks if another process still has a file open for writing, where the platform can tell
+     * @param path the path of the file
+     * @return true if the file is known to be open for writing
+     */
+    private static boolean isOpenForWriting(Path path) {
+        if (!WRITERS_LOCK_FILES) {
+            return false;
+        }
+        try {
+            FileChannel.open(path, StandardOpenOption.WRITE).close();
+            return false;
+        } catch (NoSuchFileException | AccessDeniedException e) {
+            return false;
+        } catch (FileSystemException e) {
+            // A sharing violation, the writer has not closed the file yet
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static final class Candidate {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long firstSeen;
+        private WatchEvent.Kind<?> kind;
+        // Time of the last event merged into the candidate, in epoch milliseconds
+        private long timestamp;
+        // Set once the candidate was taken out of the map, later events start a new candidate
+        private boolean taken;
+        // Only touched by the wheel thread, -1 until the first check
+        private long size = -1;
+        private long lastModified = -1;
+        private long stableSince;
+
+        private Candidate(WatchEvent.Kind<?> kind, long timestamp, long now) {
+            this.kind = kind;
+            this.timestamp = timestamp;
+            this.firstSeen = now;
+            this.stableSince = now;
+        }
+
+        /**
+         * @return false if the candidate was taken already and the event must start a new one
+         */
+        private boolean merge(WatchEvent.Kind<?> eventKind, long eventTimestamp) {
+            lock.lock();
+            try {
+                if (taken) {
+                    return false;
+                }
+                // A file that is still being created stays a creation
+                if (kind != ENTRY_CREATE) {
+                    kind = eventKind;
+                }
+                timestamp = Math.max(timestamp, eventTimestamp);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Offers the event to a sink and takes the candidate out of the map if the sink took it. The lock is held
+         * while offering, so no event is merged into the candidate or cancels it in between.
+         * @return whether the sink took the event, or TAKEN if the candidate was taken already
+         */
+        private Offer offer(ConcurrentHashMap<Path, Candidate> candidates, Path path, EventSink sink) {
+            lock.lock();
+            try {
+                if (taken) {
+                    return Offer.TAKEN;
+                }
+                if (!sink.offer(path, kind, timestamp)) {
+                    return Offer.REFUSED;
+                }
+                taken = true;
+                candidates.remove(path, this);
+                return Offer.OFFERED;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Takes the candidate out of the map, so no event can be merged into it anymore
+         * @return its kind, or null if it was taken already
+         */
+        private WatchEvent.Kind<?> take(ConcurrentHashMap<Path, Candidate> candidates, Path path) {
+            lock.lock();
+            try {
+                if (taken) {
+                    return null;
+                }
+                taken = true;
+                candidates.remove(path, this);
+                return kind;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private enum Offer {
+        OFFERED, REFUSED, TAKEN
+    }
+}
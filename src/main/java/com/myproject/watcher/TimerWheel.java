@@ -0,0 +1,131 @@
+package com.myproject.watcher;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.myproject.helper.ThreadHelper;
+
+/**
+ * The TimerWheel class runs an action for items once their delay is up, for many items at a time and at the cost of
+ * a single thread. Time is split into ticks and every item sits in the bucket of the tick it is due in, so a tick only
+ * looks at the items that are due in it, plus those a whole turn of the wheel or more away. Delays are rounded up to
+ * whole ticks.
+ *
+ * <p>Items can be scheduled from any thread. They are handed to the wheel thread through a queue, so scheduling
+ * never takes a lock. Actions run on the wheel thread and should be short.
+ */
+final class TimerWheel<T> {
+    private final long startTime = System.nanoTime();
+    private final long tickNanos;
+    private final List<ArrayDeque<Timeout<T>>> buckets;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout<T>> scheduled = new ConcurrentLinkedQueue<>();
+    private final Consumer<T> action;
+    private final Thread thread;
+    private volatile boolean running = true;
+    // Only touched by the wheel thread
+    private long tick;
+
+    /**
+     * @param name the name of the wheel thread
+     * @param tickMillis the length of a tick, the precision of every delay
+     * @param wheelSize the number of buckets, rounded up to a power of two
+     * @param action what is done with an item once it is due
+     */
+    TimerWheel(String name, long tickMillis, int wheelSize, Consumer<T> action) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+        this.mask = size - 1;
+        this.action = action;
+        this.thread = ThreadHelper.newThread(name, this::run);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Schedules the action for an item
+     * @param item the item the action is run for
+     * @param delayMillis the time until the action is run, 0 for the next tick
+     */
+    void schedule(T item, long delayMillis) {
+        scheduled.add(new Timeout<>(item, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis))));
+    }
+
+    /**
+     * Stops the wheel. Items that are not due yet are dropped.
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (running) {
+            long sleepNanos = startTime + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                continue;
+            }
+            addScheduled();
+            expire(buckets.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    /**
+     * Moves newly scheduled items into the bucket of the tick they are due in
+     */
+    private void addScheduled() {
+        Timeout<T> timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            // Tick n runs once n + 1 ticks have passed, so an item is due in the first tick that ends after it
+            long ticks = Math.ceilDiv(timeout.deadline - startTime, tickNanos) - 1;
+            long dueTick = Math.max(tick, ticks);
+            timeout.rounds = (dueTick - tick) / buckets.size();
+            buckets.get((int) (dueTick & mask)).add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout<T>> bucket) {
+        Iterator<Timeout<T>> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout<T> timeout = iterator.next();
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                continue;
+            }
+            iterator.remove();
+            try {
+                action.accept(timeout.item);
+            } catch (RuntimeException e) {
+                Logger.getLogger(TimerWheel.class.getName()).log(Level.SEVERE, "Timer action failed for: " + timeout.item, e);
+            }
+        }
+    }
+
+    private static final class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        // The number of turns of the wheel left before the item is due
+        private long rounds;
+
+        private Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
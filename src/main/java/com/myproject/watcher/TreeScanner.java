@@ -0,0 +1,174 @@
+package com.myproject.watcher;
+
+import java.io.IOException;
+import java.io.Serial;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The TreeScanner class walks a directory tree once, in parallel, and hands every directory and regular file it
+ * finds to a {@link Visitor}. Every directory is listed exactly once by its own fork-join task, and its
+ * subdirectories are forked as new tasks, so the cost of a scan is proportional to the number of entries in the
+ * tree and not to its depth.
+ *
+ * <p>A directory is visited before it is listed, so a watch key registered by the visitor already sees files that
+ * are created while the rest of the directory is being scanned. Progress is logged at a fixed interval, and the
+ * total time of the scan is logged against a target so a slow startup shows up in the logs.
+ */
+public class TreeScanner {
+    private final Path root;
+    private final Path excludedPath;
+    private final Visitor visitor;
+    private final int parallelism;
+    private final LongAdder directoryCount = new LongAdder();
+    private final LongAdder fileCount = new LongAdder();
+    private final LongAdder byteCount = new LongAdder();
+
+    /**
+     * Receives the entries found by a scan. Called concurrently from several threads.
+     */
+    public interface Visitor {
+        /**
+         * @param directory the absolute path of a directory, called before the directory is listed
+         */
+        void visitDirectory(Path directory);
+
+        /**
+         * @param file the absolute path of a regular file
+         * @param attributes the attributes read while listing the parent directory
+         */
+        void visitFile(Path file, BasicFileAttributes attributes);
+    }
+
+    /**
+     * @param root the directory the scan starts at
+     * @param excludedPath a subtree that is skipped entirely, or null to scan everything
+     * @param parallelism the number of threads listing directories at the same time
+     * @param visitor receives the directories and files that are found
+     */
+    public TreeScanner(Path root, Path excludedPath, int parallelism, Visitor visitor) {
+        this.root = root.toAbsolutePath();
+        this.excludedPath = excludedPath == null ? null : excludedPath.toAbsolutePath();
+        this.parallelism = Math.max(1, parallelism);
+        this.visitor = visitor;
+    }
+
+    /**
+     * Scans the tree and waits until every entry has been visited
+     * @param progressIntervalMillis how often progress is logged, or 0 to never log progress
+     * @param targetMillis the time the scan is expected to take, a slower scan is logged as a warning. 0 disables the check
+     * @return the time the scan took in milliseconds
+     */
+    public long scan(long progressIntervalMillis, long targetMillis) {
+        long start = System.nanoTime();
+        ScheduledExecutorService progressReporter = null;
+        if (progressIntervalMillis > 0) {
+            ScheduledThreadPoolExecutor reporter = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "tree-scanner-progress");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(() -> logProgress(start), progressIntervalMillis, progressIntervalMillis, TimeUnit.MILLISECONDS);
+            progressReporter = reporter;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(root));
+        } finally {
+            pool.shutdown();
+            if (progressReporter != null) {
+                progressReporter.shutdownNow();
+            }
+        }
+
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // Scans without a target, such as the walk of a newly created folder, are only logged when debugging
+        Level level = targetMillis <= 0 ? Level.FINE : elapsedMillis > targetMillis ? Level.WARNING : Level.INFO;
+        Logger.getLogger(TreeScanner.class.getName()).log(level,
+                "Scanned {0}: {1} directories, {2} files, {3} bytes in {4} ms (target {5} ms)",
+                new Object[]{root, getDirectoryCount(), getFileCount(), getByteCount(), elapsedMillis, targetMillis});
+        return elapsedMillis;
+    }
+
+    public long getDirectoryCount() {
+        return directoryCount.sum();
+    }
+
+    public long getFileCount() {
+        return fileCount.sum();
+    }
+
+    public long getByteCount() {
+        return byteCount.sum();
+    }
+
+    private void logProgress(long start) {
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Logger.getLogger(TreeScanner.class.getName()).log(Level.INFO, "Scanning {0}: {1} directories, {2} files after {3} ms",
+                new Object[]{root, getDirectoryCount(), getFileCount(), elapsedMillis});
+    }
+
+    private final class DirectoryTask extends RecursiveAction {
+        // Tasks only live in the pool of one scan and are never serialized
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final transient Path directory;
+
+        private DirectoryTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            visitor.visitDirectory(directory);
+            directoryCount.increment();
+
+            List<DirectoryTask> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    if (entry.equals(excludedPath)) {
+                        continue;
+                    }
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e) {
+                        // The entry was removed between listing and reading its attributes
+                        continue;
+                    }
+
+                    if (attributes.isDirectory()) {
+                        DirectoryTask task = new DirectoryTask(entry);
+                        task.fork();
+                        subdirectories.add(task);
+                    } else if (attributes.isRegularFile()) {
+                        fileCount.increment();
+                        byteCount.add(attributes.size());
+                        visitor.visitFile(entry, attributes);
+                    }
+                }
+            } catch (IOException e) {
+                Logger.getLogger(TreeScanner.class.getName()).log(Level.SEVERE, "Could not list directory: " + directory, e);
+            }
+
+            for (DirectoryTask task : subdirectories) {
+                task.join();
+            }
+        }
+    }
+}
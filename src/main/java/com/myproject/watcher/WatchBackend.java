@@ -0,0 +1,81 @@
+package com.myproject.watcher;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+
+/**
+ * A WatchBackend reports the creations, modifications and deletions in a set of watched directories. Every directory
+ * is registered on its own, events name the full path of the entry they happened to, and a folder that appears in a
+ * watched directory is reported as created, so the {@link DirectoryWatcher} can walk and register it.
+ *
+ * @see WatchBackends
+ */
+public interface WatchBackend extends Closeable {
+
+    /**
+     * @return the name the backend is selected by in the {@code filesorter.watch.backend} system property
+     */
+    String getName();
+
+    /**
+     * Watches a directory, unless it is already watched. Entries already in the directory are not reported.
+     * @param directory the absolute path of the directory
+     * @return true if the directory was registered
+     * @throws IOException if the directory could not be watched
+     */
+    boolean register(Path directory) throws IOException;
+
+    /**
+     * Stops watching a directory and every directory below it, e.g. because the directory was deleted or moved
+     * out of the watched tree
+     * @param root the absolute path of the directory
+     * @return the number of directories no longer watched
+     */
+    int unregisterTree(Path root);
+
+    /**
+     * Checks if events in a directory are reported
+     * @param directory the absolute path of the directory
+     * @return true if the directory is watched
+     */
+    boolean isWatched(Path directory);
+
+    /**
+     * Checks if a path was registered as a directory, even if it can no longer be watched because it was deleted
+     * @param path the absolute path
+     * @return true if the path is a known directory
+     */
+    boolean isDirectory(Path path);
+
+    /**
+     * Reports events to a listener on the calling thread until the backend is closed
+     * @param listener receives every event
+     * @throws InterruptedException if the calling thread was interrupted while it waited for events
+     */
+    void run(Listener listener) throws InterruptedException;
+
+    /**
+     * @return the number of directories that are watched
+     */
+    int size();
+
+    /**
+     * Receives the events of a backend. Called on the thread that runs the backend, so it must not block.
+     */
+    interface Listener {
+
+        /**
+         * @param path the absolute path the event happened to
+         * @param eventKind the kind of the event
+         */
+        void onEvent(Path path, WatchEvent.Kind<?> eventKind);
+
+        /**
+         * Events of a directory were lost, it must be compared against the baseline again
+         * @param directory the absolute path of the directory
+         */
+        void onOverflow(Path directory);
+    }
+}
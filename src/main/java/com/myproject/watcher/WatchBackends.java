@@ -0,0 +1,39 @@
+package com.myproject.watcher;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The WatchBackends class creates the backend the watched tree is watched with:
+ * <ul>
+ *   <li>{@code jdk}, the watch service of the JDK with one kernel watch per directory</li>
+ *   <li>{@code polling}, stat-based polling that works everywhere, with hot directories polled more often</li>
+ *   <li>{@code hybrid}, the watch service wherever it works and polling per directory where it does not</li>
+ * </ul>
+ */
+public final class WatchBackends {
+    /** The backend used when none is configured */
+    public static final String DEFAULT = HybridWatchBackend.NAME;
+
+    private WatchBackends() {
+    }
+
+    /**
+     * Creates a backend
+     * @param name the name of the backend
+     * @param minPollIntervalMillis the interval directories that just changed are polled at
+     * @param maxPollIntervalMillis the interval directories that have not changed for a long time are polled at
+     * @return the backend
+     * @throws IOException if the watch service could not be created
+     */
+    public static WatchBackend create(String name, long minPollIntervalMillis, long maxPollIntervalMillis) throws IOException {
+        return switch (name.trim().toLowerCase(Locale.ROOT)) {
+            case JdkWatchBackend.NAME -> new JdkWatchBackend();
+            case PollingWatchBackend.NAME -> new PollingWatchBackend(minPollIntervalMillis, maxPollIntervalMillis);
+            case HybridWatchBackend.NAME -> new HybridWatchBackend(minPollIntervalMillis, maxPollIntervalMillis);
+            default -> throw new IllegalArgumentException("Unknown watch backend: " + name + ", expected one of "
+                    + List.of(JdkWatchBackend.NAME, PollingWatchBackend.NAME, HybridWatchBackend.NAME));
+        };
+    }
+}
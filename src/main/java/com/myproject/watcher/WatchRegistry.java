@@ -0,0 +1,125 @@
+package com.myproject.watcher;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The WatchRegistry class knows which directory every {@link WatchKey} watches and which key watches every
+ * directory. Events name their file relative to the directory of their key, so the registry is what turns them
+ * into full paths, without asking the file system.
+ *
+ * <p>{@link WatchKey#watchable()} is not used for that, since it keeps the name a directory was registered under:
+ * a folder moved within the watched tree and registered again under its new name gets its old key back.
+ * The registry maps the key to the new name instead.
+ *
+ * <p>A key that stops being valid because its directory was deleted stays in the registry until the deletion
+ * itself is handled, which is how a deleted path is still known to have been a directory.
+ */
+final class WatchRegistry {
+    private final WatchService watchService;
+    private final ConcurrentHashMap<WatchKey, Path> directoriesByKey = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Path, WatchKey> keysByDirectory = new ConcurrentHashMap<>();
+    // Keeps the two maps in step, lookups do not take it
+    private final ReentrantLock lock = new ReentrantLock();
+
+    WatchRegistry(WatchService watchService) {
+        this.watchService = watchService;
+    }
+
+    /**
+     * Watches a directory, unless it is already watched
+     * @param directory the absolute path of the directory
+     * @return true if the directory was registered
+     * @throws IOException if the directory could not be registered
+     */
+    boolean register(Path directory) throws IOException {
+        if (isWatched(directory)) {
+            return false;
+        }
+        WatchKey key = directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+
+        lock.lock();
+        try {
+            // For a directory moved within the watched tree this is its old key. The old name keeps pointing at it
+            // until the deletion of the old name is handled, which leaves the key alone since it moved on.
+            directoriesByKey.put(key, directory);
+            WatchKey replaced = keysByDirectory.put(directory, key);
+            if (replaced != null && replaced != key) {
+                // A directory deleted and created again under the same name, the old key watches nothing
+                directoriesByKey.remove(replaced, directory);
+                replaced.cancel();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Stops watching a directory and every directory below it, e.g. because the directory was deleted or moved
+     * out of the watched tree. Keys that were registered again under another name since are left alone.
+     * @param root the absolute path of the directory
+     * @return the number of directories no longer watched
+     */
+    int unregisterTree(Path root) {
+        int removed = 0;
+        lock.lock();
+        try {
+            for (Map.Entry<Path, WatchKey> entry : keysByDirectory.entrySet()) {
+                Path directory = entry.getKey();
+                if (!directory.startsWith(root)) {
+                    continue;
+                }
+                WatchKey key = entry.getValue();
+                keysByDirectory.remove(directory, key);
+                if (directoriesByKey.remove(key, directory)) {
+                    key.cancel();
+                }
+                removed++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    /**
+     * Gets the directory a key watches
+     * @param key the key events were signalled on
+     * @return the absolute path of the directory, or null if the key was cancelled
+     */
+    Path directoryOf(WatchKey key) {
+        return directoriesByKey.get(key);
+    }
+
+    /**
+     * Checks if a directory is watched by a valid key
+     * @param directory the absolute path of the directory
+     * @return true if events in the directory are reported
+     */
+    boolean isWatched(Path directory) {
+        WatchKey key = keysByDirectory.get(directory);
+        return key != null && key.isValid();
+    }
+
+    /**
+     * Checks if a path was registered as a directory, even if its key is no longer valid
+     * @param path the absolute path
+     * @return true if the path is a known directory
+     */
+    boolean isDirectory(Path path) {
+        return keysByDirectory.containsKey(path);
+    }
+
+    int size() {
+        return keysByDirectory.size();
+    }
+}
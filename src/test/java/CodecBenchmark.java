@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.myproject.versioning.BlobCodec;
+import com.myproject.versioning.BlobCodecs;
+import com.myproject.versioning.BlobStore;
+
+/**
+ * Compares the blob codecs on generated text, CSV, JSON and random data.
+ * For every codec it reports the write throughput, the read throughput and the space saved.
+ * Run with the temp directory on a tmpfs to measure the codecs rather than the disk:
+ * {@code java -Djava.io.tmpdir=/dev/shm CodecBenchmark}
+ */
+public class CodecBenchmark {
+  private static final int SAMPLES = 64;
+  private static final int SAMPLE_SIZE = 256 * 1024;
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) throws IOException {
+    Random random = new Random(42);
+    String[] kinds = {"text", "csv", "json", "random"};
+
+    System.out.printf("%-8s %-8s %12s %12s %10s%n", "data", "codec", "write MB/s", "read MB/s", "saved");
+    for (String kind : kinds) {
+      List<byte[]> samples = new ArrayList<>();
+      for (int i = 0; i < SAMPLES; i++) {
+        samples.add(generate(kind, random));
+      }
+      long rawBytes = (long) SAMPLES * SAMPLE_SIZE;
+
+      for (BlobCodec codec : List.of(BlobCodecs.NONE, BlobCodecs.DEFLATE, BlobCodecs.GZIP, BlobCodecs.LZ4)) {
+        long writeNanos = Long.MAX_VALUE;
+        long readNanos = Long.MAX_VALUE;
+        long storedBytes = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+          Path versionsPath = Files.createTempDirectory("codec-bench");
+          BlobStore blobStore = new BlobStore(versionsPath, codec, null, 0);
+          List<String> hashes = new ArrayList<>();
+
+          long start = System.nanoTime();
+          for (byte[] sample : samples) {
+            hashes.add(blobStore.put(sample));
+          }
+          writeNanos = Math.min(writeNanos, System.nanoTime() - start);
+
+          start = System.nanoTime();
+          for (int i = 0; i < hashes.size(); i++) {
+            try (InputStream input = blobStore.open(hashes.get(i))) {
+              if (!Arrays.equals(input.readAllBytes(), samples.get(i))) {
+                throw new IllegalStateException(codec.getName() + " did not round trip " + kind);
+              }
+            }
+          }
+          readNanos = Math.min(readNanos, System.nanoTime() - start);
+
+          storedBytes = sizeOf(blobStore.getBlobsPath());
+          delete(versionsPath);
+        }
+
+        System.out.printf("%-8s %-8s %12.1f %12.1f %9.1f%%%n", kind, codec.getName(),
+            megabytesPerSecond(rawBytes, writeNanos), megabytesPerSecond(rawBytes, readNanos),
+            100.0 * (rawBytes - storedBytes) / rawBytes);
+      }
+    }
+  }
+
+  private static byte[] generate(String kind, Random random) {
+    String[] words = {"version", "file", "watcher", "directory", "event", "modified", "created", "deleted", "blob", "hash"};
+    StringBuilder builder = new StringBuilder(SAMPLE_SIZE + 256);
+    int row = 0;
+    while (builder.length() < SAMPLE_SIZE) {
+      switch (kind) {
+        case "text" -> builder.append(words[random.nextInt(words.length)]).append(random.nextInt(8) == 0 ? ".\n" : " ");
+        case "csv" -> builder.append(row++).append(',').append(words[random.nextInt(words.length)]).append(',')
+            .append(random.nextInt(100000)).append(',').append(random.nextDouble()).append('\n');
+        case "json" -> builder.append("{\"id\":").append(row++).append(",\"name\":\"").append(words[random.nextInt(words.length)])
+            .append("\",\"size\":").append(random.nextInt(1 << 20)).append(",\"deleted\":").append(random.nextBoolean()).append("},\n");
+        default -> {
+          byte[] noise = new byte[SAMPLE_SIZE];
+          random.nextBytes(noise);
+          return noise;
+        }
+      }
+    }
+    return Arrays.copyOf(builder.toString().getBytes(StandardCharsets.UTF_8), SAMPLE_SIZE);
+  }
+
+  private static double megabytesPerSecond(long bytes, long nanos) {
+    return bytes / (1024.0 * 1024.0) / (nanos / 1_000_000_000.0);
+  }
+
+  private static long sizeOf(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      return paths.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+    }
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : paths.sorted((first, second) -> second.compareTo(first)).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+}
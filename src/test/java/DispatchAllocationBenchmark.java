@@ -0,0 +1,150 @@
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import com.myproject.helper.StringHelper;
+import com.myproject.watcher.EventCoalescer;
+import com.myproject.watcher.EventPipeline;
+import com.myproject.watcher.FileEvent;
+import com.myproject.watcher.StabilityDetector;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Measures the bytes allocated per event on the dispatch path: merging raw events in the {@link EventCoalescer}
+ * and the {@link StabilityDetector}, queuing and handling an event in the {@link EventPipeline}, and the
+ * {@link StringHelper} calls made for events. Like the {@code gc.alloc.rate.norm} of JMH's {@code -prof gc}, the
+ * bytes are read from the allocation counter the JVM keeps per thread, so the threads the pipeline hands events
+ * to are counted as well. Paths are created up front, as the watch backend hands them in.
+ * Run with {@code java DispatchAllocationBenchmark}.
+ */
+public class DispatchAllocationBenchmark {
+  private static final int PATHS = 1_000;
+  private static final int EVENTS = 1_000_000;
+  private static final int ROUNDS = 5;
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+  // Keeps the results alive, so the JIT cannot drop the calls
+  private static volatile int sink;
+
+  public static void main(String[] args) throws Exception {
+    Path[] paths = new Path[PATHS];
+    for (int i = 0; i < PATHS; i++) {
+      paths[i] = Path.of("/watched", "dir-" + (i % 10), "file-" + i + ".txt");
+    }
+
+    System.out.printf("%-30s %12s %10s%n", "stage", "bytes/event", "ns/event");
+    measureCoalescer(paths);
+    measureStabilityDetector(paths);
+    measurePipeline(paths);
+    measureString("StringHelper.extractExtension", paths, name -> StringHelper.extractExtension(name).length());
+    measureString("StringHelper.removeExtension", paths, name -> StringHelper.removeExtension(name).length());
+  }
+
+  /**
+   * Every path already has a pending event, so every raw event is merged into it, as in an event storm
+   */
+  private static void measureCoalescer(Path[] paths) {
+    EventCoalescer coalescer = new EventCoalescer(TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1), (path, kind, timestamp) -> { });
+    for (Path path : paths) {
+      coalescer.submit(path, ENTRY_CREATE);
+    }
+    measure("EventCoalescer.submit", () -> {
+      for (int i = 0; i < EVENTS; i++) {
+        coalescer.submit(paths[i % PATHS], ENTRY_MODIFY);
+      }
+    });
+  }
+
+  private static void measureStabilityDetector(Path[] paths) {
+    StabilityDetector detector = new StabilityDetector(TimeUnit.HOURS.toMillis(1), TimeUnit.HOURS.toMillis(1), 1_000, (path, kind, timestamp) -> { });
+    for (Path path : paths) {
+      detector.submit(path, ENTRY_CREATE, 0);
+    }
+    measure("StabilityDetector.submit", () -> {
+      for (int i = 0; i < EVENTS; i++) {
+        detector.submit(paths[i % PATHS], ENTRY_MODIFY, i);
+      }
+    });
+  }
+
+  /**
+   * Queues events on a single lane and waits until its worker handled them, counting both threads
+   */
+  private static void measurePipeline(Path[] paths) throws InterruptedException {
+    long[] handled = new long[1];
+    long[] laneThread = new long[1];
+    CountDownLatch[] done = {new CountDownLatch(1)};
+    EventPipeline pipeline = new EventPipeline(1024, 1, path -> path, fileEvent -> {
+      laneThread[0] = Thread.currentThread().threadId();
+      if (++handled[0] % EVENTS == 0) {
+        done[0].countDown();
+      }
+    });
+    pipeline.start();
+    Runnable submitAll = () -> {
+      try {
+        for (int i = 0; i < EVENTS; i++) {
+          pipeline.submit(paths[i % PATHS], FileEvent.EventType.FILE_MODIFICATION, System.currentTimeMillis());
+        }
+        done[0].await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      done[0] = new CountDownLatch(1);
+    };
+    // The first round finds the thread of the lane and warms both threads up
+    submitAll.run();
+    long[] threads = {Thread.currentThread().threadId(), laneThread[0]};
+    measure("EventPipeline.submit+handle", threads, submitAll);
+    pipeline.shutdown(1, TimeUnit.SECONDS);
+  }
+
+  private static void measureString(String name, Path[] paths, ToIntFunction<String> helper) {
+    String[] fileNames = new String[PATHS];
+    for (int i = 0; i < PATHS; i++) {
+      fileNames[i] = paths[i].getFileName().toString();
+    }
+    measure(name, () -> {
+      int hash = 0;
+      for (int i = 0; i < EVENTS; i++) {
+        hash += helper.applyAsInt(fileNames[i % PATHS]);
+      }
+      sink = hash;
+    });
+  }
+
+  private static void measure(String name, Runnable events) {
+    measure(name, new long[]{Thread.currentThread().threadId()}, events);
+  }
+
+  /**
+   * Runs a warm-up round, then reports the round with the fewest bytes and the fastest round
+   * @param threads the threads whose allocations are counted
+   */
+  private static void measure(String name, long[] threads, Runnable events) {
+    events.run();
+    long leastBytes = Long.MAX_VALUE;
+    long fastest = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long bytesBefore = allocatedBytes(threads);
+      long start = System.nanoTime();
+      events.run();
+      fastest = Math.min(fastest, System.nanoTime() - start);
+      leastBytes = Math.min(leastBytes, allocatedBytes(threads) - bytesBefore);
+    }
+    System.out.printf("%-30s %12.2f %10.1f%n", name, (double) leastBytes / EVENTS, (double) fastest / EVENTS);
+  }
+
+  private static long allocatedBytes(long[] threads) {
+    long bytes = 0;
+    for (long thread : threads) {
+      bytes += THREADS.getThreadAllocatedBytes(thread);
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,53 @@
+import java.nio.file.Path;
+import java.util.function.Supplier;
+
+import com.myproject.helper.FileHelper;
+import com.myproject.helper.StringHelper;
+
+/**
+ * Measures the cost per call of the helpers that run for every event: the timestamp and date formatting of
+ * {@link StringHelper}, its extension handling, and {@link FileHelper#buildVersionedFileName}.
+ * Every helper is warmed up first, then timed over a few rounds, and the best round is reported.
+ * Run with {@code java HelperBenchmark}.
+ */
+public class HelperBenchmark {
+  private static final int WARMUP_CALLS = 200_000;
+  private static final int CALLS = 1_000_000;
+  private static final int ROUNDS = 5;
+  private static final String[] FILE_NAMES = {"report.docx", "archive.tar.gz", "notes.txt", "Makefile", "photo.2024.jpeg"};
+
+  // Keeps the results alive, so the JIT cannot drop the calls
+  private static volatile int sink;
+
+  public static void main(String[] args) {
+    Path directory = Path.of(System.getProperty("java.io.tmpdir"), "watched");
+    int[] next = new int[1];
+
+    System.out.printf("%-26s %10s%n", "helper", "ns/call");
+    measure("formatTime", StringHelper::formatTime);
+    measure("formatDate", StringHelper::formatDate);
+    measure("extractExtension", () -> StringHelper.extractExtension(FILE_NAMES[next[0]++ % FILE_NAMES.length]));
+    measure("removeExtension", () -> StringHelper.removeExtension(FILE_NAMES[next[0]++ % FILE_NAMES.length]));
+    measure("buildVersionedFileName", () -> FileHelper.buildVersionedFileName(directory,
+        FILE_NAMES[next[0]++ % FILE_NAMES.length], "modified", "12-30-45"));
+  }
+
+  private static void measure(String name, Supplier<String> helper) {
+    run(helper, WARMUP_CALLS);
+    long best = Long.MAX_VALUE;
+    for (int round = 0; round < ROUNDS; round++) {
+      long start = System.nanoTime();
+      run(helper, CALLS);
+      best = Math.min(best, System.nanoTime() - start);
+    }
+    System.out.printf("%-26s %10.1f%n", name, (double) best / CALLS);
+  }
+
+  private static void run(Supplier<String> helper, int calls) {
+    int hash = 0;
+    for (int i = 0; i < calls; i++) {
+      hash += helper.get().length();
+    }
+    sink = hash;
+  }
+}
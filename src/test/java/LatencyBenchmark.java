@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.myproject.watcher.DirectoryWatcher;
+
+/**
+ * Measures the time from writing a file in a watched directory to its version being in the manifest on disk,
+ * through the whole watcher: watch backend, coalescer, stability detector, pipeline, blob store and group commit.
+ * Files are created and then modified one at a time, each write waiting for the version of the one before.
+ *
+ * <p>With the default settings the latency is dominated by the quiet period of the coalescer and the stability
+ * window, which wait on purpose. Add {@code -Dfilesorter.coalesce.quietPeriodMillis=0
+ * -Dfilesorter.stability.windowMillis=0} to measure the work in between.
+ * Run with {@code java LatencyBenchmark [files]}, e.g. on a tmpfs with {@code -Djava.io.tmpdir=/dev/shm}.
+ */
+public class LatencyBenchmark {
+  private static final long TIMEOUT_MILLIS = 30_000;
+  private static final long POLL_MILLIS = 1;
+
+  public static void main(String[] args) throws Exception {
+    int files = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    Path root = Files.createTempDirectory("latency-bench");
+    new DirectoryWatcher(root);
+    Path manifest = root.resolve("versions").resolve("manifest.log");
+
+    long[] created = new long[files];
+    long[] modified = new long[files];
+    try (ManifestTail tail = new ManifestTail(manifest)) {
+      for (int i = 0; i < files; i++) {
+        Path file = root.resolve("file-" + i + ".txt");
+        long start = System.nanoTime();
+        Files.writeString(file, "created " + i);
+        created[i] = tail.await(file) - start;
+      }
+      for (int i = 0; i < files; i++) {
+        Path file = root.resolve("file-" + i + ".txt");
+        long start = System.nanoTime();
+        Files.writeString(file, "modified " + i);
+        modified[i] = tail.await(file) - start;
+      }
+    }
+
+    System.out.printf("%-10s %8s %10s %10s %10s%n", "event", "files", "p50 ms", "p99 ms", "max ms");
+    report("created", created);
+    report("modified", modified);
+    System.exit(0);
+  }
+
+  private static void report(String event, long[] latencies) {
+    long[] sorted = latencies.clone();
+    Arrays.sort(sorted);
+    System.out.printf("%-10s %8d %10.1f %10.1f %10.1f%n", event, sorted.length, millis(sorted, 50), millis(sorted, 99),
+        millis(sorted, 100));
+  }
+
+  private static double millis(long[] sorted, int percentile) {
+    return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)] / 1_000_000.0;
+  }
+
+  /**
+   * Follows the manifest as it grows, the way {@code tail -f} does
+   */
+  private static final class ManifestTail implements AutoCloseable {
+    private final Path manifest;
+    private RandomAccessFile file;
+    private final StringBuilder partialLine = new StringBuilder();
+
+    private ManifestTail(Path manifest) {
+      this.manifest = manifest;
+    }
+
+    /**
+     * Waits until a line naming the file is appended to the manifest
+     * @return the time the line was seen, as by {@link System#nanoTime()}
+     */
+    private long await(Path path) throws IOException, InterruptedException {
+      String suffix = "\t" + path;
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+      while (System.nanoTime() < deadline) {
+        if (file == null && Files.exists(manifest)) {
+          file = new RandomAccessFile(manifest.toFile(), "r");
+        }
+        if (file != null && file.length() > file.getFilePointer()) {
+          byte[] appended = new byte[(int) (file.length() - file.getFilePointer())];
+          file.readFully(appended);
+          partialLine.append(new String(appended, StandardCharsets.UTF_8));
+          boolean found = false;
+          int end;
+          while ((end = partialLine.indexOf("\n")) >= 0) {
+            found |= partialLine.substring(0, end).endsWith(suffix);
+            partialLine.delete(0, end + 1);
+          }
+          if (found) {
+            return System.nanoTime();
+          }
+        }
+        Thread.sleep(POLL_MILLIS);
+      }
+      throw new IllegalStateException("No version of " + path + " within " + TIMEOUT_MILLIS + " ms");
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (file != null) {
+        file.close();
+      }
+    }
+  }
+}
@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import com.myproject.helper.FileHelper;
+import com.myproject.watcher.EventHandler;
+import com.myproject.watcher.TreeScanner;
+import com.myproject.watcher.WatchBackend;
+import com.myproject.watcher.WatchBackends;
+
+/**
+ * Measures the initial scan of generated trees of growing size. For every tree it reports
+ * <ul>
+ *   <li>the walk of {@link FileHelper#getFiles}</li>
+ *   <li>the parallel listing of {@link TreeScanner} alone</li>
+ *   <li>the full initial scan as the directory watcher runs it, registering every folder and indexing every file,
+ *   on a first start that reads every file and on a restart that trusts the baseline index of the first</li>
+ * </ul>
+ * Run with {@code java ScanBenchmark [directories:files per directory ...]}, e.g. on a tmpfs with
+ * {@code -Djava.io.tmpdir=/dev/shm}. The backend can be picked with {@code -Dfilesorter.watch.backend}.
+ */
+public class ScanBenchmark {
+  private static final String[] DEFAULT_TREES = {"100:10", "1000:10", "2000:50"};
+  private static final int FILE_SIZE = 2048;
+  private static final int ROUNDS = 3;
+
+  public static void main(String[] args) throws IOException {
+    String[] trees = args.length > 0 ? args : DEFAULT_TREES;
+    String backendName = System.getProperty("filesorter.watch.backend", "jdk");
+    int parallelism = Runtime.getRuntime().availableProcessors();
+
+    System.out.printf("%-12s %8s %12s %12s %12s %12s%n", "tree", "files", "walk ms", "list ms", "first ms", "restart ms");
+    for (String tree : trees) {
+      String[] shape = tree.split(":");
+      int directories = Integer.parseInt(shape[0]);
+      int filesPerDirectory = Integer.parseInt(shape[1]);
+      Path root = Files.createTempDirectory("scan-bench");
+      try {
+        generate(root, directories, filesPerDirectory);
+        long walk = Long.MAX_VALUE;
+        long list = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+          long start = System.nanoTime();
+          FileHelper.getFiles(root);
+          walk = Math.min(walk, System.nanoTime() - start);
+
+          start = System.nanoTime();
+          new TreeScanner(root, root.resolve("versions"), parallelism, new TreeScanner.Visitor() {
+            @Override
+            public void visitDirectory(Path directory) {
+            }
+
+            @Override
+            public void visitFile(Path file, BasicFileAttributes attributes) {
+            }
+          }).scan(0, 0);
+          list = Math.min(list, System.nanoTime() - start);
+        }
+        // The first start builds the baseline index the restart is compared against
+        long first = initialScan(root, backendName, parallelism);
+        long restart = initialScan(root, backendName, parallelism);
+
+        System.out.printf("%-12s %8d %12d %12d %12d %12d%n", tree, directories * filesPerDirectory,
+            TimeUnit.NANOSECONDS.toMillis(walk), TimeUnit.NANOSECONDS.toMillis(list),
+            TimeUnit.NANOSECONDS.toMillis(first), TimeUnit.NANOSECONDS.toMillis(restart));
+      } finally {
+        delete(root);
+      }
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Runs the scan the directory watcher runs when it starts
+   * @return the time the scan took in nanoseconds
+   */
+  private static long initialScan(Path root, String backendName, int parallelism) throws IOException {
+    EventHandler eventHandler = new EventHandler(root);
+    try (WatchBackend watchBackend = WatchBackends.create(backendName, 250, 10_000)) {
+      long start = System.nanoTime();
+      new TreeScanner(root, root.resolve("versions"), parallelism, new TreeScanner.Visitor() {
+        @Override
+        public void visitDirectory(Path directory) {
+          try {
+            watchBackend.register(directory);
+          } catch (IOException e) {
+            throw new IllegalStateException("Could not watch " + directory, e);
+          }
+        }
+
+        @Override
+        public void visitFile(Path file, BasicFileAttributes attributes) {
+          eventHandler.indexFile(file, attributes);
+        }
+      }).scan(0, 0);
+      eventHandler.reconcileBaseline();
+      return System.nanoTime() - start;
+    } finally {
+      eventHandler.closeEventService();
+    }
+  }
+
+  private static void generate(Path root, int directories, int filesPerDirectory) throws IOException {
+    byte[] content = new byte[FILE_SIZE];
+    for (int i = 0; i < directories; i++) {
+      // Ten folders per level, so the tree is as deep as it is wide
+      Path directory = root;
+      for (int level = i; level > 0; level /= 10) {
+        directory = directory.resolve("d" + level % 10);
+      }
+      directory = Files.createDirectories(directory.resolve("dir-" + i));
+      for (int j = 0; j < filesPerDirectory; j++) {
+        content[0] = (byte) i;
+        content[1] = (byte) j;
+        content[2] = (byte) (i >> 8);
+        Files.write(directory.resolve("file-" + j + ".txt"), content);
+      }
+    }
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : paths.sorted((first, second) -> second.compareTo(first)).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+}
@@ -0,0 +1,250 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.myproject.versioning.SnapshotStrategies;
+import com.myproject.versioning.SnapshotStrategy;
+
+/**
+ * Checks the snapshot strategies on a temporary folder: what {@link SnapshotStrategies#detect} probes and in which
+ * order it returns the strategies, that every strategy the folder supports makes an exact copy, and that
+ * {@link SnapshotStrategies#snapshot} falls back to the next strategy when one fails or may not be used.
+ * Reflink and hard links are only checked where the file system of the temporary folder supports them.
+ * Run with {@code java SnapshotStrategiesTest}, it exits with an error on the first failed check.
+ */
+public class SnapshotStrategiesTest {
+  private static final List<SnapshotStrategy> ORDER = List.of(SnapshotStrategies.REFLINK, SnapshotStrategies.HARDLINK,
+      SnapshotStrategies.TRANSFER, SnapshotStrategies.COPY);
+  // Larger than the buffer of the copy strategy, so it takes more than one read
+  private static final int CONTENT_SIZE = 300 * 1024;
+
+  private static int checks;
+
+  public static void main(String[] args) throws IOException {
+    Path directory = Files.createTempDirectory("snapshot-test");
+    try {
+      byte[] content = new byte[CONTENT_SIZE];
+      new Random(42).nextBytes(content);
+
+      checkDetect(directory);
+      checkSnapshots(directory, content);
+      checkFallback(directory, content);
+    } finally {
+      deleteTree(directory);
+    }
+    System.out.println("All " + checks + " checks passed");
+  }
+
+  /**
+   * The detected strategies keep the order of the list, always end with the fallback and contain reflink and hard
+   * links exactly when the folder supports them. Probing leaves nothing behind.
+   */
+  private static void checkDetect(Path directory) throws IOException {
+    Path blobs = directory.resolve("blobs");
+    List<SnapshotStrategy> detected = SnapshotStrategies.detect(blobs, "auto");
+    check(Files.isDirectory(blobs), "detect creates the folder it probes");
+    check(isEmpty(blobs), "probe files are deleted, found " + list(blobs));
+    check(detected.equals(ORDER.stream().filter(detected::contains).toList()), "detected strategies are in order: " + names(detected));
+    check(detected.subList(detected.size() - 2, detected.size()).equals(SnapshotStrategies.FALLBACK),
+        "detected strategies end with the fallback: " + names(detected));
+    check(detected.contains(SnapshotStrategies.HARDLINK) == supports(blobs, SnapshotStrategies.HARDLINK),
+        "hardlink is detected exactly when the folder supports it");
+    check(detected.contains(SnapshotStrategies.REFLINK) == supports(blobs, SnapshotStrategies.REFLINK),
+        "reflink is detected exactly when the folder supports it");
+
+    // A preferred strategy starts the list, the better ones before it are not tried
+    check(SnapshotStrategies.detect(blobs, "transfer").equals(SnapshotStrategies.FALLBACK), "transfer detects transfer, copy");
+    check(SnapshotStrategies.detect(blobs, "COPY").equals(List.of(SnapshotStrategies.COPY)), "copy detects copy only");
+    check(!SnapshotStrategies.detect(blobs, "hardlink").contains(SnapshotStrategies.REFLINK), "hardlink does not try reflink");
+    try {
+      SnapshotStrategies.detect(blobs, "rsync");
+      check(false, "an unknown strategy is rejected");
+    } catch (IllegalArgumentException e) {
+      check(true, "an unknown strategy is rejected");
+    }
+  }
+
+  /**
+   * Every strategy the folder supports copies the content exactly and replaces an existing target. Only links
+   * change with the source, copies keep the content they were made with.
+   */
+  private static void checkSnapshots(Path directory, byte[] content) throws IOException {
+    Path source = directory.resolve("source.bin");
+    for (SnapshotStrategy strategy : ORDER) {
+      Files.write(source, content);
+      Path target = directory.resolve("target." + strategy.getName());
+      Files.write(target, new byte[]{9, 9, 9});
+      try {
+        strategy.snapshot(source, target);
+      } catch (IOException e) {
+        check(!SnapshotStrategies.FALLBACK.contains(strategy), strategy.getName() + " works everywhere: " + e);
+        System.out.println("Skipping " + strategy.getName() + ", not supported here: " + e.getMessage());
+        continue;
+      }
+      check(Arrays.equals(Files.readAllBytes(target), content), strategy.getName() + " copies the content");
+
+      byte[] changed = content.clone();
+      changed[0] ^= 1;
+      Files.write(source, changed);
+      byte[] expected = strategy.requiresImmutableSource() ? changed : content;
+      check(Arrays.equals(Files.readAllBytes(target), expected),
+          strategy.getName() + (strategy.requiresImmutableSource() ? " links to the source" : " is independent of the source"));
+      Files.delete(target);
+    }
+    Files.delete(source);
+
+    Path empty = Files.createFile(directory.resolve("empty.bin"));
+    for (SnapshotStrategy strategy : SnapshotStrategies.FALLBACK) {
+      Path target = directory.resolve("empty." + strategy.getName());
+      strategy.snapshot(empty, target);
+      check(Files.size(target) == 0, strategy.getName() + " copies an empty file");
+      Files.delete(target);
+    }
+    Files.delete(empty);
+  }
+
+  /**
+   * Strategies are tried best first. One that fails hands over to the next, one that needs an immutable source
+   * is skipped for a mutable one, and if every strategy fails all of their errors are reported.
+   */
+  private static void checkFallback(Path directory, byte[] content) throws IOException {
+    Path source = Files.write(directory.resolve("source.bin"), content);
+    Path target = directory.resolve("target.bin");
+    List<String> tried = new ArrayList<>();
+
+    SnapshotStrategy used = SnapshotStrategies.snapshot(List.of(failing("broken", tried), tracking(SnapshotStrategies.TRANSFER, tried),
+        tracking(SnapshotStrategies.COPY, tried)), source, target, false);
+    check(used.getName().equals("transfer") && tried.equals(List.of("broken", "transfer")), "a failed strategy falls back to the next: " + tried);
+    check(Arrays.equals(Files.readAllBytes(target), content), "the fallback copies the content");
+
+    tried.clear();
+    used = SnapshotStrategies.snapshot(List.of(tracking(SnapshotStrategies.HARDLINK, tried), tracking(SnapshotStrategies.COPY, tried)),
+        source, target, false);
+    check(used.getName().equals("copy") && tried.equals(List.of("copy")), "hardlink is skipped for a mutable source: " + tried);
+    check(!Files.isSameFile(source, target), "a mutable source is never linked");
+
+    if (supports(directory, SnapshotStrategies.HARDLINK)) {
+      used = SnapshotStrategies.snapshot(List.of(SnapshotStrategies.HARDLINK, SnapshotStrategies.COPY), source, target, true);
+      check(used == SnapshotStrategies.HARDLINK && Files.isSameFile(source, target), "an immutable source is linked");
+    }
+
+    check(SnapshotStrategies.bestForMutable(ORDER) == SnapshotStrategies.REFLINK, "reflink is the best strategy for a mutable source");
+    check(SnapshotStrategies.bestForMutable(List.of(SnapshotStrategies.HARDLINK, SnapshotStrategies.TRANSFER)) == SnapshotStrategies.TRANSFER,
+        "hardlink is never the best strategy for a mutable source");
+    check(SnapshotStrategies.bestForMutable(List.of(SnapshotStrategies.HARDLINK)) == null, "hardlink alone has no strategy for a mutable source");
+
+    tried.clear();
+    try {
+      SnapshotStrategies.snapshot(List.of(failing("first", tried), failing("second", tried)), source, target, false);
+      check(false, "snapshot fails when every strategy fails");
+    } catch (IOException e) {
+      check(tried.equals(List.of("first", "second")), "every strategy is tried before giving up: " + tried);
+      check(e.getMessage().contains("first") && e.getSuppressed().length == 1 && e.getSuppressed()[0].getMessage().contains("second"),
+          "the errors of every strategy are reported");
+    }
+    Files.delete(target);
+    Files.delete(source);
+  }
+
+  private static boolean supports(Path directory, SnapshotStrategy strategy) throws IOException {
+    Path source = Files.write(Files.createTempFile(directory, "supports", ".bin"), new byte[]{1, 2, 3});
+    Path target = source.resolveSibling(source.getFileName() + ".copy");
+    try {
+      strategy.snapshot(source, target);
+      return true;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      Files.deleteIfExists(target);
+      Files.delete(source);
+    }
+  }
+
+  private static SnapshotStrategy failing(String name, List<String> tried) {
+    return new SnapshotStrategy() {
+      @Override
+      public String getName() {
+        return name;
+      }
+
+      @Override
+      public boolean isCopyFree() {
+        return true;
+      }
+
+      @Override
+      public boolean requiresImmutableSource() {
+        return false;
+      }
+
+      @Override
+      public void snapshot(Path source, Path target) throws IOException {
+        tried.add(name);
+        throw new IOException(name + " is not supported");
+      }
+    };
+  }
+
+  /**
+   * Wraps a strategy to record when it is tried
+   */
+  private static SnapshotStrategy tracking(SnapshotStrategy strategy, List<String> tried) {
+    return new SnapshotStrategy() {
+      @Override
+      public String getName() {
+        return strategy.getName();
+      }
+
+      @Override
+      public boolean isCopyFree() {
+        return strategy.isCopyFree();
+      }
+
+      @Override
+      public boolean requiresImmutableSource() {
+        return strategy.requiresImmutableSource();
+      }
+
+      @Override
+      public void snapshot(Path source, Path target) throws IOException {
+        tried.add(strategy.getName());
+        strategy.snapshot(source, target);
+      }
+    };
+  }
+
+  private static void check(boolean condition, String description) {
+    if (!condition) {
+      throw new AssertionError("Failed: " + description);
+    }
+    checks++;
+  }
+
+  private static List<String> names(List<SnapshotStrategy> strategies) {
+    return strategies.stream().map(SnapshotStrategy::getName).toList();
+  }
+
+  private static boolean isEmpty(Path directory) throws IOException {
+    return list(directory).isEmpty();
+  }
+
+  private static List<Path> list(Path directory) throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.toList();
+    }
+  }
+
+  private static void deleteTree(Path root) throws IOException {
+    try (Stream<Path> paths = Files.walk(root)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+        Files.deleteIfExists(path);
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import com.myproject.watcher.EventHandler;
+
+/**
+ * Measures how fast the event handler versions created and modified files of different sizes, calling
+ * {@link EventHandler#handleFileCreation} and {@link EventHandler#handleFileModification} directly, so neither the
+ * watch service nor the delays of the coalescer and the stability detector are part of the measurement.
+ * Every size is measured in a few rounds after a warm-up round and the best round is reported.
+ * Settings such as {@code -Dfilesorter.codec=none} or {@code -Dfilesorter.delta.enabled=true} apply as usual.
+ * Run with the temp directory on a tmpfs to measure the code rather than the disk:
+ * {@code java -Djava.io.tmpdir=/dev/shm VersioningBenchmark}
+ */
+public class VersioningBenchmark {
+  private static final int[] SIZES = {1024, 64 * 1024, 1024 * 1024, 32 * 1024 * 1024};
+  private static final long BYTES_PER_ROUND = 64L * 1024 * 1024;
+  private static final int MAX_FILES_PER_ROUND = 2_000;
+  private static final int WARMUP_ROUNDS = 1;
+  private static final int ROUNDS = 3;
+
+  public static void main(String[] args) throws IOException {
+    Random random = new Random(42);
+    System.out.printf("%-10s %8s %14s %12s %14s %12s%n", "size", "files", "create ops/s", "create MB/s", "modify ops/s", "modify MB/s");
+    for (int size : SIZES) {
+      int files = (int) Math.max(4, Math.min(MAX_FILES_PER_ROUND, BYTES_PER_ROUND / size));
+      long createNanos = Long.MAX_VALUE;
+      long modifyNanos = Long.MAX_VALUE;
+
+      for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+        Path root = Files.createTempDirectory("versioning-bench");
+        try {
+          List<Path> paths = new ArrayList<>();
+          for (int i = 0; i < files; i++) {
+            paths.add(Files.write(root.resolve("file-" + i + ".txt"), generate(size, random)));
+          }
+          EventHandler eventHandler = new EventHandler(root);
+
+          long start = System.nanoTime();
+          for (Path path : paths) {
+            eventHandler.handleFileCreation(path, System.currentTimeMillis());
+          }
+          long create = System.nanoTime() - start;
+
+          for (Path path : paths) {
+            Files.write(path, edit(Files.readAllBytes(path), random));
+          }
+          start = System.nanoTime();
+          for (Path path : paths) {
+            eventHandler.handleFileModification(path, System.currentTimeMillis());
+          }
+          long modify = System.nanoTime() - start;
+          eventHandler.closeEventService();
+
+          if (round >= WARMUP_ROUNDS) {
+            createNanos = Math.min(createNanos, create);
+            modifyNanos = Math.min(modifyNanos, modify);
+          }
+        } finally {
+          delete(root);
+        }
+      }
+
+      long bytes = (long) files * size;
+      System.out.printf("%-10s %8d %14.0f %12.1f %14.0f %12.1f%n", humanReadable(size), files,
+          files / seconds(createNanos), bytes / (1024.0 * 1024.0) / seconds(createNanos),
+          files / seconds(modifyNanos), bytes / (1024.0 * 1024.0) / seconds(modifyNanos));
+    }
+    System.exit(0);
+  }
+
+  /**
+   * Generates text-like content that compresses about as well as source code or documents do
+   */
+  private static byte[] generate(int size, Random random) {
+    byte[] content = new byte[size];
+    String[] words = {"version ", "file ", "watcher ", "directory ", "event ", "blob ", "hash ", "\n"};
+    int position = 0;
+    while (position < size) {
+      byte[] word = words[random.nextInt(words.length)].getBytes();
+      int length = Math.min(word.length, size - position);
+      System.arraycopy(word, 0, content, position, length);
+      position += length;
+    }
+    return content;
+  }
+
+  /**
+   * Changes a few bytes in the middle of the content, the way an edit of a document would
+   */
+  private static byte[] edit(byte[] content, Random random) {
+    int at = content.length / 2;
+    for (int i = 0; i < Math.min(16, content.length - at); i++) {
+      content[at + i] = (byte) ('a' + random.nextInt(26));
+    }
+    return content;
+  }
+
+  private static double seconds(long nanos) {
+    return nanos / 1_000_000_000.0;
+  }
+
+  private static String humanReadable(int size) {
+    return size >= 1024 * 1024 ? size / (1024 * 1024) + " MiB" : size / 1024 + " KiB";
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : paths.sorted((first, second) -> second.compareTo(first)).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+}
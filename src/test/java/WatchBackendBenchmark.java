@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import com.myproject.watcher.WatchBackend;
+import com.myproject.watcher.WatchBackends;
+
+/**
+ * Compares the watch backends on a generated tree. One directory in ten was changed just now, the others a month ago.
+ * For every backend it reports the CPU time spent while nothing changes, and the time from a write to its event
+ * for files in recently changed (hot) and old (cold) directories together with the CPU time spent meanwhile.
+ * Run with {@code java WatchBackendBenchmark [directories] [files per directory]}, e.g. on a tmpfs with
+ * {@code -Djava.io.tmpdir=/dev/shm}.
+ */
+public class WatchBackendBenchmark {
+  private static final long MIN_POLL_INTERVAL_MILLIS = 250;
+  private static final long MAX_POLL_INTERVAL_MILLIS = 10_000;
+  private static final long IDLE_MILLIS = 5_000;
+  private static final int WRITES_PER_TIER = 20;
+  private static final long WRITE_PAUSE_MILLIS = 50;
+  private static final long SETTLE_MILLIS = 12_000;
+
+  public static void main(String[] args) throws Exception {
+    int directories = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+    int filesPerDirectory = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+    System.out.printf("%d directories, %d files each%n", directories, filesPerDirectory);
+    System.out.printf("%-8s %12s %12s %12s %12s %12s %9s%n",
+        "backend", "idle cpu ms", "hot p50 ms", "hot max ms", "cold p50 ms", "cold max ms", "missed");
+    for (String backendName : List.of("jdk", "polling", "hybrid")) {
+      Path root = Files.createTempDirectory("watch-bench");
+      try {
+        List<Path> tree = generate(root, directories, filesPerDirectory);
+        run(backendName, tree);
+      } finally {
+        delete(root);
+      }
+    }
+  }
+
+  private static void run(String backendName, List<Path> tree) throws Exception {
+    ConcurrentHashMap<Path, Long> arrivals = new ConcurrentHashMap<>();
+    WatchBackend backend = WatchBackends.create(backendName, MIN_POLL_INTERVAL_MILLIS, MAX_POLL_INTERVAL_MILLIS);
+    for (Path directory : tree) {
+      backend.register(directory);
+    }
+    Thread thread = new Thread(() -> {
+      try {
+        backend.run(new WatchBackend.Listener() {
+          @Override
+          public void onEvent(Path path, WatchEvent.Kind<?> eventKind) {
+            if (eventKind == StandardWatchEventKinds.ENTRY_MODIFY) {
+              arrivals.putIfAbsent(path, System.nanoTime());
+            }
+          }
+
+          @Override
+          public void onOverflow(Path directory) {
+          }
+        });
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "benchmark-" + backendName);
+    thread.setDaemon(true);
+    thread.start();
+
+    long cpuBefore = processCpuNanos();
+    Thread.sleep(IDLE_MILLIS);
+    long idleCpuMillis = TimeUnit.NANOSECONDS.toMillis(processCpuNanos() - cpuBefore);
+
+    Random random = new Random(42);
+    List<Path> hotDirectories = tree.subList(0, Math.max(1, tree.size() / 10));
+    List<Path> coldDirectories = tree.subList(hotDirectories.size(), tree.size());
+    ConcurrentHashMap<Path, Long> hotWrites = write(hotDirectories, random);
+    ConcurrentHashMap<Path, Long> coldWrites = write(coldDirectories, random);
+    Thread.sleep(SETTLE_MILLIS);
+    backend.close();
+
+    long[] hot = latencies(hotWrites, arrivals);
+    long[] cold = latencies(coldWrites, arrivals);
+    long missed = WRITES_PER_TIER * 2L - hot.length - cold.length;
+    System.out.printf("%-8s %12d %12d %12d %12d %12d %9d%n", backendName, idleCpuMillis,
+        percentile(hot, 50), percentile(hot, 100), percentile(cold, 50), percentile(cold, 100), missed);
+  }
+
+  private static ConcurrentHashMap<Path, Long> write(List<Path> directories, Random random) throws Exception {
+    ConcurrentHashMap<Path, Long> writes = new ConcurrentHashMap<>();
+    while (writes.size() < WRITES_PER_TIER) {
+      Path directory = directories.get(random.nextInt(directories.size()));
+      Path file = directory.resolve("file-" + random.nextInt(4) + ".txt");
+      if (writes.containsKey(file)) {
+        continue;
+      }
+      writes.put(file, System.nanoTime());
+      Files.writeString(file, "changed " + System.nanoTime());
+      Thread.sleep(WRITE_PAUSE_MILLIS);
+    }
+    return writes;
+  }
+
+  private static long[] latencies(ConcurrentHashMap<Path, Long> writes, ConcurrentHashMap<Path, Long> arrivals) {
+    List<Long> latencies = new ArrayList<>();
+    writes.forEach((path, writtenAt) -> {
+      Long arrivedAt = arrivals.get(path);
+      if (arrivedAt != null) {
+        latencies.add(TimeUnit.NANOSECONDS.toMillis(arrivedAt - writtenAt));
+      }
+    });
+    long[] sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  private static long percentile(long[] sorted, int percentile) {
+    if (sorted.length == 0) {
+      return -1;
+    }
+    return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+  }
+
+  private static List<Path> generate(Path root, int directories, int filesPerDirectory) throws IOException {
+    FileTime monthAgo = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(30));
+    List<Path> tree = new ArrayList<>();
+    for (int i = 0; i < directories; i++) {
+      Path directory = root.resolve("group-" + (i % 16)).resolve("dir-" + i);
+      Files.createDirectories(directory);
+      for (int j = 0; j < filesPerDirectory; j++) {
+        Path file = Files.writeString(directory.resolve("file-" + j + ".txt"), "content " + i + " " + j);
+        // The first tenth of the directories stays hot
+        if (i >= directories / 10) {
+          Files.setLastModifiedTime(file, monthAgo);
+        }
+      }
+      tree.add(directory);
+    }
+    return tree;
+  }
+
+  private static long processCpuNanos() {
+    return ManagementFactory.getPlatformMXBean(com.sun.management.OperatingSystemMXBean.class).getProcessCpuTime();
+  }
+
+  private static void delete(Path directory) throws IOException {
+    try (Stream<Path> paths = Files.walk(directory)) {
+      for (Path path : paths.sorted((first, second) -> second.compareTo(first)).toList()) {
+        Files.delete(path);
+      }
+    }
+  }
+}